@@ -4,19 +4,30 @@ import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
 import static pt.ulisboa.tecnico.tuplespaces.client.CommandProcessor.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import io.grpc.Context;
 import io.grpc.StatusRuntimeException;
 import pt.ulisboa.tecnico.tuplespaces.client.exceptions.InvalidArgumentException;
 import pt.ulisboa.tecnico.tuplespaces.client.exceptions.InvalidCommandException;
+import pt.ulisboa.tecnico.tuplespaces.client.grpc.ChannelRegistry;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.NameServerService;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.SequencerService;
+import pt.ulisboa.tecnico.tuplespaces.client.grpc.TupleSpacesStateStreamObserver;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.TupleSpacesStreamObserver;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.TuplesSpacesService;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.TuplesSpacesService.ServerEntry;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.exceptions.*;
+import pt.ulisboa.tecnico.tuplespaces.client.util.AckPolicy;
 import pt.ulisboa.tecnico.tuplespaces.client.util.ClientResponseCollector;
+import pt.ulisboa.tecnico.tuplespaces.client.util.OperationBatcher;
 import pt.ulisboa.tecnico.tuplespaces.client.util.OrderedDelayer;
 
 import javax.naming.ServiceUnavailableException;
@@ -25,6 +36,10 @@ public class Client {
   public static final int RPC_RETRIES = 0; // we assume servers aren't faulty and network is good
   public static final int BACKOFF_RETRIES = 5;
   public static final int SLOT_DURATION = 1; // 1 second
+  public static final int MAX_BATCH_SIZE = 1000; // operations sent by a single batch RPC
+  public static final long NOTIFY_SHUTDOWN_SECONDS = 5; // for the last skipped numbers to be sent
+  // servers are looked up again this often, well within the time a joined replica is forwarded to
+  public static final long MEMBERSHIP_REFRESH_SECONDS = 2;
 
   public static final String PHASE_1 = "take phase 1";
   public static final String PHASE_2 = "take phase 2";
@@ -37,31 +52,156 @@ public class Client {
   private final NameServerService nameServerService;
   private SequencerService sequencerService;
   private OrderedDelayer delayer;
+  private final OperationBatcher batcher; // null if operations aren't batched
+  private final AckPolicy ackPolicy; // servers a put or take waits for
+  private final AtomicLong seenSeqNumber = new AtomicLong(); // last applied operation seen
+  private final ExecutorService sender; // sends operations, may sleep on the server delays
+  private final ScheduledExecutorService hedger; // sends reads to the next server when due
+  private final ExecutorService notifier; // tells the servers about skips and epochs, in order
+  private final ScheduledExecutorService refresher; // looks the servers up again periodically
+  private final List<Consumer<List<ServerEntry>>> undelivered =
+      new ArrayList<>(); // notices kept while there are no servers, guarded by this
+  private final List<PendingOperation> pending = new ArrayList<>(); // batched, in issue order
+
+  /**
+   * Servers an operation is sent to and their delays, copied once per operation so that a lookup
+   * or a delay set while it is being sent doesn't mix two server lists.
+   */
+  private static class Recipients {
+    final List<ServerEntry> servers; // sorted by qualifier, indexed by the delayer
+    final OrderedDelayer delayer;
+
+    Recipients(List<ServerEntry> servers, OrderedDelayer delayer) {
+      this.servers = servers;
+      this.delayer = delayer;
+    }
+  }
+
+  /** Batched operation waiting for its batch to be answered */
+  private static class PendingOperation {
+    final String command;
+    final String args;
+    final CompletableFuture<String> result;
+
+    PendingOperation(String command, String args, CompletableFuture<String> result) {
+      this.command = command;
+      this.args = args;
+      this.result = result;
+    }
+  }
 
   public Client(
       String serviceName,
       String serviceQualifier,
       TuplesSpacesService tupleSpacesService,
       NameServerService nameServerService) {
+    this(serviceName, serviceQualifier, tupleSpacesService, nameServerService, 0);
+  }
+
+  /**
+   * @param batchWindowMillis puts and takes issued within this window are sent in a single batch,
+   *     0 to send every operation on its own
+   */
+  public Client(
+      String serviceName,
+      String serviceQualifier,
+      TuplesSpacesService tupleSpacesService,
+      NameServerService nameServerService,
+      long batchWindowMillis) {
+    this(
+        serviceName,
+        serviceQualifier,
+        tupleSpacesService,
+        nameServerService,
+        batchWindowMillis,
+        AckPolicy.ALL);
+  }
+
+  /**
+   * @param batchWindowMillis puts and takes issued within this window are sent in a single batch,
+   *     0 to send every operation on its own
+   * @param ackPolicy servers a put or take waits for before returning, the others are waited for
+   *     in the background
+   */
+  public Client(
+      String serviceName,
+      String serviceQualifier,
+      TuplesSpacesService tupleSpacesService,
+      NameServerService nameServerService,
+      long batchWindowMillis,
+      AckPolicy ackPolicy) {
     this.id = randomId();
     debug("Client ID: " + this.id);
     this.serviceName = serviceName;
     this.serviceQualifier = serviceQualifier;
     this.tupleSpacesService = tupleSpacesService;
     this.nameServerService = nameServerService;
-    this.sequencerService = new SequencerService();
-    setDelayer(3);
+    this.sequencerService = new SequencerService(this::skipSeqNumbers, this::announceEpoch);
+    setDelayer(tupleSpacesService.getServers().size());
+    this.sender =
+        Executors.newCachedThreadPool(
+            r -> {
+              Thread thread = new Thread(r, "Client-send");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.hedger =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "Client-hedge");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.notifier =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread thread = new Thread(r, "Client-notify");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.refresher =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "Client-refresh");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.refresher.scheduleWithFixedDelay(
+        this::refreshServers,
+        MEMBERSHIP_REFRESH_SECONDS,
+        MEMBERSHIP_REFRESH_SECONDS,
+        TimeUnit.SECONDS);
+    this.batcher =
+        batchWindowMillis > 0
+            ? new OperationBatcher(batchWindowMillis, MAX_BATCH_SIZE, this::sendBatch)
+            : null;
+    this.ackPolicy = ackPolicy;
   }
 
   /** Perform shutdown logic */
   public void shutdown() {
     debug("Client::shutdown");
+    awaitPending();
+    if (batcher != null) {
+      batcher.shutdown();
+    }
+    sender.shutdown();
+    hedger.shutdown();
+    refresher.shutdown();
+    sequencerService.shutdown(); // skips the numbers it leased but didn't use
+    notifier.shutdown();
+    try {
+      notifier.awaitTermination(NOTIFY_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
     nameServerService.shutdown();
     tupleSpacesService.shutdown();
+    ChannelRegistry.getInstance().shutdown();
   }
 
   /** Set delayer for current number of active servers */
-  public void setDelayer(int nrServers) {
+  public synchronized void setDelayer(int nrServers) {
     this.delayer = new OrderedDelayer(nrServers);
   }
 
@@ -73,11 +213,8 @@ public class Client {
             command, args, retries));
     // if no current servers, lookup in name server
     if (!tupleSpacesService.hasServers()) {
-      List<NameServerService.ServiceEntry> newServerEntries;
       try {
-        newServerEntries = nameServerService.lookup(serviceName, serviceQualifier);
-        tupleSpacesService.setServers(newServerEntries);
-        setDelayer(tupleSpacesService.getServers().size());
+        lookupServers();
       } catch (NameServerRPCFailureException e) {
         System.err.printf(
             "[ERROR] Failed communicating with name server. Error: %s\n", e.getMessage());
@@ -90,6 +227,18 @@ public class Client {
       }
     }
 
+    if (batcher != null && (command.equals(PUT) || command.equals(TAKE))) {
+      if (!isValidTupleOrSearchPattern(args)) {
+        System.err.printf(
+            "[ERROR] Invalid argument %s for command %s. Error: %s\n",
+            args, command, "Invalid tuple or search pattern");
+        return;
+      }
+      // answered by awaitPending, once its batch is sent
+      pending.add(new PendingOperation(command, args, batcher.submit(command, args)));
+      return;
+    }
+
     String result = "";
     try {
       result = execute(command, args);
@@ -101,14 +250,11 @@ public class Client {
           "[ERROR] Invalid argument %s for command %s. Error: %s\n", args, command, e.getMessage());
       return;
     } catch (SequencerServiceException e) {
-      System.err.printf(
-          "[ERROR] Couldn't get a sequence number from Sequencer Service. Error: %s\n",
-          e.getMessage());
-        this.sequencerService = new SequencerService();
+      onSequencerFailure(e);
       return;
     } catch (TupleSpacesServiceException e) {
       System.err.printf("[ERROR] Failed %s RPC. Error: %s\n", command, e.getMessage());
-      tupleSpacesService.removeServers(); // remove all servers
+      dropServers(); // remove all servers
       if (retries != 0) {
         System.err.println(
             "[WARN] Assuming all servers are shutdown (specification doesn't consider faulty servers)...");
@@ -123,6 +269,49 @@ public class Client {
       return;
     }
 
+    printResult(result);
+  }
+
+  /** Returns true if puts and takes are sent in batches, they are answered by awaitPending */
+  public boolean isBatching() {
+    return batcher != null;
+  }
+
+  /** Wait for the batched operations issued so far and print their results in issue order */
+  public void awaitPending() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    batcher.flush(); // nothing else can be issued before they are answered
+
+    boolean serversRemoved = false;
+    for (PendingOperation operation : pending) {
+      String result;
+      try {
+        result = operation.result.join();
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof SequencerServiceException) {
+          onSequencerFailure((SequencerServiceException) cause);
+        } else {
+          System.err.printf(
+              "[ERROR] Failed %s RPC. Error: %s\n", operation.command, cause.getMessage());
+          System.err.printf(
+              "[ERROR] Couldn't complete %s procedure with arguments %s, procedure aborted\n",
+              operation.command, operation.args);
+          if (!serversRemoved) {
+            dropServers(); // lookup again on the next command
+            serversRemoved = true;
+          }
+        }
+        continue;
+      }
+      printResult(result);
+    }
+    pending.clear();
+  }
+
+  private void printResult(String result) {
     System.out.println("OK");
     if (!result.isEmpty()) {
       System.out.println(result);
@@ -130,6 +319,14 @@ public class Client {
     System.out.println(); // print new line after result because thats what the examples do
   }
 
+  private void onSequencerFailure(SequencerServiceException e) {
+    System.err.printf(
+        "[ERROR] Couldn't get a sequence number from Sequencer Service. Error: %s\n",
+        e.getMessage());
+    sequencerService.shutdown();
+    this.sequencerService = new SequencerService(this::skipSeqNumbers, this::announceEpoch);
+  }
+
   private String execute(String command, String args)
       throws InvalidCommandException,
           InvalidArgumentException,
@@ -150,114 +347,518 @@ public class Client {
   }
 
   /**
-   * Simply calls TupleSpacesService put and waits on all responses, @see TupleSpacesService.put()
+   * Put a tuple without waiting for it. Puts and takes get their sequence number in the order they
+   * are issued, so every server applies them in that order however many are outstanding.
+   *
+   * @param tuple tuple to be put
+   * @return future completed once the tuple is put, or failed with an InvalidArgumentException, a
+   *     SequencerServiceException or a TupleSpacesServiceException
    */
-  private String put(String tuple) throws TupleSpacesServiceException, InvalidArgumentException, SequencerServiceException {
-    if (!isValidTupleOrSearchPattern(tuple)) throw new InvalidArgumentException("Invalid tuple");
+  public CompletableFuture<Void> putAsync(String tuple) {
+    return sequenced(PUT, tuple).thenApply(ignored -> null);
+  }
 
-    Integer seqNumber = getSequenceNumber();
-    ClientResponseCollector collector = new ClientResponseCollector();
-    for (Integer index : delayer) {
-      ServerEntry server = tupleSpacesService.getServer(index);
-      tupleSpacesService.put(
-          tuple,
-          seqNumber,
-          server,
-          new TupleSpacesStreamObserver<>(
-              PUT, server.getAddress(), server.getQualifier(), collector));
+  /**
+   * Take a tuple matching the given pattern without waiting for it, numbered like {@link
+   * #putAsync(String)}. It stays outstanding until a matching tuple is put.
+   *
+   * @param searchPattern pattern of the tuple to be taken
+   * @return future completed with the taken tuple, or failed like {@link #putAsync(String)}
+   */
+  public CompletableFuture<String> takeAsync(String searchPattern) {
+    return sequenced(TAKE, searchPattern);
+  }
+
+  /**
+   * Read a tuple matching the given pattern without waiting for it. Reads aren't sequenced, any
+   * server can answer them, so the read is sent to the server with the lowest estimated latency and
+   * hedged to the next ones only if it fails or is slower than usual (@see HedgedRead). The read
+   * carries the last applied sequence number the client saw in an answer, a server behind it
+   * waits to catch up before reading, so the read sees every operation the client got an answer
+   * for whichever server serves it. The read only fails if every server failed it. The calls are
+   * started in a cancellable context, cancelling it once the read is answered cancels the calls of
+   * the other servers, which drop their parked reader instead of holding it until a matching tuple
+   * is put. Servers with a delay are asked last, and not before their delay, as set when the read
+   * is issued.
+   *
+   * @param searchPattern pattern of the tuple to be read
+   * @return future completed with the read tuple, or failed with an InvalidArgumentException or a
+   *     TupleSpacesServiceException
+   */
+  public CompletableFuture<String> readAsync(String searchPattern) {
+    if (!isValidTupleOrSearchPattern(searchPattern)) {
+      return CompletableFuture.failedFuture(new InvalidArgumentException("Invalid search pattern"));
+    }
+    Recipients recipients;
+    try {
+      recipients = currentRecipients();
+    } catch (TupleSpacesServiceException e) {
+      return CompletableFuture.failedFuture(e);
     }
 
-    collector.waitAllResponses(tupleSpacesService.getServers().size());
-    if (!collector.getExceptions().isEmpty()) {
-      throw new TupleSpacesServiceException(collector.getExceptions().get(0).getMessage());
+    List<ServerEntry> servers = recipients.servers;
+    OrderedDelayer delayer = recipients.delayer;
+    List<ServerEntry> order = tupleSpacesService.byLatency(servers);
+    order.sort(Comparator.comparingInt(server -> delayer.getDelay(servers.indexOf(server))));
+    int[] delaysMillis = new int[order.size()];
+    for (int i = 0; i < order.size(); i++) {
+      delaysMillis[i] = delayer.getDelay(servers.indexOf(order.get(i))) * 1000;
     }
 
-    return ""; // put doesn't print any information
+    ClientResponseCollector collector = new ClientResponseCollector();
+    Context.CancellableContext context = Context.current().withCancellation();
+    return new HedgedRead(
+            tupleSpacesService,
+            hedger,
+            context,
+            collector,
+            searchPattern,
+            seenSeqNumber.get(),
+            order,
+            delaysMillis)
+        .start()
+        .whenComplete((ignored, t) -> context.cancel(null))
+        .thenApply(ignored -> seen(collector, firstResponse(collector)));
   }
 
   /**
-   * Simply calls TupleSpacesService read and waits for first response, @see
-   * TupleSpacesService.read()
+   * Get the tuples of a single server without waiting for them. Like a read, the server only
+   * copies them once it applied every operation the client got an answer for.
+   *
+   * @param qualifier qualifier of the server
+   * @param searchPattern only get the tuples matching it, every tuple if empty
+   * @return future completed with the tuples, formatted as a list, or failed with an
+   *     InvalidArgumentException or a TupleSpacesServiceException
    */
-  private String read(String searchPattern)
-      throws InvalidArgumentException, TupleSpacesServiceException {
-    if (!isValidTupleOrSearchPattern(searchPattern))
-      throw new InvalidArgumentException("Invalid search pattern");
+  public CompletableFuture<String> getTupleSpacesStateAsync(
+      String qualifier, String searchPattern) {
+    if (!searchPattern.isEmpty() && !isValidTupleOrSearchPattern(searchPattern)) {
+      return CompletableFuture.failedFuture(new InvalidArgumentException("Invalid search pattern"));
+    }
+    ServerEntry server;
+    synchronized (this) {
+      server = tupleSpacesService.getServer(qualifier);
+    }
+    if (server == null) {
+      return CompletableFuture.failedFuture(
+          new InvalidArgumentException(
+              String.format("No servers found for qualifier %s", qualifier)));
+    }
 
-    ExecutorService executor = Executors.newSingleThreadExecutor();
     ClientResponseCollector collector = new ClientResponseCollector();
-    executor.submit(
-        () -> {
-          for (Integer id : delayer) {
-            ServerEntry server = tupleSpacesService.getServer(id);
-            tupleSpacesService.read(
-                searchPattern,
-                server,
-                new TupleSpacesStreamObserver<>(
-                    READ, server.getAddress(), server.getQualifier(), collector));
-          }
-        });
+    tupleSpacesService.getTupleSpacesState(
+        searchPattern,
+        seenSeqNumber.get(),
+        server,
+        new TupleSpacesStateStreamObserver(server.getAddress(), server.getQualifier(), collector));
+    return collector.whenAnswered(1, 1).thenApply(ignored -> firstResponse(collector));
+  }
 
-    collector.waitAllResponses(1);
-    if (!collector.getExceptions().isEmpty()) {
-      executor.shutdown();
-      throw new TupleSpacesServiceException(collector.getExceptions().get(0).getMessage());
+  /**
+   * Get a sequence number for a put or take and send it to every server with it. The number is
+   * asked for before returning, the sequencer service hands them out in the order they are asked
+   * for, so operations are numbered in issue order.
+   *
+   * @param command PUT or TAKE
+   * @param argument tuple or search pattern
+   * @return future completed with the operation result once the ack policy quorum answered
+   */
+  private CompletableFuture<String> sequenced(String command, String argument) {
+    if (!isValidTupleOrSearchPattern(argument)) {
+      return CompletableFuture.failedFuture(
+          new InvalidArgumentException(
+              command.equals(PUT) ? "Invalid tuple" : "Invalid search pattern"));
+    }
+    if (batcher != null) {
+      return batcher.submit(command, argument); // numbered in submission order by the batcher
+    }
+    Recipients recipients;
+    try {
+      recipients = currentRecipients();
+    } catch (TupleSpacesServiceException e) {
+      return CompletableFuture.failedFuture(e);
     }
 
-    executor.shutdown();
-    return collector.getResponses().get(0);
+    return sequencerService
+        .getSeqNumberAsync()
+        .handle(
+            (seqNumber, t) -> {
+              if (t != null) {
+                Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+                System.err.println("Failed to get sequence number");
+                System.err.println(cause.getMessage());
+                throw new CompletionException(new SequencerServiceException(cause.getMessage()));
+              }
+              return seqNumber;
+            })
+        .thenComposeAsync(seqNumber -> send(command, argument, seqNumber, recipients), sender);
+  }
+
+  /**
+   * Send a sequenced operation to every server, called by a sender thread since it sleeps on the
+   * server delays.
+   *
+   * @param recipients servers and delays copied when the operation was issued
+   * @return future completed with the operation result once the ack policy quorum answered
+   */
+  private CompletableFuture<String> send(
+      String command, String argument, long seqNumber, Recipients recipients) {
+    List<ServerEntry> servers = recipients.servers;
+    ClientResponseCollector collector = new ClientResponseCollector();
+    for (Integer index : recipients.delayer) {
+      ServerEntry server = servers.get(index);
+      if (command.equals(PUT)) {
+        tupleSpacesService.put(
+            argument,
+            seqNumber,
+            server,
+            new TupleSpacesStreamObserver<>(
+                PUT, server.getAddress(), server.getQualifier(), collector));
+      } else {
+        tupleSpacesService.take(
+            argument,
+            seqNumber,
+            server,
+            new TupleSpacesStreamObserver<>(
+                TAKE, server.getAddress(), server.getQualifier(), collector));
+      }
+    }
+
+    // put doesn't print any information, every server takes the same tuple
+    return acked(collector, servers.size())
+        .thenApply(ignored -> seen(collector, firstResponse(collector)));
+  }
+
+  /** Simply waits for putAsync, @see TupleSpacesService.put() */
+  private String put(String tuple)
+      throws TupleSpacesServiceException, InvalidArgumentException, SequencerServiceException {
+    await(putAsync(tuple));
+    return ""; // put doesn't print any information
+  }
+
+  /** Simply waits for readAsync, @see TupleSpacesService.read() */
+  private String read(String searchPattern)
+      throws InvalidArgumentException, TupleSpacesServiceException, SequencerServiceException {
+    return await(readAsync(searchPattern));
   }
 
-  /** Perform 2 step XuLiskov take operation */
+  /** Simply waits for takeAsync, @see TupleSpacesService.take() */
   private String take(String searchPattern)
       throws TupleSpacesServiceException, InvalidArgumentException, SequencerServiceException {
-    if (!isValidTupleOrSearchPattern(searchPattern))
-      throw new InvalidArgumentException("Invalid search pattern");
+    return await(takeAsync(searchPattern));
+  }
 
-    Integer seqNumber = getSequenceNumber();
-    ClientResponseCollector collector = new ClientResponseCollector();
-    for (Integer index : delayer) {
-      ServerEntry server = tupleSpacesService.getServer(index);
-      tupleSpacesService.take(
-          searchPattern,
-          seqNumber,
-          server,
-          new TupleSpacesStreamObserver<>(
-              TAKE, server.getAddress(), server.getQualifier(), collector));
+  /**
+   * Wait for an operation of the async API, rethrowing its failure as the checked exception it
+   * carries.
+   *
+   * @param result future returned by the async API
+   * @return operation result
+   */
+  private static <T> T await(CompletableFuture<T> result)
+      throws InvalidArgumentException, SequencerServiceException, TupleSpacesServiceException {
+    try {
+      return result.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof InvalidArgumentException) {
+        throw (InvalidArgumentException) cause;
+      } else if (cause instanceof SequencerServiceException) {
+        throw (SequencerServiceException) cause;
+      } else if (cause instanceof TupleSpacesServiceException) {
+        throw (TupleSpacesServiceException) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Wait for the ack policy quorum to answer a sequenced operation, without blocking. The other
+   * servers are waited for in the background and their failures reported. A server that didn't
+   * get the operation repairs it from the ones that applied it, so the operation only failed if
+   * none of them did, which the quorum can't tell apart from a slow server until every server
+   * answered.
+   *
+   * @param collector collector of the answers of every server
+   * @param servers number of servers the operation was sent to
+   * @return future completed once the quorum responded, or once every server answered
+   */
+  private CompletableFuture<Void> acked(ClientResponseCollector collector, int servers) {
+    collector.whenAnswered(servers, servers).thenRun(() -> reportFailures(collector));
+    return collector.whenAnswered(ackPolicy.quorum(servers), servers);
+  }
+
+  /** Report the servers that failed a sequenced operation another server applied */
+  private static void reportFailures(ClientResponseCollector collector) {
+    if (collector.getResponses().isEmpty()) {
+      return; // the operation failed, the caller gets the failure
+    }
+    for (Exception e : collector.getExceptions()) {
+      System.err.printf("[WARN] %s, the server fetches it from its peers\n", e.getMessage());
+    }
+  }
+
+  /**
+   * Remember the last applied sequence number the servers answered with, before the caller gets
+   * the answer, so that its next reads wait for it.
+   *
+   * @param collector collector of the answers
+   * @param result result of the operation, returned as is
+   * @return the given result
+   */
+  private <T> T seen(ClientResponseCollector collector, T result) {
+    seenSeqNumber.accumulateAndGet(collector.getAppliedSeqNumber(), Math::max);
+    return result;
+  }
+
+  /** Get the first response saved, failing with the first exception if there is none */
+  private static String firstResponse(ClientResponseCollector collector) {
+    if (collector.getResponses().isEmpty()) {
+      throw new CompletionException(
+          new TupleSpacesServiceException(collector.getExceptions().get(0).getMessage()));
     }
+    return collector.getResponses().get(0);
+  }
 
-    collector.waitAllResponses(tupleSpacesService.getServers().size());
-    if (!collector.getExceptions().isEmpty()) {
-      throw new TupleSpacesServiceException(collector.getExceptions().get(0).getMessage());
+  /**
+   * Get the servers an operation is sent to, looking them up in the name server if there are none.
+   *
+   * @return copy of the server list, sorted by qualifier, and of their delays
+   * @throws TupleSpacesServiceException if the name server is unreachable or has no servers
+   */
+  private synchronized Recipients currentRecipients() throws TupleSpacesServiceException {
+    if (!tupleSpacesService.hasServers()) {
+      try {
+        lookupServers();
+      } catch (NameServerRPCFailureException | NameServerNoServersException e) {
+        throw new TupleSpacesServiceException(e.getMessage());
+      }
     }
+    return new Recipients(List.copyOf(tupleSpacesService.getServers()), delayer.copy());
+  }
 
-    return collector.getResponses().get(0); // put doesn't print any information
+  /** Replace the (empty) server list by the servers registered in the name server */
+  private synchronized void lookupServers()
+      throws NameServerRPCFailureException, NameServerNoServersException {
+    tupleSpacesService.setServers(nameServerService.lookup(serviceName, serviceQualifier));
+    setDelayer(tupleSpacesService.getServers().size());
+    if (!undelivered.isEmpty() && !notifier.isShutdown()) {
+      notifier.execute(() -> deliver(null)); // kept while there were no servers
+    }
   }
 
   /**
-   * Simply TupleSpacesService getTupleSpacesState on server with specified qualifier, @see
-   * TupleSpacesService.getTupleSpacesState()
+   * Look the servers up again and replace the server list if a replica joined or left, the servers
+   * that stay keep their delays. Only the first operation looks the servers up otherwise, and a
+   * replica that joined afterwards is only forwarded this client's operations for a few seconds
+   * after catching up. The lookup is done without holding the lock, so operations aren't held up by
+   * the name server. While there are no servers, the next operation looks them up instead.
    */
-  private String getTupleSpacesState(String serviceQualifier)
-      throws InvalidArgumentException, TupleSpacesServiceException {
+  private void refreshServers() {
+    List<NameServerService.ServiceEntry> registered;
+    try {
+      registered = nameServerService.lookup(serviceName, serviceQualifier);
+    } catch (NameServerRPCFailureException | NameServerNoServersException e) {
+      debug(String.format("Client::refreshServers: %s", e.getMessage()));
+      return;
+    }
+    synchronized (this) {
+      List<ServerEntry> previous = tupleSpacesService.getServers();
+      if (previous.isEmpty() || !tupleSpacesService.replaceServers(registered)) {
+        return;
+      }
+      List<ServerEntry> servers = tupleSpacesService.getServers();
+      OrderedDelayer previousDelayer = delayer;
+      setDelayer(servers.size());
+      for (int i = 0; i < servers.size(); i++) {
+        for (int j = 0; j < previous.size(); j++) {
+          if (previous.get(j).getQualifier().equals(servers.get(i).getQualifier())) {
+            delayer.setDelay(i, previousDelayer.getDelay(j));
+          }
+        }
+      }
+      debug(String.format("Client::refreshServers: servers=%s", servers));
+    }
+  }
 
-    ServerEntry server = tupleSpacesService.getServer(serviceQualifier);
-    if (server == null)
-      throw new InvalidArgumentException(
-          String.format("No servers found for qualifier %s", serviceQualifier));
+  /** Drop every server, they are looked up again by the next operation */
+  private synchronized void dropServers() {
+    tupleSpacesService.removeServers();
+  }
 
+  /**
+   * Send a batch of puts or takes under a single block of sequence numbers, every server applies
+   * the whole block in one pass. Called by the batcher thread, which only waits for the sequence
+   * numbers, so the next batch is sent while this one waits for its answers. Servers with a delay
+   * are sent the batch by the hedger once their delay is over, as set when the batch was issued.
+   *
+   * @param command PUT or TAKE
+   * @param arguments tuples or search patterns, in issue order
+   * @return future completed with the result of each operation, in issue order, once the ack policy
+   *     quorum answered
+   */
+  private CompletableFuture<List<String>> sendBatch(String command, List<String> arguments)
+      throws TupleSpacesServiceException, SequencerServiceException {
+    Recipients recipients = currentRecipients();
+    Long firstSeqNumber = getSequenceNumbers(arguments.size());
     ClientResponseCollector collector = new ClientResponseCollector();
-    tupleSpacesService.getTupleSpacesState(
-        server,
-        new TupleSpacesStreamObserver<>(
-            GET_TUPLE_SPACES_STATE, server.getAddress(), server.getQualifier(), collector));
+    for (int index = 0; index < recipients.servers.size(); index++) {
+      ServerEntry server = recipients.servers.get(index);
+      Runnable send = () -> sendBatch(command, arguments, firstSeqNumber, server, collector);
+      int delay = recipients.delayer.getDelay(index);
+      if (delay > 0) {
+        hedger.schedule(send, delay, TimeUnit.SECONDS);
+      } else {
+        send.run();
+      }
+    }
+
+    return acked(collector, recipients.servers.size())
+        .thenApply(
+            ignored -> {
+              seen(collector, firstResponse(collector));
+              if (command.equals(PUT)) {
+                // put doesn't print any information
+                return Collections.nCopies(arguments.size(), "");
+              }
+              return collector.getResults().get(0); // every server takes the same tuples
+            });
+  }
 
-    collector.waitAllResponses(1);
-    if (!collector.getExceptions().isEmpty()) {
-      throw new TupleSpacesServiceException(collector.getExceptions().get(0).getMessage());
+  /** Send a batch of puts or takes to a single server, its answer is saved by the collector */
+  private void sendBatch(
+      String command,
+      List<String> arguments,
+      long firstSeqNumber,
+      ServerEntry server,
+      ClientResponseCollector collector) {
+    if (command.equals(PUT)) {
+      tupleSpacesService.putBatch(
+          arguments,
+          firstSeqNumber,
+          server,
+          new TupleSpacesStreamObserver<>(
+              PUT_BATCH, server.getAddress(), server.getQualifier(), collector));
+    } else {
+      tupleSpacesService.takeBatch(
+          arguments,
+          firstSeqNumber,
+          server,
+          new TupleSpacesStreamObserver<>(
+              TAKE_BATCH, server.getAddress(), server.getQualifier(), collector));
     }
+  }
 
-    return collector.getResponses().get(0);
+  /**
+   * Send a notice to every server from the notifier thread, so that the sequencer service callbacks
+   * never wait for the servers or the name server. Notices are sent in the order they are given. A
+   * notice without any server known or found in the name server is kept until servers are found.
+   *
+   * @param notice sends the notice to the given servers and waits for their answers
+   */
+  private void notifyServers(Consumer<List<ServerEntry>> notice) {
+    notifier.execute(() -> deliver(notice));
+  }
+
+  /** Send the kept notices and then the given one, if any, called by the notifier thread */
+  private void deliver(Consumer<List<ServerEntry>> notice) {
+    List<Consumer<List<ServerEntry>>> notices;
+    List<ServerEntry> servers;
+    synchronized (this) {
+      if (notice != null) {
+        undelivered.add(notice);
+      }
+      if (undelivered.isEmpty()) {
+        return;
+      }
+      try {
+        servers = currentRecipients().servers;
+      } catch (TupleSpacesServiceException e) {
+        System.err.printf(
+            "[WARN] No servers to notify, sending once they are found. Error: %s\n",
+            e.getMessage());
+        return;
+      }
+      notices = new ArrayList<>(undelivered);
+      undelivered.clear();
+    }
+    for (Consumer<List<ServerEntry>> kept : notices) {
+      kept.accept(servers);
+    }
+  }
+
+  /**
+   * Skip leased sequence numbers that won't carry any operation on every server, so the operations
+   * of other clients numbered after them aren't held back. Called by the sequencer service, the
+   * servers are told in the background.
+   *
+   * @param firstSeqNumber first unused sequence number
+   * @param count number of unused sequence numbers
+   */
+  private void skipSeqNumbers(long firstSeqNumber, int count) {
+    notifyServers(
+        servers -> {
+          ClientResponseCollector collector = new ClientResponseCollector();
+          for (ServerEntry server : servers) {
+            tupleSpacesService.skip(
+                firstSeqNumber,
+                count,
+                server,
+                new TupleSpacesStreamObserver<>(
+                    SKIP, server.getAddress(), server.getQualifier(), collector));
+          }
+
+          collector.waitAllResponses(servers.size());
+          for (Exception e : collector.getExceptions()) {
+            System.err.printf(
+                "[WARN] Failed to skip %d unused sequence numbers. Error: %s\n",
+                count, e.getMessage());
+          }
+        });
+  }
+
+  /**
+   * Tell every server about a new sequencer epoch, so they resolve the numbers of the previous epoch
+   * that the restarted sequencer never granted. Called by the sequencer service when it first sees
+   * the epoch, the servers are told in the background. Operations of the epoch may reach a server
+   * first, it holds them until the numbers before the epoch are resolved.
+   *
+   * @param epoch sequencer epoch
+   * @param firstSeqNumber first sequence number of the epoch
+   */
+  private void announceEpoch(long epoch, long firstSeqNumber) {
+    debug(
+        String.format(
+            "Client::announceEpoch: epoch=%d, firstSeqNumber=%d", epoch, firstSeqNumber));
+    notifyServers(
+        servers -> {
+          ClientResponseCollector collector = new ClientResponseCollector();
+          for (ServerEntry server : servers) {
+            tupleSpacesService.newEpoch(
+                epoch,
+                firstSeqNumber,
+                server,
+                new TupleSpacesStreamObserver<>(
+                    NEW_EPOCH, server.getAddress(), server.getQualifier(), collector));
+          }
+
+          collector.waitAllResponses(servers.size());
+          for (Exception e : collector.getExceptions()) {
+            System.err.printf(
+                "[WARN] Failed to announce epoch %d. Error: %s\n", epoch, e.getMessage());
+          }
+        });
+  }
+
+  /**
+   * Simply waits for getTupleSpacesStateAsync, @see TupleSpacesService.getTupleSpacesState()
+   *
+   * @param args server qualifier, optionally followed by a search pattern filtering the tuples
+   */
+  private String getTupleSpacesState(String args)
+      throws InvalidArgumentException, TupleSpacesServiceException, SequencerServiceException {
+    String[] split = args.split(" ", 2);
+    return await(getTupleSpacesStateAsync(split[0], split.length > 1 ? split[1] : ""));
   }
 
   /**
@@ -276,7 +877,7 @@ public class Client {
    * @param qualifier server to set the delay
    * @param delay delay in seconds
    */
-  public void setDelay(int qualifier, int delay) {
+  public synchronized void setDelay(int qualifier, int delay) {
     delayer.setDelay(qualifier, delay);
   }
 
@@ -291,15 +892,13 @@ public class Client {
     return (int) (mostSignificantBits & Integer.MAX_VALUE);
   }
 
-  private Integer getSequenceNumber() throws SequencerServiceException {
-    Integer seq = null;
+  private Long getSequenceNumbers(int count) throws SequencerServiceException {
     try {
-      seq = sequencerService.getSeqNumber();
+      return sequencerService.getSeqNumbers(count);
     } catch (StatusRuntimeException e) {
-      System.err.println("Failed to get sequence number");
+      System.err.println("Failed to get sequence numbers");
       System.err.println(e.getMessage());
       throw new SequencerServiceException(e.getMessage());
     }
-    return seq;
   }
 }
@@ -6,6 +6,7 @@ import java.util.List;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.*;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.exceptions.NameServerNoServersException;
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.exceptions.NameServerRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.client.util.AckPolicy;
 
 public class ClientMain {
   public static final String serviceName = "TupleSpaces";
@@ -19,7 +20,7 @@ public class ClientMain {
 
   private static void printUsage() {
     System.err.println(
-        "Usage: mvn exec:java -Dexec.args=\"[ns_host] [ns_port] [-h] [-d]\"\n"
+        "Usage: mvn exec:java -Dexec.args=\"[ns_host] [ns_port] [-h] [-d] [-batch <ms>] [-ack <policy>]\"\n"
             + "\n"
             + "Client for TupleSpace distributed network\n"
             + "\n"
@@ -28,15 +29,23 @@ public class ClientMain {
             + "  ns_port     Name server port            (default: 5001)\n"
             + "Options:\n"
             + "  -h, -help   Show this message and exit\n"
-            + "  -d, -debug  Run in debug mode");
+            + "  -d, -debug  Run in debug mode\n"
+            + "  -b, -batch <ms>\n"
+            + "              Send puts and takes issued within <ms> milliseconds in a single\n"
+            + "              batch, their results are printed before the next other command\n"
+            + "  -a, -ack <first|majority|all>\n"
+            + "              Servers a put or take waits for before returning, the others are\n"
+            + "              waited for in the background (default: all)");
   }
 
   public static void main(String[] args) {
     String nsHost = "localhost"; // default ns_host argument value
     String nsPort = "5001"; // default ns_port argument value
+    long batchWindowMillis = 0; // operations aren't batched by default
+    AckPolicy ackPolicy = AckPolicy.ALL; // operations wait for every server by default
 
     // check for too much arguments (it will make no sense of positional arguments)
-    if (args.length > 3) {
+    if (args.length > 7) {
       System.err.println("Too many arguments provided");
       printUsage();
       System.exit(1);
@@ -57,6 +66,31 @@ public class ClientMain {
           case "--debug":
             DEBUG_MODE = true;
             break;
+          case "-b":
+          case "-batch":
+          case "--batch":
+            try {
+              batchWindowMillis = Long.parseLong(args[++i]);
+              if (batchWindowMillis <= 0) {
+                throw new NumberFormatException();
+              }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+              System.err.println("Invalid batch window, expected a positive number of ms");
+              printUsage();
+              System.exit(1);
+            }
+            break;
+          case "-a":
+          case "-ack":
+          case "--ack":
+            try {
+              ackPolicy = AckPolicy.parse(args[++i]);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+              System.err.println("Invalid ack policy, expected first, majority or all");
+              printUsage();
+              System.exit(1);
+            }
+            break;
           default:
             System.err.println("Unknown option: " + args[i]);
             printUsage();
@@ -75,6 +109,8 @@ public class ClientMain {
     debug("Running with arguments:");
     debug(String.format("ns_host: %s", nsHost));
     debug(String.format("ns_port: %s", nsPort));
+    debug(String.format("batch window: %d ms", batchWindowMillis));
+    debug(String.format("ack policy: %s", ackPolicy));
 
     // validate port argument
     int nsPortInt;
@@ -97,10 +133,15 @@ public class ClientMain {
 
     final String nsAddr = nsHost + ":" + nsPort;
     // entry point
-    run(nsAddr, serviceName, "");
+    run(nsAddr, serviceName, "", batchWindowMillis, ackPolicy);
   }
 
-  public static void run(String nsAddr, String serviceName, String serviceQualifier) {
+  public static void run(
+      String nsAddr,
+      String serviceName,
+      String serviceQualifier,
+      long batchWindowMillis,
+      AckPolicy ackPolicy) {
     TuplesSpacesService tuplesSpacesService;
 
     NameServerService nameServerService = new NameServerService(nsAddr);
@@ -115,11 +156,18 @@ public class ClientMain {
       System.err.println("[ERROR] Failed communicating with name server");
       System.err.println("[ERROR] " + e.getMessage());
       nameServerService.shutdown();
+      ChannelRegistry.getInstance().shutdown();
       return;
     }
 
     Client client =
-        new Client(serviceName, serviceQualifier, tuplesSpacesService, nameServerService);
+        new Client(
+            serviceName,
+            serviceQualifier,
+            tuplesSpacesService,
+            nameServerService,
+            batchWindowMillis,
+            ackPolicy);
     CommandProcessor parser = new CommandProcessor(client);
     // start reading input
     parser.parseInput();
@@ -18,6 +18,10 @@ public class CommandProcessor {
   private static final String CLEAR = "clear";
   private static final String EXIT = "exit";
   public static final String GET_TUPLE_SPACES_STATE = "getTupleSpacesState";
+  public static final String PUT_BATCH = "putBatch"; // procedures of batched puts and takes
+  public static final String TAKE_BATCH = "takeBatch";
+  public static final String SKIP = "skip"; // procedure releasing unused sequence numbers
+  public static final String NEW_EPOCH = "newEpoch"; // procedure announcing a sequencer restart
 
   private final Client client;
   private final OrderedDelayer orderedDelayer;
@@ -36,6 +40,10 @@ public class CommandProcessor {
       System.out.print("> ");
       String line = scanner.nextLine().trim();
       String[] split = line.split(SPACE);
+      // batched puts and takes are answered in issue order before any other command runs
+      if (!isBatched(split)) {
+        client.awaitPending();
+      }
       switch (split[0]) {
         case PUT:
           this.put(split);
@@ -116,14 +124,15 @@ public class CommandProcessor {
   }
 
   private void getTupleSpacesState(String[] split) {
-    if (split.length != 2) {
+    if (split.length != 2 && split.length != 3) {
       this.printUsage();
       return;
     }
 
-    String qualifier = split[1];
+    // the qualifier, optionally followed by a search pattern
+    String args = split.length == 3 ? split[1] + " " + split[2] : split[1];
 
-    client.executeTupleSpacesCommand(GET_TUPLE_SPACES_STATE, qualifier, RPC_RETRIES);
+    client.executeTupleSpacesCommand(GET_TUPLE_SPACES_STATE, args, RPC_RETRIES);
   }
 
   private void sleep(String[] split) {
@@ -192,13 +201,22 @@ public class CommandProcessor {
             + "- put <element[,more_elements]>\n"
             + "- read <element[,more_elements]>\n"
             + "- take <element[,more_elements]>\n"
-            + "- getTupleSpacesState <server>\n"
+            + "- getTupleSpacesState <server> [pattern]\n"
             + "- sleep <integer>\n"
             + "- setdelay <server> <integer>\n"
             + "- clear\n"
             + "- exit\n");
   }
 
+  /** Returns true if the command is a valid put or take the client sends in a batch */
+  private boolean isBatched(String[] split) {
+    return client.isBatching()
+        && (split[0].equals(PUT) || split[0].equals(TAKE))
+        && split.length == 2
+        && split[1].startsWith(BGN_TUPLE)
+        && split[1].endsWith(END_TUPLE);
+  }
+
   private boolean inputIsValid(String[] input) {
     if (input.length < 2
         || !input[1].startsWith(BGN_TUPLE)
@@ -0,0 +1,133 @@
+package pt.ulisboa.tecnico.tuplespaces.client;
+
+import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
+import static pt.ulisboa.tecnico.tuplespaces.client.CommandProcessor.READ;
+
+import io.grpc.Context;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import pt.ulisboa.tecnico.tuplespaces.client.grpc.TupleSpacesStreamObserver;
+import pt.ulisboa.tecnico.tuplespaces.client.grpc.TuplesSpacesService;
+import pt.ulisboa.tecnico.tuplespaces.client.grpc.TuplesSpacesService.ServerEntry;
+import pt.ulisboa.tecnico.tuplespaces.client.util.ClientResponseCollector;
+
+/**
+ * Read sent to one server at a time, in the given order. The next server is only asked once the
+ * previous one failed, or didn't answer within the 95th percentile of its recent round trips, so a
+ * read usually costs a single call, while a replica stalling on GC or disk only delays it by its
+ * usual round trip. Calls are started in the given context, the caller cancels it once the read is
+ * answered, cancelling the calls still outstanding and the hedges not sent yet.
+ */
+class HedgedRead {
+  public static final double HEDGE_PERCENTILE = 95;
+  public static final long MIN_HEDGE_MILLIS = 1; // below it hedging is a broadcast anyway
+  public static final long DEFAULT_HEDGE_MILLIS = 10; // for servers without a round trip yet
+
+  private final TuplesSpacesService tupleSpacesService;
+  private final ScheduledExecutorService scheduler;
+  private final Context.CancellableContext context;
+  private final ClientResponseCollector collector;
+  private final String searchPattern;
+  private final long minSeqNumber; // servers only read once they applied it
+  private final List<ServerEntry> order;
+  private final int[] delaysMillis; // delay of each server, counted from the read start
+  private final long startNanos = System.nanoTime();
+  private int sent = 0; // servers the read was sent or scheduled to, guarded by this
+
+  /**
+   * @param minSeqNumber last sequence number the client saw applied, 0 if none
+   * @param order servers in the order they are asked
+   * @param delaysMillis delay of each server in the given order, counted from the read start,
+   *     hedges to it aren't sent earlier
+   */
+  HedgedRead(
+      TuplesSpacesService tupleSpacesService,
+      ScheduledExecutorService scheduler,
+      Context.CancellableContext context,
+      ClientResponseCollector collector,
+      String searchPattern,
+      long minSeqNumber,
+      List<ServerEntry> order,
+      int[] delaysMillis) {
+    this.tupleSpacesService = tupleSpacesService;
+    this.scheduler = scheduler;
+    this.context = context;
+    this.collector = collector;
+    this.searchPattern = searchPattern;
+    this.minSeqNumber = minSeqNumber;
+    this.order = order;
+    this.delaysMillis = delaysMillis;
+  }
+
+  /**
+   * Send the read to the first server.
+   *
+   * @return future completed once a server answered, or once every server failed
+   */
+  CompletableFuture<Void> start() {
+    CompletableFuture<Void> answered = collector.whenAnswered(1, order.size());
+    sendNext(0);
+    return answered;
+  }
+
+  /**
+   * Send the read to the next server, unless it was already answered or sent to it.
+   *
+   * @param index position of the next server, a hedge or failure past it was already handled
+   */
+  private void sendNext(int index) {
+    synchronized (this) {
+      if (sent != index || sent == order.size()) {
+        return;
+      }
+      sent++;
+    }
+    if (context.isCancelled() || !collector.getResponses().isEmpty()) {
+      return;
+    }
+    long waitMillis =
+        delaysMillis[index] - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    if (waitMillis > 0) {
+      scheduler.schedule(() -> send(index), waitMillis, TimeUnit.MILLISECONDS);
+    } else {
+      send(index);
+    }
+  }
+
+  private void send(int index) {
+    if (context.isCancelled()) {
+      return;
+    }
+    ServerEntry server = order.get(index);
+    long hedgeNanos = hedgeNanos(server);
+    debug(
+        String.format(
+            "HedgedRead::send: server=%s, hedgeMicros=%d",
+            server, TimeUnit.NANOSECONDS.toMicros(hedgeNanos)));
+    context.run(
+        () ->
+            tupleSpacesService.read(
+                searchPattern,
+                minSeqNumber,
+                server,
+                new TupleSpacesStreamObserver<>(
+                    READ, server.getAddress(), server.getQualifier(), collector)));
+    if (index + 1 < order.size()) {
+      // every server asked so far failed, or this one is slower than usual
+      collector.whenAnswered(1, index + 1).thenRun(() -> sendNext(index + 1));
+      scheduler.schedule(() -> sendNext(index + 1), hedgeNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Returns how long to wait for the server before asking the next one */
+  private static long hedgeNanos(ServerEntry server) {
+    if (server.latency.isEmpty()) {
+      return TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_MILLIS);
+    }
+    return Math.max(
+        TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_MILLIS),
+        server.latency.getPercentileNanos(HEDGE_PERCENTILE));
+  }
+}
@@ -0,0 +1,145 @@
+package pt.ulisboa.tecnico.tuplespaces.client.grpc;
+
+import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channels of the client, shared by every service talking to the same address.
+ *
+ * <p>Channels are reference counted. A channel nobody holds anymore is kept open for a while, so
+ * that dropping the servers after a failure and looking them up again, or recreating the sequencer
+ * service, reuses the connection instead of paying TCP and HTTP/2 setup on the next operation.
+ * Channels start connecting as soon as they are acquired, and one that failed to connect retries
+ * right away when acquired again instead of waiting for its reconnect backoff.
+ *
+ * <p>Channels never go idle, and ping their server while calls are outstanding, so a server that
+ * died under a parked read or take is noticed. Servers refuse pings more frequent than every 5
+ * minutes, or on connections without calls, by default.
+ */
+public class ChannelRegistry {
+  public static final long KEEPALIVE_MINUTES = 5; // the default minimum servers accept
+  public static final long KEEPALIVE_TIMEOUT_SECONDS = 20;
+  public static final long IDLE_TIMEOUT_DAYS = 31; // over 30 days disables idle mode
+  public static final long UNUSED_SECONDS = 60; // unreferenced channels are kept open this long
+
+  private static final ChannelRegistry instance = new ChannelRegistry();
+
+  /** Channel to an address and the number of holders */
+  private static class Entry {
+    final ManagedChannel channel;
+    int references = 0;
+    long releasedAt = 0; // when the last holder released it, in nanoseconds
+
+    Entry(ManagedChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final Map<String, Entry> channels = new HashMap<>(); // by address
+  private final ScheduledExecutorService closer =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "ChannelRegistry-close");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** Returns the registry shared by every service of the client */
+  public static ChannelRegistry getInstance() {
+    return instance;
+  }
+
+  /**
+   * Get the channel to an address, creating it if there is none, and start connecting it. Every
+   * acquired channel must be released once.
+   *
+   * @param address server address, host:port
+   * @return channel to the address
+   */
+  public synchronized ManagedChannel acquire(String address) {
+    Entry entry = channels.get(address);
+    if (entry == null) {
+      debug(String.format("ChannelRegistry::acquire: creating channel to %s", address));
+      entry =
+          new Entry(
+              ManagedChannelBuilder.forTarget(address)
+                  .usePlaintext()
+                  .keepAliveTime(KEEPALIVE_MINUTES, TimeUnit.MINUTES)
+                  .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                  .idleTimeout(IDLE_TIMEOUT_DAYS, TimeUnit.DAYS)
+                  .build());
+      channels.put(address, entry);
+    }
+    entry.references++;
+
+    ConnectivityState state = entry.channel.getState(true); // connects an idle channel
+    if (state == ConnectivityState.TRANSIENT_FAILURE) {
+      entry.channel.resetConnectBackoff(); // the caller is about to use it
+    }
+    debug(
+        String.format(
+            "ChannelRegistry::acquire: address=%s, state=%s, references=%d",
+            address, state, entry.references));
+    return entry.channel;
+  }
+
+  /**
+   * Release a channel acquired before. It is closed if nobody acquired it again for a while.
+   *
+   * @param address server address the channel was acquired for
+   */
+  public synchronized void release(String address) {
+    Entry entry = channels.get(address);
+    if (entry == null || entry.references == 0) {
+      return; // already closed by shutdown
+    }
+    entry.references--;
+    debug(
+        String.format(
+            "ChannelRegistry::release: address=%s, references=%d", address, entry.references));
+    if (entry.references == 0) {
+      long releasedAt = System.nanoTime();
+      entry.releasedAt = releasedAt;
+      closer.schedule(() -> closeUnused(address, releasedAt), UNUSED_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  /** Close every channel, whether it is still held or not */
+  public void shutdown() {
+    List<ManagedChannel> closed;
+    synchronized (this) {
+      closed = new ArrayList<>();
+      for (Entry entry : channels.values()) {
+        closed.add(entry.channel);
+      }
+      channels.clear();
+    }
+    debug(String.format("ChannelRegistry::shutdown: channels=%d", closed.size()));
+    closed.forEach(ManagedChannel::shutdown);
+  }
+
+  /** Close a channel still unreferenced since the given release */
+  private void closeUnused(String address, long releasedAt) {
+    ManagedChannel channel;
+    synchronized (this) {
+      Entry entry = channels.get(address);
+      if (entry == null || entry.references > 0 || entry.releasedAt != releasedAt) {
+        return; // acquired again since
+      }
+      channels.remove(address);
+      channel = entry.channel;
+    }
+    debug(String.format("ChannelRegistry::closeUnused: address=%s", address));
+    channel.shutdown();
+  }
+}
@@ -3,7 +3,6 @@ package pt.ulisboa.tecnico.tuplespaces.client.grpc;
 import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
 
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -34,14 +33,14 @@ public class NameServerService {
   /** Create channel and stub for name server. */
   private void setup() {
     debug(String.format("NameServerService::connect %s", this));
-    this.channel = ManagedChannelBuilder.forTarget(this.address).usePlaintext().build();
+    this.channel = ChannelRegistry.getInstance().acquire(this.address);
     this.stub = NameServerGrpc.newBlockingStub(this.channel);
   }
 
   /** Perform name server shutdown logic. */
   public void shutdown() {
     debug(String.format("NameServerService::shutdown %s", this));
-    this.channel.shutdown();
+    ChannelRegistry.getInstance().release(this.address);
   }
 
   @Override
@@ -3,39 +3,343 @@ package pt.ulisboa.tecnico.tuplespaces.client.grpc;
 import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
 
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import pt.ulisboa.tecnico.sequencer.contract.*;
 import pt.ulisboa.tecnico.sequencer.contract.SequencerOuterClass.*;
 
+/**
+ * Client of the Sequencer service.
+ *
+ * <p>Sequence numbers are leased in blocks and handed out locally, so most operations don't need a
+ * sequencer call at all. Every leased number must reach the replicas, either carrying an operation
+ * or skipped, otherwise the operations numbered after it wait for it forever. Numbers still unused
+ * when a block's lease expires (or on shutdown) are handed to the releaser, which skips them. The
+ * block size adapts to the rate operations are issued: it doubles when a block is used up before
+ * its lease expires and halves when numbers had to be released, so an interactive client leases a
+ * single number at a time and a busy one rarely calls the sequencer.
+ *
+ * <p>Blocks are leased over a single long lived bidirectional stream, opened on first use and again
+ * after it fails. Requests are pipelined without waiting for the previous grant and the sequencer
+ * answers them in request order, so grants are matched to their requests by order alone. Callers
+ * asking for a number while a block is being leased are queued and served from it in arrival order.
+ *
+ * <p>Grants carry the sequencer epoch, which changes every time it restarts. The numbers of the
+ * previous epoch that weren't granted before the restart never will be, so every new epoch seen is
+ * handed to the epoch listener, which tells the replicas to stop waiting for them. Listeners and
+ * releasers are called on the gRPC and lease timer threads, so they must not wait.
+ */
 public class SequencerService {
+    public static final int MAX_BLOCK_SIZE = 1024;
+    public static final long LEASE_MILLIS = 100; // unused numbers hold back the other clients
+
+    /** Consumes leased sequence numbers that will never carry an operation */
+    public interface Releaser {
+        void release(long firstSeqNumber, int count);
+    }
+
+    /** Told about every new sequencer epoch, before its numbers are handed out */
+    public interface EpochListener {
+        void onNewEpoch(long epoch, long firstSeqNumber);
+    }
+
     public final String address;
     public ManagedChannel channel;
-    public SequencerGrpc.SequencerBlockingStub stub;
+    public SequencerGrpc.SequencerStub stub;
 
-    public SequencerService() {
+    private final Releaser releaser;
+    private final EpochListener epochListener;
+    private final ScheduledExecutorService leaseTimer;
+    private long epoch = 0; // last epoch seen in a grant
+
+    private StreamObserver<GetSeqNumberRangeRequest> requests; // null until opened or once failed
+    private final Deque<CompletableFuture<GetSeqNumberRangeResponse>> grants =
+        new ArrayDeque<>(); // in request order
+
+    private final Deque<CompletableFuture<Long>> waiting = new ArrayDeque<>(); // for a number
+    private boolean leasing = false; // a block for the waiting callers was requested
+    private long next = 0; // next leased number to hand out
+    private long end = 0; // one past the last leased number
+    private long leasedAt = 0; // when the current block was leased, in nanoseconds
+    private int blockSize = 1;
+
+    public SequencerService(Releaser releaser, EpochListener epochListener) {
         this.address = "localhost:8080";
+        this.releaser = releaser;
+        this.epochListener = epochListener;
+        this.leaseTimer =
+            Executors.newSingleThreadScheduledExecutor(
+                r -> {
+                    Thread thread = new Thread(r, "SequencerService-lease");
+                    thread.setDaemon(true);
+                    return thread;
+                });
 
         setup();
     }
 
     private void setup() {
         debug("SequencerService::setup");
-        this.channel = ManagedChannelBuilder.forTarget(this.address).usePlaintext().build();
-        this.stub = SequencerGrpc.newBlockingStub(this.channel);
+        this.channel = ChannelRegistry.getInstance().acquire(this.address); // kept on restarts
+        this.stub = SequencerGrpc.newStub(this.channel);
     }
 
     public String getAddress() {
         return this.address;
     }
 
+    /** Release the unused leased numbers, close the lease stream and release the channel */
     public void shutdown() {
         debug("SequencerService::shutdown");
-        this.channel.shutdown();
+        leaseTimer.shutdownNow();
+        releaseUnused();
+        synchronized (this) {
+            if (requests != null) {
+                requests.onCompleted();
+                requests = null;
+            }
+        }
+        ChannelRegistry.getInstance().release(this.address);
+    }
+
+    /**
+     * Get the next sequence number, waiting for it to be leased.
+     *
+     * @return sequence number
+     * @throws StatusRuntimeException if the number couldn't be leased
+     */
+    public long getSeqNumber() {
+        return join(getSeqNumberAsync());
+    }
+
+    /**
+     * Get the next sequence number, only asking the sequencer for a block once the leased one is
+     * used up.
+     *
+     * @return future completed with the sequence number, or failed with a StatusRuntimeException
+     */
+    public CompletableFuture<Long> getSeqNumberAsync() {
+        CompletableFuture<Long> seqNumber = new CompletableFuture<>();
+        int count;
+        synchronized (this) {
+            if (next < end && waiting.isEmpty()) {
+                seqNumber.complete(next++);
+                return seqNumber;
+            }
+            waiting.add(seqNumber);
+            if (leasing) {
+                return seqNumber; // served by the block being leased, or the one after it
+            }
+            count = startLease();
+        }
+        leaseBlock(count);
+        return seqNumber;
+    }
+
+    /**
+     * Lease a block of contiguous sequence numbers, for operations sent together.
+     *
+     * @param count number of sequence numbers to lease, all of them must be used or released
+     * @return first leased sequence number, the block ends at first + count - 1
+     * @throws StatusRuntimeException if the block couldn't be leased
+     */
+    public long getSeqNumbers(int count) {
+        return join(getSeqNumbersAsync(count));
+    }
+
+    /**
+     * Lease a block of contiguous sequence numbers without waiting for the grant.
+     *
+     * @param count number of sequence numbers to lease, all of them must be used or released
+     * @return future completed with the first leased number, or failed with a
+     *     StatusRuntimeException
+     */
+    public CompletableFuture<Long> getSeqNumbersAsync(int count) {
+        return lease(count).thenApply(GetSeqNumberRangeResponse::getFirstSeqNumber);
+    }
+
+    /** Pick the size of the block for the waiting callers, called while holding the lock */
+    private int startLease() {
+        // used up the previous block before its lease expired, lease bigger ones
+        long leaseNanos = TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS);
+        if (end != 0 && next == end && System.nanoTime() - leasedAt < leaseNanos) {
+            blockSize = Math.min(blockSize * 2, MAX_BLOCK_SIZE);
+        }
+        leasing = true;
+        return Math.max(blockSize, Math.min(waiting.size(), MAX_BLOCK_SIZE));
+    }
+
+    /** Lease a block for the waiting callers and hand it out once granted */
+    private void leaseBlock(int count) {
+        lease(count)
+            .whenComplete(
+                (grant, t) -> {
+                    if (t != null) {
+                        onBlockFailed(t);
+                    } else {
+                        onBlockGranted(grant.getFirstSeqNumber(), grant.getCount());
+                    }
+                });
+    }
+
+    private void onBlockGranted(long first, int count) {
+        List<CompletableFuture<Long>> served = new ArrayList<>();
+        long firstServed;
+        int nextCount = 0;
+        synchronized (this) {
+            leasing = false;
+            next = first;
+            end = first + count;
+            leasedAt = System.nanoTime();
+            firstServed = next;
+            while (!waiting.isEmpty() && next < end) {
+                served.add(waiting.poll());
+                next++;
+            }
+            if (next < end) {
+                long leasedEnd = end;
+                leaseTimer.schedule(() -> expire(leasedEnd), LEASE_MILLIS, TimeUnit.MILLISECONDS);
+            } else if (!waiting.isEmpty()) {
+                nextCount = startLease();
+            }
+        }
+
+        // callers go on to send their operation, so they are answered outside the lock
+        for (int i = 0; i < served.size(); i++) {
+            served.get(i).complete(firstServed + i);
+        }
+        if (nextCount > 0) {
+            leaseBlock(nextCount);
+        }
+    }
+
+    private void onBlockFailed(Throwable t) {
+        List<CompletableFuture<Long>> failed;
+        synchronized (this) {
+            leasing = false;
+            failed = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (CompletableFuture<Long> seqNumber : failed) {
+            seqNumber.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Send a lease request on the stream, opening it if needed.
+     *
+     * @param count number of sequence numbers to lease
+     * @return future completed with the grant, or failed with a StatusRuntimeException
+     */
+    private CompletableFuture<GetSeqNumberRangeResponse> lease(int count) {
+        debug(String.format("SequencerService::lease: count=%d", count));
+        CompletableFuture<GetSeqNumberRangeResponse> grant = new CompletableFuture<>();
+        synchronized (this) {
+            if (requests == null) {
+                requests = stub.getSeqNumberRangeStream(new GrantObserver());
+            }
+            grants.add(grant);
+            requests.onNext(GetSeqNumberRangeRequest.newBuilder().setCount(count).build());
+        }
+        return grant;
+    }
+
+    /** Receives the grants of the lease stream, in the order they were requested */
+    private class GrantObserver implements StreamObserver<GetSeqNumberRangeResponse> {
+        @Override
+        public void onNext(GetSeqNumberRangeResponse response) {
+            CompletableFuture<GetSeqNumberRangeResponse> grant;
+            boolean newEpoch;
+            synchronized (SequencerService.this) {
+                grant = grants.poll();
+                newEpoch = response.getEpoch() > epoch;
+                if (newEpoch) {
+                    epoch = response.getEpoch();
+                }
+            }
+            // nothing to skip in the first epoch
+            if (newEpoch && response.getEpochFirstSeqNumber() > 1) {
+                epochListener.onNewEpoch(response.getEpoch(), response.getEpochFirstSeqNumber());
+            }
+            if (grant != null) {
+                grant.complete(response);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            debug(String.format("SequencerService::GrantObserver::onError: t=%s", t));
+            failPending(Status.fromThrowable(t).asRuntimeException());
+        }
+
+        @Override
+        public void onCompleted() {
+            failPending(Status.UNAVAILABLE.withDescription("Lease stream closed").asRuntimeException());
+        }
+
+        /** Fail the requests that won't be granted, the next lease opens a new stream */
+        private void failPending(StatusRuntimeException e) {
+            List<CompletableFuture<GetSeqNumberRangeResponse>> failed;
+            synchronized (SequencerService.this) {
+                requests = null;
+                failed = new ArrayList<>(grants);
+                grants.clear();
+            }
+            for (CompletableFuture<GetSeqNumberRangeResponse> grant : failed) {
+                grant.completeExceptionally(e);
+            }
+        }
+    }
+
+    /** Lease timer of the block ending at given number, it may have been used up already */
+    private void expire(long leasedEnd) {
+        long first;
+        synchronized (this) {
+            if (end != leasedEnd || next == end) {
+                return;
+            }
+            blockSize = Math.max(blockSize / 2, 1);
+            first = next;
+            next = end;
+        }
+        release(first, leasedEnd);
+    }
+
+    private void releaseUnused() {
+        long first;
+        long last;
+        synchronized (this) {
+            first = next;
+            last = end;
+            next = end;
+        }
+        release(first, last);
+    }
+
+    /** Release the numbers from first up to end, called without holding the lock */
+    private void release(long first, long end) {
+        if (first < end) {
+            debug(String.format("SequencerService::release: first=%d, end=%d", first, end));
+            releaser.release(first, (int) (end - first));
+        }
     }
 
-    public Integer getSeqNumber() {
-        GetSeqNumberRequest request = GetSeqNumberRequest.newBuilder().build();
-        GetSeqNumberResponse response = this.stub.getSeqNumber(request);
-        return response.getSeqNumber();
+    /** Wait for a leased number, rethrowing a failure as the StatusRuntimeException it carries */
+    private static long join(CompletableFuture<Long> seqNumber) {
+        try {
+            return seqNumber.join();
+        } catch (CompletionException e) {
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        }
     }
 }
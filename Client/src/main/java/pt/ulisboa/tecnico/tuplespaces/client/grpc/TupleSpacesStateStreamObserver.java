@@ -0,0 +1,63 @@
+package pt.ulisboa.tecnico.tuplespaces.client.grpc;
+
+import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
+
+import io.grpc.stub.StreamObserver;
+import java.util.StringJoiner;
+import pt.ulisboa.tecnico.tuplespaces.client.grpc.exceptions.TupleSpacesServiceRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.client.util.ClientResponseCollector;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.getTupleSpacesStateResponse;
+
+/**
+ * Observer of a 'getTupleSpacesStateStream' call, appends every chunk to the printed list as it
+ * arrives instead of keeping the messages around, the whole list is only saved once the stream
+ * completes.
+ */
+public class TupleSpacesStateStreamObserver implements StreamObserver<getTupleSpacesStateResponse> {
+  private final ClientResponseCollector collector;
+  private final String serverAddr;
+  private final String serverQual;
+  private final StringJoiner tuples = new StringJoiner(", ", "[", "]"); // same as List.toString
+  private int chunks = 0;
+
+  public TupleSpacesStateStreamObserver(
+      String serverAddr, String serverQual, ClientResponseCollector collector) {
+    this.serverAddr = serverAddr;
+    this.serverQual = serverQual;
+    this.collector = collector;
+  }
+
+  @Override
+  public void onNext(getTupleSpacesStateResponse chunk) {
+    debug(
+        String.format(
+            "TupleSpacesStateStreamObserver::onNext serverAddr=%s, serverQual=%s, tuples=%d",
+            serverAddr, serverQual, chunk.getTupleCount()));
+    for (String tuple : chunk.getTupleList()) {
+      tuples.add(tuple);
+    }
+    chunks++;
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    debug(
+        String.format(
+            "TupleSpacesStateStreamObserver::onError serverAddr=%s, serverQual=%s: t=%s",
+            serverAddr, serverQual, t));
+    collector.saveException(
+        new TupleSpacesServiceRPCFailureException(
+            String.format(
+                "From server %s %s, got error for procedure getTupleSpacesState. Error: %s",
+                serverAddr, serverQual, t.getMessage())));
+  }
+
+  @Override
+  public void onCompleted() {
+    debug(
+        String.format(
+            "TupleSpacesStateStreamObserver::onCompleted serverAddr=%s, serverQual=%s, chunks=%d",
+            serverAddr, serverQual, chunks));
+    collector.saveResponse(tuples.toString());
+  }
+}
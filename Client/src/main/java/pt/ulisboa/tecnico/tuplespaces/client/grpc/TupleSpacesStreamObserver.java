@@ -36,10 +36,25 @@ public class TupleSpacesStreamObserver<R> implements StreamObserver<R> {
     String responseRepr = "";
     if (response instanceof TakeResponse && procedureName.equals(TAKE)) {
       responseRepr = ((TakeResponse) response).getResult();
+      collector.saveAppliedSeqNumber(((TakeResponse) response).getAppliedSeqNumber());
     } else if (response instanceof ReadResponse && procedureName.equals(READ)) {
       responseRepr = ((ReadResponse) response).getResult();
+      collector.saveAppliedSeqNumber(((ReadResponse) response).getAppliedSeqNumber());
     } else if (response instanceof PutResponse && procedureName.equals(PUT)) {
+      // response only holds the last applied sequence number
+      collector.saveAppliedSeqNumber(((PutResponse) response).getAppliedSeqNumber());
+    } else if (response instanceof PutBatchResponse && procedureName.equals(PUT_BATCH)) {
+      // response only holds the last applied sequence number
+      collector.saveAppliedSeqNumber(((PutBatchResponse) response).getAppliedSeqNumber());
+    } else if (response instanceof SkipResponse && procedureName.equals(SKIP)) {
       // response is empty
+    } else if (response instanceof NewEpochResponse && procedureName.equals(NEW_EPOCH)) {
+      // response is empty
+    } else if (response instanceof TakeBatchResponse && procedureName.equals(TAKE_BATCH)) {
+      // one taken tuple per operation of the batch
+      collector.saveAppliedSeqNumber(((TakeBatchResponse) response).getAppliedSeqNumber());
+      collector.saveResults(((TakeBatchResponse) response).getResultList());
+      return;
     } else if (response instanceof getTupleSpacesStateResponse
         && procedureName.equals(GET_TUPLE_SPACES_STATE))
       responseRepr = ((getTupleSpacesStateResponse) response).getTupleList().toString();
@@ -3,10 +3,12 @@ package pt.ulisboa.tecnico.tuplespaces.client.grpc;
 import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
 
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.Predicate;
+import pt.ulisboa.tecnico.tuplespaces.client.util.LatencyEstimate;
 import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaGrpc;
 import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.*;
 
@@ -19,6 +21,8 @@ public class TuplesSpacesService {
     public final String address; // server address
     public ManagedChannel channel;
     public TupleSpacesReplicaGrpc.TupleSpacesReplicaStub stub;
+    public final LatencyEstimate latency = new LatencyEstimate(); // of the calls it answered
+    private boolean released = false; // the channel was released by shutdown
 
     public ServerEntry(String address, String qualifier) {
       this.address = address;
@@ -27,10 +31,10 @@ public class TuplesSpacesService {
       setup();
     }
 
-    /** Create channel and stub for given server */
+    /** Get the shared channel for given server, it starts connecting, and create its stub */
     private void setup() {
       debug(String.format("ServerEntry::setup %s", this));
-      this.channel = ManagedChannelBuilder.forTarget(this.address).usePlaintext().build();
+      this.channel = ChannelRegistry.getInstance().acquire(this.address);
       this.stub = TupleSpacesReplicaGrpc.newStub(this.channel);
     }
 
@@ -42,10 +46,13 @@ public class TuplesSpacesService {
       return this.qualifier;
     }
 
-    /** Perform server shutdown logic */
-    public void shutdown() {
+    /** Perform server shutdown logic, the channel is kept for a while if the server comes back */
+    public synchronized void shutdown() {
       debug(String.format("ServerEntry::shutdown %s", this));
-      this.channel.shutdown();
+      if (!released) {
+        released = true;
+        ChannelRegistry.getInstance().release(this.address);
+      }
     }
 
     @Override
@@ -54,6 +61,44 @@ public class TuplesSpacesService {
     }
   }
 
+  /**
+   * Records the round trip of a call once its response arrives. Only calls answered as soon as the
+   * server got to them are timed, takes wait for a matching tuple and state dumps depend on the
+   * size of the tuple space. Reads can wait for a tuple too, but they are the calls sent to a
+   * single replica, so they have to be timed for a replica slowing down to be noticed. The replica
+   * tells whether it parked a read, only the reads it answered right away are timed.
+   */
+  private static class TimedObserver<R> implements StreamObserver<R> {
+    private final LatencyEstimate latency;
+    private final StreamObserver<R> observer;
+    private final Predicate<R> waited; // true for a response the server made wait
+    private final long startNanos = System.nanoTime();
+
+    TimedObserver(LatencyEstimate latency, StreamObserver<R> observer, Predicate<R> waited) {
+      this.latency = latency;
+      this.observer = observer;
+      this.waited = waited;
+    }
+
+    @Override
+    public void onNext(R response) {
+      if (!waited.test(response)) {
+        latency.record(System.nanoTime() - startNanos);
+      }
+      observer.onNext(response);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      observer.onError(t);
+    }
+
+    @Override
+    public void onCompleted() {
+      observer.onCompleted();
+    }
+  }
+
   private List<ServerEntry> serverEntries = new ArrayList<>();
 
   /** Constructor when no services are found */
@@ -144,6 +189,38 @@ public class TuplesSpacesService {
     }
   }
 
+  /**
+   * Replace the Server Entries list by the given servers, the entries of servers still present are
+   * kept along with their latency estimates, those of the servers gone are shutdown.
+   *
+   * @param serviceEntries List of service entries retrieved from name server lookup procedure
+   * @return true if a server was added or removed
+   */
+  public boolean replaceServers(List<NameServerService.ServiceEntry> serviceEntries) {
+    debug("TupleSpacesService::replaceServers");
+    List<ServerEntry> kept = new ArrayList<>();
+    List<ServerEntry> replaced = new ArrayList<>();
+    for (NameServerService.ServiceEntry service : serviceEntries) {
+      ServerEntry server = getServer(service.getQualifier());
+      if (server != null && server.getAddress().equals(service.getAddress())) {
+        kept.add(server);
+      } else {
+        replaced.add(new ServerEntry(service.getAddress(), service.getQualifier()));
+      }
+    }
+    boolean changed = !replaced.isEmpty() || kept.size() != this.serverEntries.size();
+    if (!changed) {
+      return false;
+    }
+    for (ServerEntry server : this.serverEntries) {
+      if (!kept.contains(server)) server.shutdown();
+    }
+    kept.addAll(replaced);
+    kept.sort(Comparator.comparing(ServerEntry::getQualifier));
+    serverEntries = kept;
+    return true;
+  }
+
   /** Removes all servers from the Server Entries list */
   public void removeServers() {
     for (ServerEntry server : this.serverEntries) server.shutdown();
@@ -151,10 +228,26 @@ public class TuplesSpacesService {
     serverEntries = new ArrayList<>();
   }
 
+  /**
+   * Sort servers by their estimated latency, fastest first. Servers without a round trip yet come
+   * first, so that they get measured.
+   *
+   * @param servers servers to sort
+   * @return sorted copy of the given list
+   */
+  public List<ServerEntry> byLatency(List<ServerEntry> servers) {
+    List<ServerEntry> sorted = new ArrayList<>(servers);
+    sorted.sort(Comparator.comparingLong(server -> server.latency.getAverageNanos()));
+    return sorted;
+  }
+
   /** Perform shutdown logic */
   public void shutdown() {
     debug("TupleSpacesService::shutdown");
     for (ServerEntry server : this.serverEntries) {
+      debug(
+          String.format(
+              "TupleSpacesService::shutdown: server=%s, latency=%s", server, server.latency));
       server.shutdown();
     }
   }
@@ -167,12 +260,14 @@ public class TuplesSpacesService {
    * @param observer TupleSpacesStreamObserver for async stub
    */
   public void put(
-      String tuple, Integer seqNumber, ServerEntry server, TupleSpacesStreamObserver<PutResponse> observer) {
+      String tuple, Long seqNumber, ServerEntry server, TupleSpacesStreamObserver<PutResponse> observer) {
     debug(
         String.format(
             "TupleSpacesService::put: tuple=%s, seqNumber=%d, server=%s, observer=%s",
             tuple, seqNumber, server, observer));
-    server.stub.put(PutRequest.newBuilder().setNewTuple(tuple).setSeqNumber(seqNumber).build(), observer);
+    server.stub.put(
+        PutRequest.newBuilder().setNewTuple(tuple).setSeqNumber(seqNumber).build(),
+        timed(server, observer));
   }
 
   /**
@@ -180,16 +275,25 @@ public class TuplesSpacesService {
    *
    * @param searchPattern A regex pattern (or simply a string) that matches the tuple we want to
    *     read from the given server.
+   * @param minSeqNumber The server only reads once it applied it, 0 to read right away
    * @param server Server where we which to invoke the RPC
    * @param observer TupleSpacesStreamObserver for async stub
    */
   public void read(
-      String searchPattern, ServerEntry server, TupleSpacesStreamObserver<ReadResponse> observer) {
+      String searchPattern,
+      Long minSeqNumber,
+      ServerEntry server,
+      TupleSpacesStreamObserver<ReadResponse> observer) {
     debug(
         String.format(
-            "TuplesSpacesService::read: searchPattern=%s, server=%s, observer=%s",
-            searchPattern, server, observer));
-    server.stub.read(ReadRequest.newBuilder().setSearchPattern(searchPattern).build(), observer);
+            "TuplesSpacesService::read: searchPattern=%s, minSeqNumber=%d, server=%s, observer=%s",
+            searchPattern, minSeqNumber, server, observer));
+    server.stub.read(
+        ReadRequest.newBuilder()
+            .setSearchPattern(searchPattern)
+            .setMinSeqNumber(minSeqNumber)
+            .build(),
+        timedRead(server.latency, observer));
   }
 
   /**
@@ -203,7 +307,7 @@ public class TuplesSpacesService {
    */
   public void take(
       String searchPattern,
-      Integer seqNumber,
+      Long seqNumber,
       ServerEntry server,
       TupleSpacesStreamObserver<TakeResponse> observer) {
     debug(
@@ -214,17 +318,146 @@ public class TuplesSpacesService {
       }
  
   /**
-   * TupleSpaces 'getTupleSpacesState' gRPC wrapper.
+   * TupleSpaces 'putBatch' gRPC wrapper.
    *
-   * @param server Server where we which to invoke the RPC
+   * @param tuples Tuples we wish to save to the server, numbered in order from firstSeqNumber
+   * @param firstSeqNumber First sequence number of the reserved block
+   * @param server Server where we wish to invoke the RPC
+   * @param observer TupleSpacesStreamObserver for async stub
+   */
+  public void putBatch(
+      List<String> tuples,
+      Long firstSeqNumber,
+      ServerEntry server,
+      TupleSpacesStreamObserver<PutBatchResponse> observer) {
+    debug(
+        String.format(
+            "TuplesSpacesService::putBatch: batchSize=%d, firstSeqNumber=%d, server=%s",
+            tuples.size(), firstSeqNumber, server));
+    server.stub.putBatch(
+        PutBatchRequest.newBuilder()
+            .addAllNewTuple(tuples)
+            .setFirstSeqNumber(firstSeqNumber)
+            .build(),
+        timed(server, observer));
+  }
+
+  /**
+   * TupleSpaces 'takeBatch' gRPC wrapper, answered once every take got its tuple.
+   *
+   * @param searchPatterns Patterns of the tuples we want to take, numbered in order from
+   *     firstSeqNumber
+   * @param firstSeqNumber First sequence number of the reserved block
+   * @param server Server where we wish to invoke the RPC
+   * @param observer TupleSpacesStreamObserver for async stub
+   */
+  public void takeBatch(
+      List<String> searchPatterns,
+      Long firstSeqNumber,
+      ServerEntry server,
+      TupleSpacesStreamObserver<TakeBatchResponse> observer) {
+    debug(
+        String.format(
+            "TuplesSpacesService::takeBatch: batchSize=%d, firstSeqNumber=%d, server=%s",
+            searchPatterns.size(), firstSeqNumber, server));
+    server.stub.takeBatch(
+        TakeBatchRequest.newBuilder()
+            .addAllSearchPattern(searchPatterns)
+            .setFirstSeqNumber(firstSeqNumber)
+            .build(),
+        observer);
+  }
+
+  /**
+   * TupleSpaces 'skip' gRPC wrapper.
+   *
+   * @param firstSeqNumber First leased sequence number that won't be used
+   * @param count Number of unused sequence numbers
+   * @param server Server where we wish to invoke the RPC
+   * @param observer TupleSpacesStreamObserver for async stub
+   */
+  public void skip(
+      Long firstSeqNumber,
+      Integer count,
+      ServerEntry server,
+      TupleSpacesStreamObserver<SkipResponse> observer) {
+    debug(
+        String.format(
+            "TuplesSpacesService::skip: firstSeqNumber=%d, count=%d, server=%s",
+            firstSeqNumber, count, server));
+    server.stub.skip(
+        SkipRequest.newBuilder().setFirstSeqNumber(firstSeqNumber).setCount(count).build(),
+        timed(server, observer));
+  }
+
+  /**
+   * TupleSpaces 'newEpoch' gRPC wrapper.
+   *
+   * @param epoch Sequencer epoch
+   * @param firstSeqNumber First sequence number of the epoch
+   * @param server Server where we wish to invoke the RPC
    * @param observer TupleSpacesStreamObserver for async stub
    */
+  public void newEpoch(
+      Long epoch,
+      Long firstSeqNumber,
+      ServerEntry server,
+      TupleSpacesStreamObserver<NewEpochResponse> observer) {
+    debug(
+        String.format(
+            "TuplesSpacesService::newEpoch: epoch=%d, firstSeqNumber=%d, server=%s",
+            epoch, firstSeqNumber, server));
+    server.stub.newEpoch(
+        NewEpochRequest.newBuilder().setEpoch(epoch).setFirstSeqNumber(firstSeqNumber).build(),
+        timed(server, observer));
+  }
+
+  /**
+   * TupleSpaces 'getTupleSpacesStateStream' gRPC wrapper, the tuples are streamed in chunks.
+   *
+   * @param searchPattern Only get the tuples matching it, every tuple if empty
+   * @param minSeqNumber The server only streams the tuples once it applied it, 0 to stream right
+   *     away
+   * @param server Server where we which to invoke the RPC
+   * @param observer TupleSpacesStateStreamObserver for async stub
+   */
   public void getTupleSpacesState(
-      ServerEntry server, TupleSpacesStreamObserver<getTupleSpacesStateResponse> observer) {
+      String searchPattern,
+      Long minSeqNumber,
+      ServerEntry server,
+      TupleSpacesStateStreamObserver observer) {
     debug(
         String.format(
-            "TuplesSpacesService::getTupleSpacesState: server=%s, observer=%s",
-            server, observer));
-    server.stub.getTupleSpacesState(getTupleSpacesStateRequest.getDefaultInstance(), observer);
+            "TuplesSpacesService::getTupleSpacesState: pattern=%s, minSeqNumber=%d, server=%s",
+            searchPattern, minSeqNumber, server));
+    server.stub.getTupleSpacesStateStream(
+        getTupleSpacesStateStreamRequest.newBuilder()
+            .setSearchPattern(searchPattern)
+            .setMinSeqNumber(minSeqNumber)
+            .build(),
+        observer);
+  }
+
+  /** Wrap an observer so that the round trip of its call is recorded in the server estimate */
+  private static <R> StreamObserver<R> timed(ServerEntry server, StreamObserver<R> observer) {
+    return timed(server, observer, response -> false);
+  }
+
+  /**
+   * Wrap the observer of a read so that its round trip is recorded in the given estimate, unless
+   * the server parked the read.
+   */
+  static StreamObserver<ReadResponse> timedRead(
+      LatencyEstimate latency, StreamObserver<ReadResponse> observer) {
+    return new TimedObserver<>(latency, observer, ReadResponse::getWaited);
+  }
+
+  /**
+   * Wrap an observer so that the round trip of its call is recorded in the server estimate, unless
+   * the server made the call wait.
+   */
+  private static <R> StreamObserver<R> timed(
+      ServerEntry server, StreamObserver<R> observer, Predicate<R> waited) {
+    return new TimedObserver<>(server.latency, observer, waited);
   }
 }
@@ -0,0 +1,40 @@
+package pt.ulisboa.tecnico.tuplespaces.client.util;
+
+/**
+ * Number of servers a put or take waits for before it returns. Every server applies the sequenced
+ * operations in the same order and gets the same result, so waiting for more than one only bounds
+ * how far behind the others can be when the client moves on.
+ */
+public enum AckPolicy {
+  FIRST,
+  MAJORITY,
+  ALL;
+
+  /**
+   * Get the number of responses that make the quorum.
+   *
+   * @param servers number of servers the operation was sent to
+   * @return number of responses to wait for
+   */
+  public int quorum(int servers) {
+    switch (this) {
+      case FIRST:
+        return Math.min(1, servers);
+      case MAJORITY:
+        return servers / 2 + 1;
+      default:
+        return servers;
+    }
+  }
+
+  /**
+   * Parse a policy name, ignoring its case.
+   *
+   * @param name first, majority or all
+   * @return the named policy
+   * @throws IllegalArgumentException if no policy has the given name
+   */
+  public static AckPolicy parse(String name) {
+    return valueOf(name.toUpperCase());
+  }
+}
@@ -4,10 +4,26 @@ import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class ClientResponseCollector {
+  /** Future waiting for a number of responses, or of answers of any kind */
+  private static class Waiter {
+    final int responses;
+    final int answers;
+    final CompletableFuture<Void> answered = new CompletableFuture<>();
+
+    Waiter(int responses, int answers) {
+      this.responses = responses;
+      this.answers = answers;
+    }
+  }
+
   List<String> responses;
   List<Exception> exceptions;
+  private final List<List<String>> results = new ArrayList<>(); // of the batch responses, in order
+  private final List<Waiter> waiters = new ArrayList<>();
+  private long appliedSeqNumber = 0; // highest last applied sequence number of a response
 
   public ClientResponseCollector() {
     this.responses = new ArrayList<>();
@@ -18,22 +34,69 @@ public class ClientResponseCollector {
     this.responses = responses;
   }
 
-  public synchronized void saveException(Exception e) {
-    exceptions.add(e);
-    notifyAll();
+  public void saveException(Exception e) {
+    List<Waiter> ready;
+    synchronized (this) {
+      exceptions.add(e);
+      notifyAll();
+      ready = readyWaiters();
+    }
+    ready.forEach(waiter -> waiter.answered.complete(null));
   }
 
+  /** Returns a copy of the exceptions saved so far, servers may still be answering */
   public synchronized List<Exception> getExceptions() {
-    return exceptions;
+    return new ArrayList<>(exceptions);
+  }
+
+  public void saveResponse(String response) {
+    List<Waiter> ready;
+    synchronized (this) {
+      responses.add(response);
+      notifyAll();
+      ready = readyWaiters();
+    }
+    ready.forEach(waiter -> waiter.answered.complete(null));
+  }
+
+  /**
+   * Save a response holding one result per operation of a batch, counted as a single response.
+   *
+   * @param results results of the batch operations, in issue order
+   */
+  public void saveResults(List<String> results) {
+    List<Waiter> ready;
+    synchronized (this) {
+      this.results.add(List.copyOf(results));
+      responses.add("");
+      notifyAll();
+      ready = readyWaiters();
+    }
+    ready.forEach(waiter -> waiter.answered.complete(null));
   }
 
-  public synchronized void saveResponse(String response) {
-    responses.add(response);
-    notifyAll();
+  /** Returns a copy of the batch results saved so far, in the order they were saved */
+  public synchronized List<List<String>> getResults() {
+    return new ArrayList<>(results);
   }
 
+  /** Returns a copy of the responses saved so far, servers may still be answering */
   public synchronized List<String> getResponses() {
-    return responses;
+    return new ArrayList<>(responses);
+  }
+
+  /**
+   * Save the last applied sequence number a server answered with, saved before its response.
+   *
+   * @param seqNumber sequence number of the last operation the server applied
+   */
+  public synchronized void saveAppliedSeqNumber(long seqNumber) {
+    appliedSeqNumber = Math.max(appliedSeqNumber, seqNumber);
+  }
+
+  /** Returns the highest last applied sequence number saved, 0 if none was */
+  public synchronized long getAppliedSeqNumber() {
+    return appliedSeqNumber;
   }
 
   public synchronized void waitAllResponses(int n) {
@@ -46,4 +109,44 @@ public class ClientResponseCollector {
       }
     }
   }
+
+  /**
+   * Get a future completed once the given number of responses was saved, or once the given number
+   * of answers (responses or exceptions) was, without blocking the caller. It is completed by the
+   * thread saving the answer, outside the collector lock.
+   *
+   * @param responses number of responses to wait for
+   * @param answers number of answers after which waiting for responses is pointless
+   * @return future completed once either number is reached
+   */
+  public CompletableFuture<Void> whenAnswered(int responses, int answers) {
+    Waiter waiter = new Waiter(responses, answers);
+    synchronized (this) {
+      if (!isAnswered(waiter)) {
+        waiters.add(waiter);
+        return waiter.answered;
+      }
+    }
+    waiter.answered.complete(null);
+    return waiter.answered;
+  }
+
+  /** Remove the waiters that got their answers, called while holding the lock */
+  private List<Waiter> readyWaiters() {
+    List<Waiter> ready = new ArrayList<>();
+    waiters.removeIf(
+        waiter -> {
+          if (!isAnswered(waiter)) {
+            return false;
+          }
+          ready.add(waiter);
+          return true;
+        });
+    return ready;
+  }
+
+  private boolean isAnswered(Waiter waiter) {
+    return responses.size() >= waiter.responses
+        || responses.size() + exceptions.size() >= waiter.answers;
+  }
 }
@@ -0,0 +1,69 @@
+package pt.ulisboa.tecnico.tuplespaces.client.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency estimate of a replica, from the round trips of the calls it answered.
+ *
+ * <p>An exponentially weighted moving average ranks the replicas, it follows a replica slowing down
+ * within a few calls. The most recent round trips are also kept in a fixed window, its percentiles
+ * tell how long to wait for a replica before asking another one.
+ */
+public class LatencyEstimate {
+  private static final double ALPHA = 0.2; // weight of the newest round trip in the average
+  private static final int WINDOW = 128; // round trips kept for the percentiles
+
+  private final long[] samples = new long[WINDOW]; // in nanoseconds, oldest overwritten first
+  private int count = 0; // samples kept, up to the window
+  private int next = 0; // slot of the next sample
+  private double averageNanos = 0;
+
+  /**
+   * Record the round trip of a call the replica answered.
+   *
+   * @param nanos round trip in nanoseconds
+   */
+  public synchronized void record(long nanos) {
+    averageNanos = count == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * averageNanos;
+    samples[next] = nanos;
+    next = (next + 1) % WINDOW;
+    count = Math.min(count + 1, WINDOW);
+  }
+
+  /** Returns true if no round trip was recorded yet */
+  public synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+  /** Returns the moving average of the round trips in nanoseconds, 0 if none was recorded */
+  public synchronized long getAverageNanos() {
+    return (long) averageNanos;
+  }
+
+  /**
+   * Get a percentile of the most recent round trips.
+   *
+   * @param percentile percentile, between 0 and 100
+   * @return round trip in nanoseconds, 0 if none was recorded
+   */
+  public synchronized long getPercentileNanos(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+    return sorted[Math.min(Math.max(rank, 0), count - 1)];
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "{samples=%d, averageMicros=%d, p50Micros=%d, p95Micros=%d}",
+        count,
+        TimeUnit.NANOSECONDS.toMicros((long) averageNanos),
+        TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(50)),
+        TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(95)));
+  }
+}
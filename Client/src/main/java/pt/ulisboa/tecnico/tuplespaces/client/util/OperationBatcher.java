@@ -0,0 +1,160 @@
+package pt.ulisboa.tecnico.tuplespaces.client.util;
+
+import static pt.ulisboa.tecnico.tuplespaces.client.ClientMain.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces operations issued close together into batches.
+ *
+ * <p>Operations of the same command submitted within a time window of the first one are handed
+ * together to the batch sender, so they share a single block of sequence numbers and a single RPC
+ * per server. A batch only holds one command, submitting another command sends the batch being
+ * collected first. Batches are sent one at a time, in the order they were collected, so operations
+ * keep their submission order. Sending a batch doesn't wait for its answers, a batch of takes
+ * waiting for tuples doesn't hold back the batch of puts that hands them over.
+ */
+public class OperationBatcher {
+  /** Sends a batch of operations of the same command */
+  public interface BatchSender {
+    /**
+     * Send a batch of operations, without waiting for the answers.
+     *
+     * @param command command of every operation in the batch
+     * @param arguments argument of each operation, in submission order
+     * @return future completed with the result of each operation, in submission order, or failed
+     *     if the batch failed, every operation in it fails with it
+     * @throws Exception if the batch couldn't be sent, every operation in it fails with it
+     */
+    CompletableFuture<List<String>> send(String command, List<String> arguments) throws Exception;
+  }
+
+  private static class Operation {
+    final String argument;
+    final CompletableFuture<String> result = new CompletableFuture<>();
+
+    Operation(String argument) {
+      this.argument = argument;
+    }
+  }
+
+  private final long windowMillis;
+  private final int maxBatchSize;
+  private final BatchSender sender;
+  private final ScheduledExecutorService executor; // single thread, sends batches in order
+
+  private List<Operation> collecting = new ArrayList<>();
+  private String collectingCommand;
+
+  /**
+   * @param windowMillis how long the first operation of a batch waits for others to join it
+   * @param maxBatchSize number of operations that sends a batch without waiting for the window
+   * @param sender sender of the collected batches
+   */
+  public OperationBatcher(long windowMillis, int maxBatchSize, BatchSender sender) {
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.sender = sender;
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "OperationBatcher");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Add an operation to the batch being collected.
+   *
+   * @param command operation command
+   * @param argument operation argument
+   * @return future completed with the operation result once its batch is sent
+   */
+  public synchronized CompletableFuture<String> submit(String command, String argument) {
+    if (!collecting.isEmpty() && !collectingCommand.equals(command)) {
+      dispatch();
+    }
+
+    Operation operation = new Operation(argument);
+    collecting.add(operation);
+    collectingCommand = command;
+    if (collecting.size() >= maxBatchSize) {
+      dispatch();
+    } else if (collecting.size() == 1) {
+      List<Operation> batch = collecting;
+      executor.schedule(() -> flush(batch), windowMillis, TimeUnit.MILLISECONDS);
+    }
+    return operation.result;
+  }
+
+  /** Send the operations collected so far without waiting for the window to end */
+  public synchronized void flush() {
+    if (!collecting.isEmpty()) {
+      dispatch();
+    }
+  }
+
+  /** Send the collected operations and stop the sending thread once they are sent */
+  public void shutdown() {
+    flush();
+    executor.shutdown();
+  }
+
+  /** Window timer of a batch, it may have been sent already */
+  private synchronized void flush(List<Operation> batch) {
+    if (batch == collecting) {
+      dispatch();
+    }
+  }
+
+  /** Queue the collected batch for sending, called while holding the lock */
+  private void dispatch() {
+    List<Operation> batch = collecting;
+    String command = collectingCommand;
+    collecting = new ArrayList<>();
+    executor.execute(() -> send(command, batch));
+  }
+
+  private void send(String command, List<Operation> batch) {
+    debug(
+        String.format(
+            "OperationBatcher::send: command=%s, batchSize=%d", command, batch.size()));
+    List<String> arguments = new ArrayList<>(batch.size());
+    for (Operation operation : batch) {
+      arguments.add(operation.argument);
+    }
+
+    CompletableFuture<List<String>> results;
+    try {
+      results = sender.send(command, arguments);
+    } catch (Exception e) {
+      fail(batch, e);
+      return;
+    }
+    results.whenComplete(
+        (answered, t) -> {
+          if (t != null) {
+            Throwable cause =
+                t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            fail(batch, cause);
+            return;
+          }
+          for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(answered.get(i));
+          }
+        });
+  }
+
+  private static void fail(List<Operation> batch, Throwable t) {
+    for (Operation operation : batch) {
+      operation.result.completeExceptionally(t);
+    }
+  }
+}
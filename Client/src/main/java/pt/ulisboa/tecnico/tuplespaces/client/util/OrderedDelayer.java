@@ -80,6 +80,27 @@ public class OrderedDelayer implements Iterable<Integer> {
     return -1;
   }
 
+  /** Returns the delay in seconds of the item with the given id, 0 if it has none */
+  public int getDelay(int id) {
+    for (DelayPair dp : orderedDelayPairs) {
+      if (dp.id == id) {
+        return dp.delay;
+      }
+    }
+    return 0;
+  }
+
+  /** Returns a copy of the current delays, unaffected by later changes to these */
+  public OrderedDelayer copy() {
+    OrderedDelayer copy = new OrderedDelayer(0);
+    for (DelayPair dp : orderedDelayPairs) {
+      DelayPair pair = copy.new DelayPair(dp.id);
+      pair.delay = dp.delay;
+      copy.orderedDelayPairs.add(pair);
+    }
+    return copy;
+  }
+
   @Override
   public Iterator<Integer> iterator() {
     return new DelayPairIterator(orderedDelayPairs);
@@ -0,0 +1,43 @@
+package pt.ulisboa.tecnico.tuplespaces.client.grpc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.tuplespaces.client.util.LatencyEstimate;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.ReadResponse;
+
+class TuplesSpacesServiceTest {
+  /** Keeps the responses it is given */
+  private static class ListObserver implements StreamObserver<ReadResponse> {
+    final List<ReadResponse> responses = new ArrayList<>();
+
+    @Override
+    public void onNext(ReadResponse response) {
+      responses.add(response);
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+
+  @Test
+  void parkedReadsAreNotTimedTest() {
+    LatencyEstimate latency = new LatencyEstimate();
+    ListObserver observer = new ListObserver();
+    ReadResponse parked = ReadResponse.newBuilder().setResult("<a>").setWaited(true).build();
+    TuplesSpacesService.timedRead(latency, observer).onNext(parked);
+    assertTrue(latency.isEmpty());
+    assertEquals(List.of(parked), observer.responses); // the response is still handed over
+
+    ReadResponse answered = ReadResponse.newBuilder().setResult("<b>").build();
+    TuplesSpacesService.timedRead(latency, observer).onNext(answered);
+    assertFalse(latency.isEmpty());
+    assertEquals(List.of(parked, answered), observer.responses);
+  }
+}
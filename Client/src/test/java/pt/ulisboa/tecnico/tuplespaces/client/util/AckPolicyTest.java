@@ -0,0 +1,82 @@
+package pt.ulisboa.tecnico.tuplespaces.client.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class AckPolicyTest {
+  /** Future of the quorum of an operation sent to the given servers, as the client waits for it */
+  private static CompletableFuture<Void> acked(
+      AckPolicy policy, ClientResponseCollector collector, int servers) {
+    return collector.whenAnswered(policy.quorum(servers), servers);
+  }
+
+  @Test
+  void quorumOfEachPolicyTest() {
+    assertEquals(1, AckPolicy.FIRST.quorum(3));
+    assertEquals(2, AckPolicy.MAJORITY.quorum(3));
+    assertEquals(3, AckPolicy.MAJORITY.quorum(4));
+    assertEquals(3, AckPolicy.ALL.quorum(3));
+    assertEquals(0, AckPolicy.FIRST.quorum(0));
+  }
+
+  @Test
+  void parseIgnoresCaseTest() {
+    assertEquals(AckPolicy.MAJORITY, AckPolicy.parse("Majority"));
+    assertThrows(IllegalArgumentException.class, () -> AckPolicy.parse("some"));
+  }
+
+  @Test
+  void quorumCompletesBeforeEveryServerAnsweredTest() {
+    ClientResponseCollector collector = new ClientResponseCollector();
+    CompletableFuture<Void> acked = acked(AckPolicy.MAJORITY, collector, 3);
+    collector.saveResponse("<a>");
+    assertFalse(acked.isDone());
+    collector.saveException(new Exception("server B failed"));
+    assertFalse(acked.isDone()); // a failure doesn't count towards the quorum
+    collector.saveResponse("<a>");
+    assertTrue(acked.isDone());
+  }
+
+  @Test
+  void firstResponseIsTheQuorumOfFirstTest() {
+    ClientResponseCollector collector = new ClientResponseCollector();
+    CompletableFuture<Void> acked = acked(AckPolicy.FIRST, collector, 3);
+    collector.saveException(new Exception("server A failed"));
+    assertFalse(acked.isDone());
+    collector.saveResponse("");
+    assertTrue(acked.isDone());
+  }
+
+  @Test
+  void missedQuorumCompletesOnceEveryServerAnsweredTest() {
+    ClientResponseCollector collector = new ClientResponseCollector();
+    CompletableFuture<Void> acked = acked(AckPolicy.ALL, collector, 3);
+    collector.saveResponse("");
+    collector.saveException(new Exception("server B failed"));
+    assertFalse(acked.isDone());
+    collector.saveException(new Exception("server C failed"));
+    assertTrue(acked.isDone()); // the caller tells the quorum was missed from the answers
+    assertEquals(1, collector.getResponses().size());
+    assertEquals(2, collector.getExceptions().size());
+  }
+
+  @Test
+  void everyServerFailingCompletesWithoutResponsesTest() {
+    ClientResponseCollector collector = new ClientResponseCollector();
+    CompletableFuture<Void> acked = acked(AckPolicy.FIRST, collector, 2);
+    collector.saveException(new Exception("server A failed"));
+    collector.saveException(new Exception("server B failed"));
+    assertTrue(acked.isDone());
+    assertTrue(collector.getResponses().isEmpty()); // the operation failed
+  }
+
+  @Test
+  void quorumAlreadyAnsweredCompletesRightAwayTest() {
+    ClientResponseCollector collector = new ClientResponseCollector();
+    collector.saveResponse("");
+    collector.saveResponse("");
+    assertTrue(acked(AckPolicy.MAJORITY, collector, 3).isDone());
+  }
+}
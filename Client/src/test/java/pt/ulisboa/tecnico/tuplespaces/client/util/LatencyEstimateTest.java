@@ -0,0 +1,62 @@
+package pt.ulisboa.tecnico.tuplespaces.client.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyEstimateTest {
+  @Test
+  void emptyEstimateTest() {
+    LatencyEstimate latency = new LatencyEstimate();
+    assertTrue(latency.isEmpty());
+    assertEquals(0, latency.getAverageNanos());
+    assertEquals(0, latency.getPercentileNanos(95));
+  }
+
+  @Test
+  void averageWeighsTheNewestRoundTripTest() {
+    LatencyEstimate latency = new LatencyEstimate();
+    latency.record(1000);
+    assertFalse(latency.isEmpty());
+    assertEquals(1000, latency.getAverageNanos()); // the first round trip is the average
+    latency.record(2000);
+    assertEquals(1200, latency.getAverageNanos());
+  }
+
+  @Test
+  void averageFollowsASlowdownTest() {
+    LatencyEstimate latency = new LatencyEstimate();
+    for (int i = 0; i < 10; i++) {
+      latency.record(100);
+    }
+    for (int i = 0; i < 10; i++) {
+      latency.record(1000);
+    }
+    assertTrue(latency.getAverageNanos() > 900);
+    assertTrue(latency.getAverageNanos() < 1000);
+  }
+
+  @Test
+  void percentilesOfTheRoundTripsTest() {
+    LatencyEstimate latency = new LatencyEstimate();
+    for (int nanos = 100; nanos >= 1; nanos--) {
+      latency.record(nanos);
+    }
+    assertEquals(95, latency.getPercentileNanos(95));
+    assertEquals(50, latency.getPercentileNanos(50));
+    assertEquals(1, latency.getPercentileNanos(0));
+    assertEquals(100, latency.getPercentileNanos(100));
+  }
+
+  @Test
+  void percentilesOnlyKeepTheMostRecentRoundTripsTest() {
+    LatencyEstimate latency = new LatencyEstimate();
+    for (int i = 0; i < 128; i++) {
+      latency.record(1_000_000);
+    }
+    for (int i = 0; i < 128; i++) {
+      latency.record(10);
+    }
+    assertEquals(10, latency.getPercentileNanos(95));
+  }
+}
@@ -0,0 +1,142 @@
+package pt.ulisboa.tecnico.tuplespaces.client.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class OperationBatcherTest {
+  private static final long LONG_WINDOW_MILLIS = 60_000; // batches are only sent by size or flush
+
+  /** Records the batches it is given, in order, and answers them as told */
+  private static class RecordingSender implements OperationBatcher.BatchSender {
+    final List<String> commands = new ArrayList<>();
+    final List<List<String>> batches = new ArrayList<>();
+    final List<CompletableFuture<List<String>>> answers = new ArrayList<>();
+    boolean answerRightAway = true;
+
+    @Override
+    public synchronized CompletableFuture<List<String>> send(
+        String command, List<String> arguments) {
+      commands.add(command);
+      batches.add(arguments);
+      CompletableFuture<List<String>> answer = new CompletableFuture<>();
+      answers.add(answer);
+      if (answerRightAway) {
+        answer.complete(resultsOf(arguments));
+      }
+      return answer;
+    }
+
+    synchronized List<List<String>> getBatches() {
+      return new ArrayList<>(batches);
+    }
+
+    synchronized CompletableFuture<List<String>> getAnswer(int batch) {
+      return answers.get(batch);
+    }
+  }
+
+  private static List<String> resultsOf(List<String> arguments) {
+    return arguments.stream().map(argument -> "result of " + argument).collect(Collectors.toList());
+  }
+
+  @Test
+  void batchesAreSplitAtTheMaxSizeTest() {
+    RecordingSender sender = new RecordingSender();
+    OperationBatcher batcher = new OperationBatcher(LONG_WINDOW_MILLIS, 3, sender);
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (int i = 1; i <= 7; i++) {
+      results.add(batcher.submit("put", "<" + i + ">"));
+    }
+    batcher.shutdown();
+    results.forEach(CompletableFuture::join);
+
+    assertEquals(
+        List.of(
+            List.of("<1>", "<2>", "<3>"), List.of("<4>", "<5>", "<6>"), List.of("<7>")),
+        sender.getBatches());
+  }
+
+  @Test
+  void anotherCommandSendsTheBatchBeingCollectedTest() {
+    RecordingSender sender = new RecordingSender();
+    OperationBatcher batcher = new OperationBatcher(LONG_WINDOW_MILLIS, 100, sender);
+    List<CompletableFuture<String>> results =
+        List.of(
+            batcher.submit("put", "<a>"),
+            batcher.submit("put", "<b>"),
+            batcher.submit("take", "<a>"),
+            batcher.submit("put", "<c>"));
+    batcher.shutdown();
+    results.forEach(CompletableFuture::join);
+
+    assertEquals(List.of("put", "take", "put"), sender.commands);
+    assertEquals(
+        List.of(List.of("<a>", "<b>"), List.of("<a>"), List.of("<c>")), sender.getBatches());
+  }
+
+  @Test
+  void windowSendsTheBatchTest() {
+    RecordingSender sender = new RecordingSender();
+    OperationBatcher batcher = new OperationBatcher(20, 100, sender);
+    CompletableFuture<String> first = batcher.submit("put", "<a>");
+    CompletableFuture<String> second = batcher.submit("put", "<b>");
+
+    assertEquals("result of <a>", first.join());
+    assertEquals("result of <b>", second.join());
+    assertEquals(List.of(List.of("<a>", "<b>")), sender.getBatches());
+    batcher.shutdown();
+  }
+
+  @Test
+  void resultsFollowSubmissionOrderTest() {
+    RecordingSender sender = new RecordingSender();
+    sender.answerRightAway = false;
+    OperationBatcher batcher = new OperationBatcher(LONG_WINDOW_MILLIS, 2, sender);
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (int i = 1; i <= 4; i++) {
+      results.add(batcher.submit("take", "<" + i + ">"));
+    }
+    batcher.shutdown();
+    while (sender.getBatches().size() < 2) {
+      Thread.onSpinWait();
+    }
+
+    // the second batch is answered first, each operation still gets its own result
+    sender.getAnswer(1).complete(List.of("<3b>", "<4b>"));
+    assertEquals("<3b>", results.get(2).join());
+    assertEquals("<4b>", results.get(3).join());
+    assertFalse(results.get(0).isDone());
+    sender.getAnswer(0).complete(List.of("<1b>", "<2b>"));
+    assertEquals("<1b>", results.get(0).join());
+    assertEquals("<2b>", results.get(1).join());
+  }
+
+  @Test
+  void failedBatchFailsEveryOperationOfItTest() {
+    IllegalStateException failure = new IllegalStateException("no servers");
+    OperationBatcher batcher =
+        new OperationBatcher(
+            LONG_WINDOW_MILLIS,
+            100,
+            (command, arguments) -> {
+              if (arguments.contains("<bad>")) {
+                throw failure;
+              }
+              return CompletableFuture.completedFuture(resultsOf(arguments));
+            });
+    CompletableFuture<String> first = batcher.submit("put", "<a>");
+    CompletableFuture<String> second = batcher.submit("put", "<bad>");
+    CompletableFuture<String> other = batcher.submit("take", "<a>");
+    batcher.shutdown();
+
+    assertSame(failure, assertThrows(CompletionException.class, first::join).getCause());
+    assertSame(failure, assertThrows(CompletionException.class, second::join).getCause());
+    assertEquals("result of <a>", other.join()); // the next batch is still sent
+  }
+}
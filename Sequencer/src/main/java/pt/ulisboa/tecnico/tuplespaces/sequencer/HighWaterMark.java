@@ -0,0 +1,96 @@
+package pt.ulisboa.tecnico.tuplespaces.sequencer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Durable epoch and high-water mark of the sequencer, kept in a single small file.
+ *
+ * <p>The mark is an upper bound of every sequence number granted so far, so the counter is stored
+ * ahead of the numbers actually granted and only written again once they catch up with it. It is
+ * replaced atomically: the new content is written and forced to a temporary file which is then
+ * renamed over the old one, so a crash at any point leaves either the old or the new mark.
+ */
+public class HighWaterMark {
+
+	private static final int MAGIC = 0x54534857; // "TSHW"
+	private static final int SIZE = Integer.BYTES + 2 * Long.BYTES;
+
+	private final Path path;
+	private final Path temporary;
+
+	private long epoch = 0;
+	private long mark = 0;
+
+	/**
+	 * Open the high-water mark file, if there is none the sequencer never ran before.
+	 *
+	 * @param path high-water mark file
+	 * @throws IOException if the file exists but can't be read or is corrupted
+	 */
+	public HighWaterMark(Path path) throws IOException {
+		this.path = path;
+		this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		if (Files.exists(path)) {
+			load();
+		}
+	}
+
+	private void load() throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		if (buffer.remaining() != SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException(String.format("%s is not a sequencer high-water mark", path));
+		}
+		epoch = buffer.getLong();
+		mark = buffer.getLong();
+	}
+
+	/** Returns the epoch of the last store, 0 if never stored */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/** Returns the stored mark, no number above it was ever granted, 0 if never stored */
+	public long getMark() {
+		return mark;
+	}
+
+	/**
+	 * Durably replace the epoch and mark.
+	 *
+	 * @param epoch current epoch
+	 * @param mark upper bound of the numbers that may be granted before the next store
+	 * @throws IOException if the mark couldn't be written, the old one is still in place
+	 */
+	public synchronized void store(long epoch, long mark) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+		buffer.putInt(MAGIC).putLong(epoch).putLong(mark).flip();
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		forceDirectory();
+		this.epoch = epoch;
+		this.mark = mark;
+	}
+
+	/** Make the rename durable, not every platform can open a directory so it is best effort */
+	private void forceDirectory() {
+		Path directory = path.toAbsolutePath().getParent();
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// the rename is still atomic, it may just be lost along with the numbers granted after it
+		}
+	}
+
+}
@@ -1,14 +1,19 @@
 package pt.ulisboa.tecnico.tuplespaces.sequencer;
 
-import io.grpc.BindableService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 public class SequencerServer {
 
 	/** Server host port. */
 	private static int port;
 
+	/** File the high-water mark is kept in, unless given. */
+	private static final String DEFAULT_HIGH_WATER_MARK = "sequencer.hwm";
+
 	public static void main(String[] args) throws Exception {
 		System.out.println(SequencerServer.class.getSimpleName());
 
@@ -21,12 +26,15 @@ public class SequencerServer {
 		// Check arguments.
 		if (args.length < 1) {
 			System.err.println("Argument(s) missing!");
-			System.err.printf("Usage: java %s port%n", Server.class.getName());
+			System.err.printf("Usage: java %s port [highWaterMarkFile]%n", Server.class.getName());
 			return;
 		}
 
 		port = Integer.valueOf(args[0]);
-		final BindableService impl = new SequencerServiceImpl();
+		Path markPath = Paths.get(args.length > 1 ? args[1] : DEFAULT_HIGH_WATER_MARK);
+		final SequencerServiceImpl impl = new SequencerServiceImpl(new HighWaterMark(markPath));
+		System.out.printf("[INFO] Epoch %d, numbering from %d, high-water mark in %s%n",
+				impl.getEpoch(), impl.getEpochFirstSeqNumber(), markPath);
 
 		// Create a new server to listen on port.
 		Server server = ServerBuilder.forPort(port).addService(impl).build();
@@ -1,27 +1,230 @@
 package pt.ulisboa.tecnico.tuplespaces.sequencer;
 
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.sequencer.contract.SequencerGrpc.SequencerImplBase;
+import pt.ulisboa.tecnico.sequencer.contract.SequencerOuterClass.GetSeqNumberRangeRequest;
+import pt.ulisboa.tecnico.sequencer.contract.SequencerOuterClass.GetSeqNumberRangeResponse;
 import pt.ulisboa.tecnico.sequencer.contract.SequencerOuterClass.GetSeqNumberRequest;
 import pt.ulisboa.tecnico.sequencer.contract.SequencerOuterClass.GetSeqNumberResponse;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Sequencer service, grants blocks of sequence numbers from a lock free counter.
+ *
+ * <p>The counter survives restarts through a durable high-water mark, preallocated a range at a
+ * time so a single fsync covers {@link #PREALLOCATE} numbers. The next range is written in the
+ * background once half of the current one is granted, so calls only wait for the disk if they
+ * outrun it. A restarted sequencer resumes above the stored mark in a new epoch: the numbers of the
+ * previous epoch that weren't granted before the crash never will be, and every grant carries the
+ * first number of the epoch so replicas can skip them instead of waiting for them forever.
+ */
 public class SequencerServiceImpl extends SequencerImplBase {
 
-	int seqNumber;
+	/** Largest block a single call can lease. */
+	public static final int MAX_LEASE = 1 << 16;
 
-	public SequencerServiceImpl() {
-		seqNumber = 0;
+	/** Numbers covered by each write of the high-water mark. */
+	public static final long PREALLOCATE = 1 << 20;
+
+	/** Last sequence number handed out, blocks are leased with a single compare-and-set. */
+	private final AtomicLong seqNumber;
+
+	private final HighWaterMark highWaterMark;
+	private final long epoch;
+	private final long epochFirstSeqNumber;
+	private volatile long durableMark; // numbers up to it can be granted without writing the mark
+	private final AtomicBoolean extending = new AtomicBoolean(false);
+	private final ExecutorService markWriter = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "Sequencer-mark");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Start a new epoch above the stored high-water mark.
+	 *
+	 * @param highWaterMark durable high-water mark
+	 * @throws IOException if the mark of the new epoch couldn't be stored
+	 */
+	public SequencerServiceImpl(HighWaterMark highWaterMark) throws IOException {
+		this.highWaterMark = highWaterMark;
+		this.epoch = highWaterMark.getEpoch() + 1;
+		this.seqNumber = new AtomicLong(highWaterMark.getMark());
+		this.epochFirstSeqNumber = highWaterMark.getMark() + 1;
+		this.durableMark = highWaterMark.getMark() + PREALLOCATE;
+		highWaterMark.store(epoch, durableMark);
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getEpochFirstSeqNumber() {
+		return epochFirstSeqNumber;
+	}
+
+	/**
+	 * Lease a block of contiguous sequence numbers. Nothing is leased if the call fails, so a refused
+	 * block never leaves numbers behind that replicas would have to wait for.
+	 *
+	 * @param count number of sequence numbers to lease
+	 * @param limit largest number the block may contain
+	 * @return first leased sequence number
+	 * @throws StatusRuntimeException if the block would go past the limit, or if the high-water mark
+	 *         couldn't be moved past it
+	 */
+	private long lease(int count, long limit) {
+		while (true) {
+			long current = seqNumber.get();
+			long last = current + count;
+			if (last > limit) {
+				throw Status.OUT_OF_RANGE
+						.withDescription(String.format("Sequence numbers past %d can't be granted", limit))
+						.asRuntimeException();
+			}
+			if (last > durableMark) {
+				try {
+					extend(last); // outran the background write
+				} catch (IOException e) {
+					throw Status.UNAVAILABLE
+							.withDescription("Unable to store the high-water mark: " + e.getMessage())
+							.asRuntimeException();
+				}
+			}
+			if (seqNumber.compareAndSet(current, last)) {
+				if (last > durableMark - PREALLOCATE / 2 && extending.compareAndSet(false, true)) {
+					markWriter.execute(this::extendInBackground);
+				}
+				return current + 1;
+			}
+		}
+	}
+
+	/**
+	 * Check the size of the block asked for by a request.
+	 *
+	 * @param requested count of the request, 0 for a single number
+	 * @return number of sequence numbers to lease
+	 * @throws StatusRuntimeException if the block is too big
+	 */
+	private static int leaseCount(int requested) {
+		int count = Math.max(requested, 1);
+		if (count > MAX_LEASE) {
+			throw Status.INVALID_ARGUMENT
+					.withDescription(String.format("Can't lease more than %d numbers at once", MAX_LEASE))
+					.asRuntimeException();
+		}
+		return count;
+	}
+
+	/**
+	 * Durably move the high-water mark a range past the given number, unless it already is past it.
+	 *
+	 * @param seqNumber number that must be covered by the mark
+	 * @throws IOException if the mark couldn't be stored
+	 */
+	private synchronized void extend(long seqNumber) throws IOException {
+		if (seqNumber <= durableMark) {
+			return;
+		}
+		long mark = seqNumber + PREALLOCATE;
+		highWaterMark.store(epoch, mark);
+		durableMark = mark;
+	}
+
+	private void extendInBackground() {
+		try {
+			extend(durableMark + 1);
+		} catch (IOException e) {
+			System.err.println("[ERROR] Unable to store the high-water mark: " + e.getMessage());
+		} finally {
+			extending.set(false);
+		}
 	}
 
 	@Override
-	synchronized public void getSeqNumber(GetSeqNumberRequest request, StreamObserver<GetSeqNumberResponse> responseObserver) {
-		seqNumber ++;
+	public void getSeqNumber(GetSeqNumberRequest request, StreamObserver<GetSeqNumberResponse> responseObserver) {
+		long first;
+		try {
+			// the whole block must fit the 32 bits of the response, use getSeqNumberRange past them
+			first = lease(leaseCount(request.getCount()), Integer.MAX_VALUE);
+		} catch (StatusRuntimeException e) {
+			responseObserver.onError(e);
+			return;
+		}
 		GetSeqNumberResponse response = GetSeqNumberResponse.newBuilder()
-				.setSeqNumber(seqNumber).build();
+				.setSeqNumber((int) first).build();
+		responseObserver.onNext(response);
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Lease the block asked for by a range request.
+	 *
+	 * @param request range request
+	 * @return granted block
+	 * @throws StatusRuntimeException if the block is too big or couldn't be leased
+	 */
+	private GetSeqNumberRangeResponse grant(GetSeqNumberRangeRequest request) {
+		int count = leaseCount(request.getCount());
+		return GetSeqNumberRangeResponse.newBuilder()
+				.setFirstSeqNumber(lease(count, Long.MAX_VALUE)).setCount(count)
+				.setEpoch(epoch).setEpochFirstSeqNumber(epochFirstSeqNumber).build();
+	}
+
+	@Override
+	public void getSeqNumberRange(GetSeqNumberRangeRequest request,
+			StreamObserver<GetSeqNumberRangeResponse> responseObserver) {
+		GetSeqNumberRangeResponse response;
+		try {
+			response = grant(request);
+		} catch (StatusRuntimeException e) {
+			responseObserver.onError(e);
+			return;
+		}
 		responseObserver.onNext(response);
 		responseObserver.onCompleted();
 	}
 
+	@Override
+	public StreamObserver<GetSeqNumberRangeRequest> getSeqNumberRangeStream(
+			StreamObserver<GetSeqNumberRangeResponse> responseObserver) {
+		// gRPC delivers the requests of a stream one at a time, so grants keep their request order
+		return new StreamObserver<GetSeqNumberRangeRequest>() {
+			private boolean failed = false;
+
+			@Override
+			public void onNext(GetSeqNumberRangeRequest request) {
+				if (failed) {
+					return;
+				}
+				try {
+					responseObserver.onNext(grant(request));
+				} catch (StatusRuntimeException e) {
+					failed = true; // the client can't match later grants without this one
+					responseObserver.onError(e);
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				// the client went away, leases aren't tracked so there is nothing to release
+			}
+
+			@Override
+			public void onCompleted() {
+				if (!failed) {
+					responseObserver.onCompleted();
+				}
+			}
+		};
+	}
+
 }
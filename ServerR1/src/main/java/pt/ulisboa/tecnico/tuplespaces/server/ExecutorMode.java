@@ -0,0 +1,54 @@
+package pt.ulisboa.tecnico.tuplespaces.server;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Threads the gRPC service handlers of a server run on.
+ *
+ * <p>PLATFORM keeps the gRPC default, a cached pool of platform threads. VIRTUAL runs every call
+ * on its own virtual thread, which needs a Java 21 runtime. The project still targets Java 11, so
+ * the virtual thread executor is looked up reflectively and the server falls back to PLATFORM when
+ * the runtime doesn't provide it.
+ */
+public enum ExecutorMode {
+  PLATFORM,
+  VIRTUAL;
+
+  /**
+   * Parse an executor mode argument.
+   *
+   * @param mode mode name, case insensitive (e.g "virtual")
+   * @return parsed mode or null if the name is unknown
+   */
+  public static ExecutorMode parse(String mode) {
+    for (ExecutorMode value : values()) {
+      if (value.name().equalsIgnoreCase(mode)) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Create the executor service handlers run on in this mode.
+   *
+   * @return executor service or null to keep the gRPC default executor
+   */
+  public ExecutorService newExecutor() {
+    if (this == PLATFORM) {
+      return null;
+    }
+
+    try {
+      return (ExecutorService)
+          java.util.concurrent.Executors.class
+              .getMethod("newVirtualThreadPerTaskExecutor")
+              .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      System.err.printf(
+          "[WARN] Virtual threads aren't available on Java %s, using platform threads\n",
+          System.getProperty("java.version"));
+      return null;
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package pt.ulisboa.tecnico.tuplespaces.server;
+
+import static pt.ulisboa.tecnico.tuplespaces.server.ServerMain.debug;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.ResolveGapResponse;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState.GapStatus;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.NameServerService;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.PeerService;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.NameServerRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.OperationForgottenException;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.PeerRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+
+/**
+ * Detects sequence gaps, repairs the ones a peer can fill in and fills the others with no-ops once
+ * every replica agrees they are abandoned.
+ *
+ * <p>The client sends each operation to every replica independently, so a single lost request
+ * leaves a gap on one replica while its peers apply the operation. Shortly after a number is seen
+ * missing the peers are asked for the operation they applied with it, and the first one found is
+ * applied here, so a lost request only stalls this replica for milliseconds. Peers only keep the
+ * operations they applied last: once the missing one is forgotten by the peers that applied it,
+ * none can hand it over and the replicas keep answering it was received, so the state of a peer is
+ * transferred instead.
+ *
+ * <p>A client that crashes between getting a sequence number and sending its operation leaves a
+ * gap every later operation waits behind, no peer has it to repair it. Once the same number has
+ * been missing for longer than the timeout, if there is one, the replicas are asked about it in two
+ * rounds. In the first one every replica where it is missing, this one included, promises this one
+ * to refuse its operation from then on, so the answers can't go stale while the rounds run. If any
+ * replica received the operation it isn't abandoned and nothing is filled, the replicas missing it
+ * fetch it from that one instead. Otherwise every replica is asked to fill it: none of them can
+ * accept the operation anymore, so all of them end up applying the same no-op. Only a number every
+ * registered replica answered about is filled. A replica that doesn't answer in time may be slow
+ * rather than down and still take the operation, so the round is abandoned instead, the promises
+ * made to it are withdrawn and it is tried again after the timeout. A crashed replica holds the gap
+ * until it restarts or leaves the name server.
+ *
+ * <p>A restarted sequencer leaves the numbers between the last one it granted and its durable
+ * high-water mark behind, possibly a large range, along with the operations still in flight it
+ * granted before crashing. Once a new epoch is announced and its grace period is over, the numbers
+ * missing below it are resolved the same way without waiting for the timeout: the whole range from
+ * the missing number up to the epoch is promised and skipped on every replica if none of them
+ * received any of it, otherwise the missing number alone is filled or fetched and the range is
+ * tried again from the next missing number.
+ *
+ * <p>The stall each filled gap caused, from when it was first seen to when it was filled, is
+ * measured on every replica, whichever replica filled it. The stall of repaired gaps is measured on
+ * the replica that repaired them.
+ */
+public class GapResolver {
+  private static final long POLL_MILLIS = 10;
+  private static final long REPAIR_DELAY_MILLIS = 20; // most gaps close by themselves before it
+  private static final int MAX_REPAIR_RUN = 1024; // numbers fetched in one go, e.g. a lost batch
+  private static final long EPOCH_GRACE_MILLIS = 500; // for operations numbered before the restart
+  private static final long CATCH_UP_RETRY_MILLIS = 1000; // between state transfers that failed
+
+  private final ServerState state;
+  private final NameServerService nameServerService;
+  private final String serviceName;
+  private final String address; // of this replica, left out of the peers
+  private final long timeoutMillis; // 0 if gaps are never filled
+  private final ScheduledExecutorService executor; // single thread, polls and resolves
+  private final Function<String, PeerService> connect; // opens a channel to a peer address
+  private final Runnable catchUp; // transfers the state of a peer, blocking until it is installed
+  private final Map<String, PeerService> peers = new HashMap<>(); // by address, only used by it
+
+  private long missing = 0; // sequence number being waited for, 0 if none
+  private long missingSince = 0; // when it was first seen missing, in nanoseconds
+  private long nextRepair = 0; // when the peers may be asked for its operation (again)
+  private long nextRound = 0; // when the peers may be asked about it (again), in nanoseconds
+  private boolean lookedUp = false; // the peers were looked up since it went missing
+  private long repairedSeqNumber = 0; // last number offered from a peer
+  private long epochFirstSeqNumber = 0; // first number of the latest epoch announced
+  private long nextEpochRound = 0; // when the numbers missing below it may be resolved (again)
+  private long nextCatchUp = 0; // when the state of a peer may be transferred (again)
+
+  private volatile long repaired = 0;
+  private volatile long filled = 0;
+  private volatile long totalStallMillis = 0;
+  private volatile long maxStallMillis = 0;
+
+  /**
+   * @param state replica state
+   * @param nameServerService name server the peers are looked up in
+   * @param serviceName service the peers are registered under
+   * @param address address of this replica
+   * @param timeoutMillis how long a number must be missing before the peers are asked about it,
+   *     0 to never fill gaps
+   * @param catchUp transfers the state of a peer once the missing operations are forgotten by the
+   *     peers, blocking until it is installed
+   */
+  public GapResolver(
+      ServerState state,
+      NameServerService nameServerService,
+      String serviceName,
+      String address,
+      long timeoutMillis,
+      Runnable catchUp) {
+    this(state, nameServerService, serviceName, address, timeoutMillis, catchUp, PeerService::new);
+  }
+
+  /**
+   * Like {@link #GapResolver(ServerState, NameServerService, String, String, long, Runnable)},
+   * connecting to the peers with the given function instead.
+   *
+   * @param connect opens a channel to the peer registered with an address
+   */
+  GapResolver(
+      ServerState state,
+      NameServerService nameServerService,
+      String serviceName,
+      String address,
+      long timeoutMillis,
+      Runnable catchUp,
+      Function<String, PeerService> connect) {
+    this.state = state;
+    this.nameServerService = nameServerService;
+    this.serviceName = serviceName;
+    this.address = address;
+    this.timeoutMillis = timeoutMillis;
+    this.catchUp = catchUp;
+    this.connect = connect;
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "GapResolver");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Start polling the state for gaps */
+  public void start() {
+    executor.scheduleWithFixedDelay(this::poll, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stop polling and close the peer channels */
+  public void shutdown() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (PeerService peer : peers.values()) {
+      peer.shutdown();
+    }
+  }
+
+  public long getRepaired() {
+    return repaired;
+  }
+
+  public long getFilled() {
+    return filled;
+  }
+
+  public long getTotalStallMillis() {
+    return totalStallMillis;
+  }
+
+  public long getMaxStallMillis() {
+    return maxStallMillis;
+  }
+
+  private void poll() {
+    long now = System.nanoTime();
+    long firstSeqNumber = state.getEpochFirstSeqNumber();
+    if (firstSeqNumber != epochFirstSeqNumber) {
+      epochFirstSeqNumber = firstSeqNumber;
+      nextEpochRound = now + TimeUnit.MILLISECONDS.toNanos(EPOCH_GRACE_MILLIS);
+    }
+    long current = state.getMissingSeqNumber();
+    if (current != missing) {
+      if (missing != 0) {
+        onClosed(missing, TimeUnit.NANOSECONDS.toMillis(now - missingSince));
+      }
+      missing = current;
+      missingSince = now;
+      nextRepair = now + TimeUnit.MILLISECONDS.toNanos(REPAIR_DELAY_MILLIS);
+      nextRound = now + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      lookedUp = false;
+    }
+    if (missing == 0) {
+      return;
+    }
+    if (now - nextRepair >= 0) {
+      if (repair(missing)) {
+        return;
+      }
+      nextRepair = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPAIR_DELAY_MILLIS);
+    }
+    if (missing < epochFirstSeqNumber && now - nextEpochRound >= 0) {
+      resolveEpoch(missing);
+      nextEpochRound = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPAIR_DELAY_MILLIS);
+    } else if (timeoutMillis > 0 && now - nextRound >= 0) {
+      debug(
+          String.format("SN %d - Missing for over %d ms, asking peers", missing, timeoutMillis));
+      resolve(missing, missing + 1, 0);
+      nextRound = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+  }
+
+  /**
+   * Resolve a number missing below the latest epoch, skipping the rest of the range up to it along
+   * with it if none of the range was received anywhere.
+   *
+   * @param seqNumber number missing for longer than the epoch grace period
+   */
+  private void resolveEpoch(long seqNumber) {
+    long epoch = state.getEpoch();
+    debug(
+        String.format(
+            "SN %d - Missing below epoch %d starting at SN %d, asking peers",
+            seqNumber, epoch, epochFirstSeqNumber));
+    if (epochFirstSeqNumber > seqNumber + 1
+        && resolve(seqNumber, epochFirstSeqNumber, epoch) != GapStatus.RECEIVED) {
+      return;
+    }
+    resolve(seqNumber, seqNumber + 1, epoch);
+  }
+
+  /** A gap was closed, by its operation arriving late, by repairing it or by a no-op */
+  private void onClosed(long seqNumber, long stallMillis) {
+    if (state.getGapStatus(seqNumber) == GapStatus.FILLED) {
+      filled++;
+      System.out.printf(
+          "[INFO] Filled gap at SN %d, the pipeline stalled for %d ms\n", seqNumber, stallMillis);
+    } else if (seqNumber == repairedSeqNumber) {
+      repaired++;
+      System.out.printf(
+          "[INFO] Repaired SN %d from a peer, the pipeline stalled for %d ms\n",
+          seqNumber, stallMillis);
+    } else {
+      debug(String.format("SN %d - Gap closed after %d ms", seqNumber, stallMillis));
+      return;
+    }
+    totalStallMillis += stallMillis;
+    maxStallMillis = Math.max(maxStallMillis, stallMillis);
+  }
+
+  /**
+   * Fetch the operation with a missing number from the first peer that applied it and apply it,
+   * along with the ones right after it that are missing too.
+   *
+   * @param seqNumber number missing for longer than the repair delay
+   * @return true if the operation was found, it is then applied like any other, or if the state of
+   *     a peer was transferred since the peers that applied it forgot it
+   */
+  private boolean repair(long seqNumber) {
+    // looked up once per gap, the peers are asked again every few milliseconds
+    List<PeerService> reachable = lookedUp ? null : lookupPeers();
+    lookedUp = true;
+    if (reachable == null) {
+      reachable = List.copyOf(peers.values()); // the ones known so far
+    }
+    boolean forgotten = false;
+    for (PeerService peer : reachable) {
+      LogRecord record;
+      try {
+        record = peer.fetchOperation(seqNumber);
+      } catch (OperationForgottenException e) {
+        debug(String.format("SN %d - %s, trying the next peer", seqNumber, e.getMessage()));
+        forgotten = true;
+        continue;
+      } catch (PeerRPCFailureException e) {
+        debug(String.format("SN %d - %s, trying the next peer", seqNumber, e.getMessage()));
+        continue;
+      }
+      if (record == null) {
+        continue; // not applied there yet, or abandoned
+      }
+      debug(String.format("SN %d - Fetched %s from %s", seqNumber, record, peer.getAddress()));
+      if (state.offerRepaired(seqNumber, record)) {
+        repairedSeqNumber = seqNumber;
+      }
+      repairRun(peer, seqNumber + 1);
+      return true;
+    }
+    if (forgotten && System.nanoTime() - nextCatchUp >= 0) {
+      // received, so never filled, but no replica can hand it over anymore
+      System.out.printf(
+          "[INFO] SN %d is no longer kept by the peers, transferring the state of one\n",
+          seqNumber);
+      catchUp.run();
+      nextCatchUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CATCH_UP_RETRY_MILLIS);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Fetch the operations following a repaired one from the same peer while they are missing, the
+   * rest of a lost batch would otherwise be repaired one poll at a time.
+   *
+   * @param peer peer the missing operation was fetched from
+   * @param first number right after it
+   */
+  private void repairRun(PeerService peer, long first) {
+    for (long seqNumber = first; seqNumber < first + MAX_REPAIR_RUN; seqNumber++) {
+      if (state.getGapStatus(seqNumber) != GapStatus.MISSING) {
+        return;
+      }
+      LogRecord record;
+      try {
+        record = peer.fetchOperation(seqNumber);
+      } catch (OperationForgottenException | PeerRPCFailureException e) {
+        return;
+      }
+      if (record == null) {
+        return; // not applied there yet
+      }
+      state.offerRepaired(seqNumber, record);
+    }
+  }
+
+  /**
+   * Fill a missing number, or skip a range of them, on every replica if none of them received its
+   * operation, otherwise leave it to be fetched from the replicas that did.
+   *
+   * @param seqNumber missing number
+   * @param end number right after the range, seqNumber + 1 to only fill the missing number
+   * @param epoch epoch starting at end, only used to skip a range
+   * @return FILLED if filled or skipped here, RECEIVED if a replica received it (or some of the
+   *     range), UNKNOWN if it can't be resolved yet, e.g. a replica didn't answer
+   */
+  private GapStatus resolve(long seqNumber, long end, long epoch) {
+    boolean range = end > seqNumber + 1;
+    // round 1, every replica where it is missing refuses its operation from now on
+    GapStatus own =
+        range ? state.promiseGaps(seqNumber, end, address) : state.promiseGap(seqNumber, address);
+    if (own != GapStatus.MISSING) {
+      debug(String.format("SN %d to %d - %s here, not filling", seqNumber, end - 1, own));
+      return own; // arrived in between
+    }
+    List<PeerService> registered = lookupPeers();
+    if (registered == null) {
+      release(seqNumber, end, List.of()); // can't tell which replicas must answer
+      return GapStatus.UNKNOWN;
+    }
+    List<PeerService> promised = new ArrayList<>();
+    for (PeerService peer : registered) {
+      ResolveGapResponse.Status status;
+      try {
+        status =
+            range
+                ? peer.resolveGaps(seqNumber, end, epoch, address, false)
+                : peer.resolveGap(seqNumber, address, false);
+      } catch (PeerRPCFailureException e) {
+        // it may be slow rather than down, and still take the operation after a fill
+        debug(
+            String.format(
+                "SN %d to %d - %s, not filling until it answers",
+                seqNumber, end - 1, e.getMessage()));
+        release(seqNumber, end, promised);
+        return GapStatus.UNKNOWN;
+      }
+      if (status == ResolveGapResponse.Status.RECEIVED) {
+        // the replicas that promised to refuse it fetch it from that one once it is applied there
+        debug(
+            String.format(
+                "SN %d to %d - Received on %s, fetching it",
+                seqNumber, end - 1, peer.getAddress()));
+        return GapStatus.RECEIVED;
+      }
+      if (status == ResolveGapResponse.Status.UNKNOWN) {
+        debug(
+            String.format(
+                "SN %d to %d - Unknown on %s, not filling", seqNumber, end - 1, peer.getAddress()));
+        release(seqNumber, end, promised);
+        return GapStatus.UNKNOWN;
+      }
+      promised.add(peer); // or already filled by the round of another replica
+    }
+
+    // round 2, no replica can accept the operation anymore, they all consume it with a no-op
+    GapStatus filled = range ? state.skipGaps(seqNumber, end, epoch) : state.fillGap(seqNumber);
+    if (filled != GapStatus.FILLED) {
+      return filled; // fetched from a replica restarted since its promise
+    }
+    for (PeerService peer : registered) {
+      try {
+        ResolveGapResponse.Status status =
+            range
+                ? peer.resolveGaps(seqNumber, end, epoch, address, true)
+                : peer.resolveGap(seqNumber, address, true);
+        if (status != ResolveGapResponse.Status.FILLED) {
+          // only a replica that restarted since its promise could have taken the operation
+          System.err.printf(
+              "[WARN] SN %d to %d was %s on %s after it was filled here\n",
+              seqNumber, end - 1, status, peer.getAddress());
+        }
+      } catch (PeerRPCFailureException e) {
+        // it still refuses the operation, and fetches the no-op from this replica
+        System.err.printf(
+            "[WARN] Unable to fill SN %d to %d on peer: %s\n", seqNumber, end - 1, e.getMessage());
+      }
+    }
+    return GapStatus.FILLED;
+  }
+
+  /**
+   * Withdraw the promises of an abandoned round, so the operation is accepted again if it arrives.
+   *
+   * @param seqNumber missing number
+   * @param end number right after the range
+   * @param promised peers that promised to refuse it in the round
+   */
+  private void release(long seqNumber, long end, List<PeerService> promised) {
+    state.releaseGaps(seqNumber, end, address);
+    for (PeerService peer : promised) {
+      try {
+        peer.releaseGaps(seqNumber, end, address);
+      } catch (PeerRPCFailureException e) {
+        // it keeps refusing the operation, and fetches it from a replica that took it
+        debug(String.format("SN %d to %d - %s", seqNumber, end - 1, e.getMessage()));
+      }
+    }
+  }
+
+  /**
+   * Get the registered peers, reusing the channels of the ones already known.
+   *
+   * @return peers registered in the name server, or null if it couldn't be reached
+   */
+  private List<PeerService> lookupPeers() {
+    List<String> addresses;
+    try {
+      addresses = nameServerService.lookup(serviceName);
+    } catch (NameServerRPCFailureException e) {
+      System.err.printf("[WARN] Unable to look up peers to resolve a gap: %s\n", e.getMessage());
+      return null;
+    }
+
+    Set<String> current = new HashSet<>(addresses);
+    current.remove(address);
+    peers.keySet().removeIf(
+        peer -> {
+          if (current.contains(peer)) {
+            return false;
+          }
+          peers.get(peer).shutdown();
+          return true;
+        });
+    for (String peer : current) {
+      peers.computeIfAbsent(peer, connect);
+    }
+    return List.copyOf(peers.values());
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "{timeoutMillis=%d, repaired=%d, filled=%d, totalStallMillis=%d, maxStallMillis=%d}",
+        timeoutMillis, repaired, filled, totalStallMillis, maxStallMillis);
+  }
+}
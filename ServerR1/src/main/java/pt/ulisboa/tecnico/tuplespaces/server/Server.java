@@ -4,9 +4,20 @@ import static pt.ulisboa.tecnico.tuplespaces.server.ServerMain.debug;
 
 import io.grpc.*;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.TransferStateResponse;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.TransferredOperation;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
 import pt.ulisboa.tecnico.tuplespaces.server.grpc.NameServerService;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.PeerService;
 import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.NameServerRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.PeerRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.Snapshot;
 
 /**
  * Class encapsulating a TupleSpaces server.
@@ -14,15 +25,30 @@ import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.NameServerRPCFailur
  * <p>The Class keeps an internal Tuple Space state, initially empty, and serves clients over gRPC.
  * See the full specification of the TupleSpaces server at
  * "https://github.com/tecnico-distsys/TupleSpaces/blob/master/tuplespaces.md"
+ *
+ * <p>A server joining a running cluster first fetches the state of another replica, it serves
+ * requests from the start but only applies them, and registers in the name server, once it caught
+ * up with that replica. A running server missing operations its peers no longer keep fetches the
+ * state of a peer the same way.
  */
 public class Server {
+  private static final int JOIN_CHUNK_SIZE = 1000; // tuples or operations per transfer message
+  // operations are forwarded for this long after catching up, longer than clients take to look
+  // the servers up again and send to the joined replica themselves
+  private static final int JOIN_LINGER_MILLIS = 5000;
+
   private final String serviceName; // service name (e.g "TupleSpaces")
   private final String address; // server address
   private final String qualifier; // server qualifier (e.g, "A")
 
   private final NameServerService
       nameServerService; // class responsible for communication with the name server service
-  private final ServerState state = new ServerState(); // server state
+  private final ExecutorMode executorMode; // threads service handlers run on
+  private final ServerState state; // server state
+  private final boolean join; // fetch the state of a running replica before registering
+  private final long gapTimeoutMillis; // before missing numbers are filled, 0 if never
+  private GapResolver gapResolver = null; // null until registered
+  private ExecutorService handlerExecutor = null; // null when using the gRPC default executor
   private io.grpc.Server serverRef = null; // reference kept to perform shutdown logic on SIGINT
 
   public Server(
@@ -30,10 +56,34 @@ public class Server {
       String serverAddr,
       String qualifier,
       NameServerService nameServerService) {
+    this(
+        serviceName,
+        serverAddr,
+        qualifier,
+        nameServerService,
+        ExecutorMode.PLATFORM,
+        new ServerState(),
+        false,
+        0);
+  }
+
+  public Server(
+      String serviceName,
+      String serverAddr,
+      String qualifier,
+      NameServerService nameServerService,
+      ExecutorMode executorMode,
+      ServerState state,
+      boolean join,
+      long gapTimeoutMillis) {
     this.serviceName = serviceName;
     this.address = serverAddr;
     this.qualifier = qualifier;
     this.nameServerService = nameServerService;
+    this.executorMode = executorMode;
+    this.state = state;
+    this.join = join;
+    this.gapTimeoutMillis = gapTimeoutMillis;
   }
 
   /** Perform shutdown logic of the server. */
@@ -49,10 +99,21 @@ public class Server {
       System.err.printf("[ERROR] %s\n", e.getMessage());
     }
 
+    if (this.gapResolver != null) this.gapResolver.shutdown();
     this.nameServerService.shutdown();
 
     // shutdown gRPC server
     if (this.serverRef != null) this.serverRef.shutdown();
+    if (this.handlerExecutor != null) this.handlerExecutor.shutdown();
+    this.state.shutdown();
+
+    System.out.printf("[INFO] Search pattern cache %s\n", this.state.getPatternCache());
+    if (this.state.getWriteAheadLog() != null) {
+      System.out.printf("[INFO] Write-ahead log %s\n", this.state.getWriteAheadLog());
+    }
+    if (this.gapResolver != null) {
+      System.out.printf("[INFO] Gap resolver %s\n", this.gapResolver);
+    }
   }
 
   /**
@@ -64,12 +125,19 @@ public class Server {
     final BindableService impl = new TuplesSpaceServiceImpl(this.state);
     // NOTE we don't check for parseInt exceptions or Runtime exceptions because everything was
     // previously sanitized
-    io.grpc.Server grpcServer =
-        ServerBuilder.forPort(Integer.parseInt(this.address.split(":")[1]))
-            .addService(impl)
-            .build();
+    ServerBuilder<?> builder =
+        ServerBuilder.forPort(Integer.parseInt(this.address.split(":")[1])).addService(impl);
+    this.handlerExecutor = this.executorMode.newExecutor();
+    if (this.handlerExecutor != null) {
+      builder.executor(this.handlerExecutor);
+    }
+    io.grpc.Server grpcServer = builder.build();
     serverRef = grpcServer; // save reference for shutdown logic
 
+    if (this.join) {
+      this.state.pauseForTransfer(); // requests are buffered until the state is transferred
+    }
+
     // launch gRPC server
     try {
       grpcServer.start();
@@ -82,29 +150,184 @@ public class Server {
       return;
     }
 
-    // register server in name server
+    if (this.join) {
+      joinCluster(); // registers once caught up
+    } else {
+      register();
+    }
+
+    // add hook to catch SIGINT and perform shutdown logic
+    Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    // a replica that can't persist what it applies anymore leaves, its peers keep serving
+    this.state
+        .whenFailed()
+        .thenAcceptAsync(
+            e -> {
+              System.err.println("[ERROR] Write-ahead log failed, shutting down the replica");
+              System.err.printf("[ERROR] Error: %s\n", e.getMessage());
+              System.exit(1);
+            });
+    // block awaiting gRPC server termination
+    try {
+      grpcServer.awaitTermination();
+    } catch (InterruptedException e) {
+      System.err.println("[ERROR] Server execution interrupted");
+      System.err.printf("Error: %s\n", e.getMessage());
+    }
+  }
+
+  /** Register the server in the name server, exiting if it fails. */
+  private void register() {
     try {
       nameServerService.register(this.serviceName, this.qualifier, this.address);
     } catch (NameServerRPCFailureException e) {
       System.err.println("[ERROR] Unable to register in name server, unable to continue");
       System.err.printf("[ERROR] %s\n", e.getMessage());
-      grpcServer.shutdown();
+      serverRef.shutdown();
       nameServerService.shutdown();
       System.exit(1);
       return;
     }
 
+    // missed operations are always repaired from the peers, gaps are only filled with a timeout
+    this.gapResolver =
+        new GapResolver(
+            this.state,
+            this.nameServerService,
+            this.serviceName,
+            this.address,
+            this.gapTimeoutMillis,
+            this::catchUp);
+    this.gapResolver.start();
+
     System.out.printf(
-        "[INFO] Running %s %s server on %s\n", this.serviceName, this.qualifier, this.address);
+        "[INFO] Running %s %s server on %s (%s threads)\n",
+        this.serviceName,
+        this.qualifier,
+        this.address,
+        this.handlerExecutor != null ? "virtual" : "platform");
+  }
 
-    // add hook to catch SIGINT and perform shutdown logic
-    Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
-    // block awaiting gRPC server termination
+  /**
+   * Fetch the state of a running replica, trying every registered one until a transfer succeeds,
+   * and register once caught up with it. Without any, the server resumes from its local state.
+   */
+  private void joinCluster() {
+    TransferReceiver receiver = transferState(JOIN_LINGER_MILLIS, false);
+    if (receiver == null) {
+      System.err.println("[WARN] No replica to join, resuming from the local state");
+      this.state.resumeWithoutTransfer();
+      register();
+    } else if (!receiver.registered) {
+      // the stream broke or was aborted before catching up, later operations come directly and
+      // the ones in between are repaired from the peers
+      register();
+    }
+  }
+
+  /**
+   * Replace the state by the one of a running replica, once the operations missing here are no
+   * longer kept by any peer. Called by the gap resolver, operations received directly meanwhile
+   * are buffered and applied after the transferred state.
+   */
+  private void catchUp() {
+    this.state.pauseForTransfer();
+    // registered already, so the operations applied after catching up come directly
+    if (transferState(0, true) == null) {
+      System.err.println("[WARN] No replica to transfer the state from, still missing operations");
+      this.state.resumeWithoutTransfer();
+    }
+  }
+
+  /**
+   * Fetch the state of a running replica, trying every registered one until a transfer succeeds.
+   * The state must be paused for the transfer.
+   *
+   * @param lingerMillis how long the replica keeps forwarding operations after catching up
+   * @param registered whether this server is registered already, otherwise it registers once
+   *     caught up
+   * @return receiver of the installed state, or null if no transfer succeeded
+   */
+  private TransferReceiver transferState(int lingerMillis, boolean registered) {
+    List<String> peers;
     try {
-      grpcServer.awaitTermination();
-    } catch (InterruptedException e) {
-      System.err.println("[ERROR] Server execution interrupted");
-      System.err.printf("Error: %s\n", e.getMessage());
+      peers = nameServerService.lookup(this.serviceName);
+    } catch (NameServerRPCFailureException e) {
+      System.err.printf(
+          "[WARN] Unable to look up replicas to transfer the state from: %s\n", e.getMessage());
+      peers = Collections.emptyList();
+    }
+
+    for (String peer : peers) {
+      if (peer.equals(this.address)) {
+        continue; // this server, or a stale entry of a previous run
+      }
+      PeerService peerService = new PeerService(peer);
+      TransferReceiver receiver = new TransferReceiver(peer, registered);
+      try {
+        peerService.transferState(JOIN_CHUNK_SIZE, lingerMillis, receiver);
+      } catch (PeerRPCFailureException e) {
+        System.err.printf("[WARN] State transfer from %s failed: %s\n", peer, e.getMessage());
+      } finally {
+        peerService.shutdown();
+        this.state.finishTransfer();
+      }
+
+      if (receiver.installed) {
+        return receiver;
+      }
+    }
+    return null;
+  }
+
+  /** Installs the state streamed by a replica, registering the server once caught up with it */
+  private class TransferReceiver implements Consumer<TransferStateResponse> {
+    private final String peer; // replica the state is transferred from
+    private final List<String> tuples = new ArrayList<>();
+    private final List<String> pendingTakes = new ArrayList<>();
+    private boolean installed = false;
+    private boolean registered; // registered already, or once caught up
+
+    TransferReceiver(String peer, boolean registered) {
+      this.peer = peer;
+      this.registered = registered;
+    }
+
+    @Override
+    public void accept(TransferStateResponse response) {
+      if (!installed) {
+        tuples.addAll(response.getTupleList());
+        pendingTakes.addAll(response.getPendingTakeList());
+        if (response.getSnapshotComplete()) {
+          Snapshot snapshot =
+              new Snapshot(response.getSnapshotSeqNumber(), tuples, pendingTakes);
+          try {
+            state.installTransfer(snapshot);
+          } catch (IOException e) {
+            // the state is in memory, it just can't be recovered from the log after a crash
+            System.err.printf("[ERROR] Unable to persist transferred state: %s\n", e.getMessage());
+            state.resumeWithoutTransfer();
+          }
+          installed = true;
+          System.out.printf(
+              "[INFO] Installed state of %s up to sequence number %d with %d tuples\n",
+              peer, snapshot.getSeqNumber(), tuples.size());
+        }
+      }
+
+      for (TransferredOperation operation : response.getOperationList()) {
+        // an unknown type aborts the transfer, the operation can't be skipped without a gap
+        state.offerTransferred(
+            new LogRecord(
+                operation.getSeqNumber(),
+                LogRecord.Type.fromValue(operation.getTypeValue()),
+                operation.getValue()));
+      }
+
+      if (response.getCaughtUp() && !registered) {
+        register();
+        registered = true;
+      }
     }
   }
 }
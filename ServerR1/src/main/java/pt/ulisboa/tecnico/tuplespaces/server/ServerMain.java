@@ -2,7 +2,13 @@ package pt.ulisboa.tecnico.tuplespaces.server;
 
 import static java.lang.Math.pow;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
 import pt.ulisboa.tecnico.tuplespaces.server.grpc.NameServerService;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.SnapshotStore;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.SyncPolicy;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.WriteAheadLog;
 
 public class ServerMain {
   private static final String serviceName = "TupleSpaces"; // service name (invariant)
@@ -22,7 +28,7 @@ public class ServerMain {
   /** Print program's usage message */
   private static void printUsage() {
     System.err.println(
-        "Usage: mvn exec:java -Dexec.args=\"<port> <qualifier> [host] [ns_host] [ns_port] [-h] [-d]\"\n"
+        "Usage: mvn exec:java -Dexec.args=\"<port> <qualifier> [host] [ns_host] [ns_port] [-h] [-d] [-executor mode] [-wal dir] [-wal-sync policy] [-wal-sync-interval ms] [-snapshot-interval ops] [-join] [-gap-timeout ms]\"\n"
             + "\n"
             + "Server for TuplesSpace distributed network\n"
             + "\n"
@@ -35,7 +41,40 @@ public class ServerMain {
             + "  ns_port     Name server port            (default: 5001)\n"
             + "Options:\n"
             + "  -h, -help  Show this message and exit\n"
-            + "  -d, -debug Run in debug mode");
+            + "  -d, -debug Run in debug mode\n"
+            + "  -executor  Threads running the service handlers, platform or virtual\n"
+            + "             (default: platform, virtual requires Java 21)\n"
+            + "  -wal       Write-ahead log and snapshot directory, the state is recovered from it\n"
+            + "             on startup\n"
+            + "             (default: state isn't persisted)\n"
+            + "  -wal-sync  When the log is forced to disk, operation, batch or periodic\n"
+            + "             (default: batch)\n"
+            + "  -wal-sync-interval  Milliseconds between periodic syncs (default: 100)\n"
+            + "  -snapshot-interval  Operations between snapshots, 0 disables them\n"
+            + "                      (default: 100000)\n"
+            + "  -join      Fetch the state of a running replica before registering, to join a\n"
+            + "             running cluster\n"
+            + "  -gap-timeout  Milliseconds a sequence number can be missing before it is filled\n"
+            + "                with a no-op if no replica received it, 0 disables\n"
+            + "                filling, missed operations are still fetched from the peers\n"
+            + "                (default: 2000)");
+  }
+
+  /**
+   * Get the value of the option at given index, exiting if it is missing
+   *
+   * @param args program arguments
+   * @param i index of the option
+   * @param option option name, used in the error message
+   * @return option value
+   */
+  private static String requireValue(String[] args, int i, String option) {
+    if (i + 1 >= args.length) {
+      System.err.printf("Missing value of '%s' option\n", option);
+      printUsage();
+      System.exit(1);
+    }
+    return args[i + 1];
   }
 
   public static void main(String[] args) {
@@ -43,6 +82,13 @@ public class ServerMain {
     String host = "localhost";
     String nsHost = "localhost";
     String nsPort = "5001";
+    ExecutorMode executorMode = ExecutorMode.PLATFORM;
+    String walDir = null;
+    SyncPolicy walSync = SyncPolicy.BATCH;
+    String walSyncInterval = "100";
+    String snapshotInterval = "100000";
+    boolean join = false;
+    String gapTimeout = "2000";
 
     // check for valid number of arguments
     if (args.length < 2) {
@@ -72,6 +118,51 @@ public class ServerMain {
           case "--debug":
             DEBUG_MODE = true;
             break;
+          case "-executor":
+          case "--executor":
+            executorMode = i + 1 < args.length ? ExecutorMode.parse(args[i + 1]) : null;
+            if (executorMode == null) {
+              System.err.println("Invalid 'executor' option, expected platform or virtual");
+              printUsage();
+              System.exit(1);
+            }
+            i++;
+            break;
+          case "-wal":
+          case "--wal":
+            walDir = requireValue(args, i, "wal");
+            i++;
+            break;
+          case "-wal-sync":
+          case "--wal-sync":
+            walSync = SyncPolicy.parse(requireValue(args, i, "wal-sync"));
+            if (walSync == null) {
+              System.err.println(
+                  "Invalid 'wal-sync' option, expected operation, batch or periodic");
+              printUsage();
+              System.exit(1);
+            }
+            i++;
+            break;
+          case "-wal-sync-interval":
+          case "--wal-sync-interval":
+            walSyncInterval = requireValue(args, i, "wal-sync-interval");
+            i++;
+            break;
+          case "-snapshot-interval":
+          case "--snapshot-interval":
+            snapshotInterval = requireValue(args, i, "snapshot-interval");
+            i++;
+            break;
+          case "-join":
+          case "--join":
+            join = true;
+            break;
+          case "-gap-timeout":
+          case "--gap-timeout":
+            gapTimeout = requireValue(args, i, "gap-timeout");
+            i++;
+            break;
           default:
             System.err.println("Unknown option: " + args[i]);
             printUsage();
@@ -108,6 +199,13 @@ public class ServerMain {
     debug(String.format("host: %s", host));
     debug(String.format("ns_host: %s", nsHost));
     debug(String.format("ns_port: %s", nsPort));
+    debug(String.format("executor: %s", executorMode));
+    debug(String.format("wal: %s", walDir));
+    debug(String.format("wal_sync: %s", walSync));
+    debug(String.format("wal_sync_interval: %s", walSyncInterval));
+    debug(String.format("snapshot_interval: %s", snapshotInterval));
+    debug(String.format("join: %s", join));
+    debug(String.format("gap_timeout: %s", gapTimeout));
 
     // validate arguments
     int portInt;
@@ -137,10 +235,83 @@ public class ServerMain {
       return;
     }
 
+    // validate write-ahead log sync interval
+    long walSyncIntervalLong;
+    try {
+      walSyncIntervalLong = Long.parseLong(walSyncInterval);
+      if (walSyncIntervalLong <= 0) {
+        throw new NumberFormatException(); // will be caught and resume in following catch
+      }
+    } catch (NumberFormatException e) {
+      System.err.println(
+          "Invalid 'wal-sync-interval' option, expected a positive integer, got "
+              + walSyncInterval);
+      printUsage();
+      return;
+    }
+
+    // validate snapshot interval
+    int snapshotIntervalInt;
+    try {
+      snapshotIntervalInt = Integer.parseInt(snapshotInterval);
+      if (snapshotIntervalInt < 0) {
+        throw new NumberFormatException(); // will be caught and resume in following catch
+      }
+    } catch (NumberFormatException e) {
+      System.err.println(
+          "Invalid 'snapshot-interval' option, expected a non negative integer, got "
+              + snapshotInterval);
+      printUsage();
+      return;
+    }
+
+    // validate gap timeout
+    long gapTimeoutLong;
+    try {
+      gapTimeoutLong = Long.parseLong(gapTimeout);
+      if (gapTimeoutLong < 0) {
+        throw new NumberFormatException(); // will be caught and resume in following catch
+      }
+    } catch (NumberFormatException e) {
+      System.err.println(
+          "Invalid 'gap-timeout' option, expected a non negative integer, got " + gapTimeout);
+      printUsage();
+      return;
+    }
+
+    // rebuild the state from the latest snapshot and the write-ahead log
+    ServerState state;
+    if (walDir == null) {
+      state = new ServerState();
+    } else {
+      try {
+        WriteAheadLog log = new WriteAheadLog(Paths.get(walDir), walSync, walSyncIntervalLong);
+        // snapshots are always loaded, even when no new ones are taken
+        SnapshotStore snapshots = new SnapshotStore(Paths.get(walDir));
+        state = new ServerState(log, snapshots, snapshotIntervalInt);
+      } catch (IOException e) {
+        System.err.println("[ERROR] Unable to open write-ahead log, unable to continue");
+        System.err.printf("[ERROR] %s\n", e.getMessage());
+        System.exit(1);
+        return;
+      }
+      System.out.printf(
+          "[INFO] Recovered state from %s, next sequence number is %d\n",
+          walDir, state.getNextSeqNumber());
+    }
+
     final String serverAddr = host + ":" + port;
     final String nsAddr = nsHost + ":" + nsPort;
     // entry point
-    run(ServerMain.serviceName, serverAddr, qualifier, nsAddr);
+    run(
+        ServerMain.serviceName,
+        serverAddr,
+        qualifier,
+        nsAddr,
+        executorMode,
+        state,
+        join,
+        gapTimeoutLong);
   }
 
   /**
@@ -149,12 +320,33 @@ public class ServerMain {
    * @param serverAddr String of server instance address (e.g localhost:2001)
    * @param qualifier  Server instance qualifier         (e.g "A")
    * @param nsAddr     String of name server address     (e.g "localhost:5001)
+   * @param executorMode Threads running the service handlers
+   * @param state      Initial server state
+   * @param join         Fetch the state of a running replica before registering
+   * @param gapTimeoutMillis Milliseconds before a missing sequence number is filled, 0 if never
    */
-  public static void run(String serviceName, String serverAddr, String qualifier, String nsAddr) {
+  public static void run(
+      String serviceName,
+      String serverAddr,
+      String qualifier,
+      String nsAddr,
+      ExecutorMode executorMode,
+      ServerState state,
+      boolean join,
+      long gapTimeoutMillis) {
     // class responsible for talking to the name server
     NameServerService nameServerService = new NameServerService(nsAddr);
     // injects NameServerService in Server object
-    Server server = new Server(serviceName, serverAddr, qualifier, nameServerService);
+    Server server =
+        new Server(
+            serviceName,
+            serverAddr,
+            qualifier,
+            nameServerService,
+            executorMode,
+            state,
+            join,
+            gapTimeoutMillis);
     server.run(); // blocks running gRPC server
     System.exit(0);
   }
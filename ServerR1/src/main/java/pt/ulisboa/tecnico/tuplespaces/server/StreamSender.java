@@ -0,0 +1,123 @@
+package pt.ulisboa.tecnico.tuplespaces.server;
+
+import static pt.ulisboa.tecnico.tuplespaces.server.ServerMain.debug;
+
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends the messages of a server stream as the transport takes them.
+ *
+ * <p>Sending is driven by the onReady handler of the call, so a slow receiver neither makes the
+ * server buffer the whole stream in memory nor holds a thread while it catches up. Messages are
+ * pulled from a {@link Source} until it has none for now, the source calls {@link #sendLater()}
+ * once it has more. Must be created while the service handler runs, gRPC only takes the handlers
+ * of a call then.
+ *
+ * @param <T> type of the streamed messages
+ */
+class StreamSender<T> {
+  /** Messages of a stream, only called by the sender, one call at a time */
+  interface Source<T> {
+    /**
+     * Get the next message to be sent.
+     *
+     * @return next message, or null if there is none for now
+     * @throws StatusRuntimeException to fail the stream with that status
+     */
+    T next();
+
+    /** Returns true once the stream is over, checked whenever no message can be sent */
+    boolean isFinished();
+  }
+
+  private final ServerCallStreamObserver<T> call;
+  private final ScheduledExecutorService executor; // runs the sends asked for by sendLater
+  private final Runnable onEnd; // run once the stream is completed, failed or cancelled
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private Source<T> source = null; // null until started
+  private boolean ended = false;
+
+  /**
+   * Take the handlers of a call.
+   *
+   * @param call observer of the RPC, from the service handler
+   * @param executor executor running the sends asked for by {@link #sendLater()}
+   * @param onEnd run once the stream is completed, failed or cancelled by the receiver
+   */
+  StreamSender(
+      ServerCallStreamObserver<T> call, ScheduledExecutorService executor, Runnable onEnd) {
+    this.call = call;
+    this.executor = executor;
+    this.onEnd = onEnd;
+    call.setOnReadyHandler(this::send);
+    call.setOnCancelHandler(
+        () -> {
+          debug("Stream cancelled by the receiver");
+          end();
+        });
+  }
+
+  /**
+   * Start sending the messages of a source.
+   *
+   * @param source messages of the stream
+   */
+  synchronized void start(Source<T> source) {
+    this.source = source;
+    send();
+  }
+
+  /** Send every message the transport takes, called once it is ready for more */
+  synchronized void send() {
+    if (ended || source == null || call.isCancelled()) {
+      return;
+    }
+    try {
+      while (call.isReady()) {
+        T message = source.next();
+        if (message == null) {
+          break;
+        }
+        call.onNext(message);
+      }
+      if (source.isFinished()) {
+        call.onCompleted();
+        end();
+      }
+    } catch (StatusRuntimeException e) {
+      call.onError(e);
+      end();
+    }
+  }
+
+  /** Send from the executor, so the caller doesn't hold up its thread on the stream */
+  void sendLater() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(
+          () -> {
+            scheduled.set(false);
+            send();
+          });
+    }
+  }
+
+  /**
+   * Send from the executor after a delay, e.g once the source is finished by then.
+   *
+   * @param delayMillis delay in milliseconds
+   */
+  void sendAfter(long delayMillis) {
+    executor.schedule(this::send, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void end() {
+    if (!ended) {
+      ended = true;
+      onEnd.run();
+    }
+  }
+}
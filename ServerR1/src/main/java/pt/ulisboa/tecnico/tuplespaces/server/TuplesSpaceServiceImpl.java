@@ -2,73 +2,405 @@ package pt.ulisboa.tecnico.tuplespaces.server;
 
 import static pt.ulisboa.tecnico.tuplespaces.server.ServerMain.debug;
 
+import com.google.protobuf.TextFormat;
 import io.grpc.Status;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaGrpc.*;
 import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.*;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.StateTransfer;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputSearchPatternException;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputTupleStringException;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidSequenceNumberException;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.Snapshot;
 
 public class TuplesSpaceServiceImpl extends TupleSpacesReplicaImplBase {
+  private static final int DEFAULT_CHUNK_SIZE = 1000; // tuples or operations per streamed message
+  private static final int MAX_SKIP_COUNT = 1 << 16; // larger than any block a client leases
+
   private final ServerState tuplesSpace;
+  // streams are sent as their receivers take the messages, this thread only sends what is ready
+  private final ScheduledExecutorService streamExecutor =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "TuplesSpaceServiceImpl-stream");
+            thread.setDaemon(true);
+            return thread;
+          });
 
   public TuplesSpaceServiceImpl(ServerState state) {
     this.tuplesSpace = state;
   }
 
+  /**
+   * Answer a sequenced operation with an error once its future fails.
+   *
+   * @param t failure of the operation future
+   * @param streamObserver observer of the RPC
+   */
+  private static void onOperationFailure(Throwable t, StreamObserver<?> streamObserver) {
+    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    debug(cause.getMessage());
+    if (cause instanceof InvalidSequenceNumberException) {
+      streamObserver.onError(
+          Status.ALREADY_EXISTS.withDescription(cause.getMessage()).asRuntimeException());
+    } else {
+      streamObserver.onError(
+          Status.INTERNAL.withDescription(cause.getMessage()).asRuntimeException());
+    }
+  }
+
+  /** Tuple of a put request, typed or not, for logging */
+  private static String tupleOf(PutRequest request) {
+    return request.hasTuple()
+        ? TextFormat.shortDebugString(request.getTuple())
+        : request.getNewTuple();
+  }
+
+  /** Search pattern of a read request, structured or not, for logging */
+  private static String patternOf(ReadRequest request) {
+    return request.hasPattern()
+        ? TextFormat.shortDebugString(request.getPattern())
+        : request.getSearchPattern();
+  }
+
+  /** Search pattern of a take request, structured or not, for logging */
+  private static String patternOf(TakeRequest request) {
+    return request.hasPattern()
+        ? TextFormat.shortDebugString(request.getPattern())
+        : request.getSearchPattern();
+  }
+
   @Override
   public void put(PutRequest request, StreamObserver<PutResponse> streamObserver) {
+    CompletableFuture<Void> result;
     try {
-      tuplesSpace.put(request.getNewTuple(), request.getSeqNumber());
+      result =
+          request.hasTuple()
+              ? tuplesSpace.putAsync(TypedTuples.fields(request.getTuple()), request.getSeqNumber())
+              : tuplesSpace.putAsync(request.getNewTuple(), request.getSeqNumber());
     } catch (InvalidInputTupleStringException e) {
       debug(e.getMessage());
-      System.err.println("[ERROR] Got invalid tuple " + request.getNewTuple());
+      System.err.println("[ERROR] Got invalid tuple " + tupleOf(request));
       streamObserver.onError(
           Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
       return;
     }
 
-    System.out.println("[INFO] " + String.format("Ran 'put' on %s", request.getNewTuple()));
-    streamObserver.onNext(PutResponse.getDefaultInstance());
-    streamObserver.onCompleted();
+    // answered by the state apply thread once it reaches this operation's sequence number
+    result.whenComplete(
+        (ignored, t) -> {
+          if (t != null) {
+            onOperationFailure(t, streamObserver);
+            return;
+          }
+          System.out.println("[INFO] " + String.format("Ran 'put' on %s", tupleOf(request)));
+          streamObserver.onNext(
+              PutResponse.newBuilder().setAppliedSeqNumber(tuplesSpace.getLastApplied()).build());
+          streamObserver.onCompleted();
+        });
   }
 
   @Override
   public void read(ReadRequest request, StreamObserver<ReadResponse> streamObserver) {
-    String readTuple;
+    long minSeqNumber = request.getMinSeqNumber();
+    if (minSeqNumber < 0) {
+      System.err.println("[ERROR] Got invalid minimum sequence number " + minSeqNumber);
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT
+              .withDescription("Invalid minimum sequence number " + minSeqNumber)
+              .asRuntimeException());
+      return;
+    }
+
+    // a replica behind the client's last seen operation only reads once it caught up
+    CompletableFuture<String> result;
     try {
-      readTuple = tuplesSpace.read(request.getSearchPattern());
+      result =
+          request.hasPattern()
+              ? tuplesSpace.readAsync(
+                  TypedTuples.fieldPatterns(request.getPattern()), minSeqNumber)
+              : tuplesSpace.readAsync(request.getSearchPattern(), minSeqNumber);
     } catch (InvalidInputSearchPatternException e) {
       debug(e.getMessage());
-      System.err.println("[ERROR] Got invalid search pattern " + request.getSearchPattern());
+      System.err.println("[ERROR] Got invalid search pattern " + patternOf(request));
       streamObserver.onError(
           Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
       return;
     }
 
-    System.out.println("[INFO] " + String.format("Ran 'read' on %s", request.getSearchPattern()));
-    streamObserver.onNext(ReadResponse.newBuilder().setResult(readTuple).build());
-    streamObserver.onCompleted();
+    // the client cancels the reads of the other replicas once one answered, the parked reader is
+    // dropped then instead of waiting for a matching tuple forever
+    ServerCallStreamObserver<ReadResponse> call =
+        (ServerCallStreamObserver<ReadResponse>) streamObserver;
+    call.setOnCancelHandler(
+        () -> {
+          if (result.cancel(false)) {
+            debug(String.format("Read on %s cancelled by the client", patternOf(request)));
+          }
+        });
+
+    // a read without a matching tuple doesn't hold this thread, the matching put answers it
+    boolean waited = !result.isDone();
+    result.whenComplete(
+        (readTuple, t) -> {
+          if (result.isCancelled()) {
+            return;
+          }
+          if (t != null) {
+            onOperationFailure(t, streamObserver);
+            return;
+          }
+          System.out.println(
+              "[INFO] " + String.format("Ran 'read' on %s", patternOf(request)));
+          streamObserver.onNext(
+              ReadResponse.newBuilder()
+                  .setResult(readTuple)
+                  .setAppliedSeqNumber(tuplesSpace.getLastApplied())
+                  .setWaited(waited)
+                  .build());
+          streamObserver.onCompleted();
+        });
   }
 
   @Override
   public void take(TakeRequest request, StreamObserver<TakeResponse> streamObserver) {
-    String takenTuple;
+    CompletableFuture<String> result;
+    try {
+      result =
+          request.hasPattern()
+              ? tuplesSpace.takeAsync(
+                  TypedTuples.fieldPatterns(request.getPattern()), request.getSeqNumber())
+              : tuplesSpace.takeAsync(request.getSearchPattern(), request.getSeqNumber());
+    } catch (InvalidInputSearchPatternException e) {
+      debug(e.getMessage());
+      System.err.println("[ERROR] Got invalid tuple " + patternOf(request));
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+      return;
+    }
+
+    // answered by the state apply thread, or by the put handing over the tuple if none matched
+    result.whenComplete(
+        (takenTuple, t) -> {
+          if (t != null) {
+            onOperationFailure(t, streamObserver);
+            return;
+          }
+          System.out.println(
+              "[INFO] " + String.format("Ran 'take' on %s", patternOf(request)));
+          streamObserver.onNext(
+              TakeResponse.newBuilder()
+                  .setResult(takenTuple)
+                  .setAppliedSeqNumber(tuplesSpace.getLastApplied())
+                  .build());
+          streamObserver.onCompleted();
+        });
+  }
+
+  @Override
+  public void putBatch(PutBatchRequest request, StreamObserver<PutBatchResponse> streamObserver) {
+    long first = request.getFirstSeqNumber();
+    long last = first + request.getNewTupleCount() - 1;
+    CompletableFuture<Void> result;
+    try {
+      result = tuplesSpace.putBatchAsync(request.getNewTupleList(), first);
+    } catch (InvalidInputTupleStringException e) {
+      debug(e.getMessage());
+      System.err.println("[ERROR] Got invalid tuple in batch " + e.getMessage());
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+      return;
+    }
+
+    // the whole block is applied in one pass, answered once its last put is applied
+    result.whenComplete(
+        (ignored, t) -> {
+          if (t != null) {
+            onOperationFailure(t, streamObserver);
+            return;
+          }
+          System.out.println(
+              "[INFO] "
+                  + String.format(
+                      "Ran 'putBatch' of %d tuples, SN %d to %d",
+                      request.getNewTupleCount(), first, last));
+          streamObserver.onNext(
+              PutBatchResponse.newBuilder()
+                  .setAppliedSeqNumber(tuplesSpace.getLastApplied())
+                  .build());
+          streamObserver.onCompleted();
+        });
+  }
+
+  @Override
+  public void takeBatch(
+      TakeBatchRequest request, StreamObserver<TakeBatchResponse> streamObserver) {
+    long first = request.getFirstSeqNumber();
+    long last = first + request.getSearchPatternCount() - 1;
+    CompletableFuture<List<String>> result;
     try {
-      takenTuple = tuplesSpace.take(request.getSearchPattern(), request.getSeqNumber());
+      result = tuplesSpace.takeBatchAsync(request.getSearchPatternList(), first);
     } catch (InvalidInputSearchPatternException e) {
       debug(e.getMessage());
-      System.err.println("[ERROR] Got invalid tuple " + request.getSearchPattern());
+      System.err.println("[ERROR] Got invalid search pattern in batch " + e.getMessage());
       streamObserver.onError(
           Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
       return;
     }
 
-    System.out.println("[INFO] " + String.format("Ran 'take' on %s", request.getSearchPattern()));
-    streamObserver.onNext(TakeResponse.newBuilder().setResult(takenTuple).build());
+    // answered once every take of the block got its tuple
+    result.whenComplete(
+        (takenTuples, t) -> {
+          if (t != null) {
+            onOperationFailure(t, streamObserver);
+            return;
+          }
+          System.out.println(
+              "[INFO] "
+                  + String.format(
+                      "Ran 'takeBatch' of %d patterns, SN %d to %d",
+                      request.getSearchPatternCount(), first, last));
+          streamObserver.onNext(
+              TakeBatchResponse.newBuilder()
+                  .addAllResult(takenTuples)
+                  .setAppliedSeqNumber(tuplesSpace.getLastApplied())
+                  .build());
+          streamObserver.onCompleted();
+        });
+  }
+
+  @Override
+  public void skip(SkipRequest request, StreamObserver<SkipResponse> streamObserver) {
+    long first = request.getFirstSeqNumber();
+    int count = request.getCount();
+    if (first <= 0 || count <= 0 || count > MAX_SKIP_COUNT) {
+      System.err.printf("[ERROR] Got invalid skip of %d numbers from SN %d\n", count, first);
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT
+              .withDescription(String.format("Invalid skip of %d numbers from %d", count, first))
+              .asRuntimeException());
+      return;
+    }
+
+    // nothing to wait for, the numbers are consumed in order by the apply thread
+    tuplesSpace.skip(first, count);
+    System.out.println(
+        "[INFO] " + String.format("Ran 'skip' of SN %d to %d", first, first + count - 1));
+    streamObserver.onNext(SkipResponse.getDefaultInstance());
+    streamObserver.onCompleted();
+  }
+
+  @Override
+  public void newEpoch(NewEpochRequest request, StreamObserver<NewEpochResponse> streamObserver) {
+    long epoch = request.getEpoch();
+    long first = request.getFirstSeqNumber();
+    if (epoch <= 0 || first <= 0) {
+      System.err.printf("[ERROR] Got invalid epoch %d starting at SN %d\n", epoch, first);
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT
+              .withDescription(String.format("Invalid epoch %d starting at %d", epoch, first))
+              .asRuntimeException());
+      return;
+    }
+
+    if (tuplesSpace.newEpoch(epoch, first)) {
+      System.out.println(
+          "[INFO] "
+              + String.format(
+                  "Ran 'newEpoch' %d, resolving missing SN below %d with the peers", epoch, first));
+    } else {
+      debug(String.format("Epoch %d starting at SN %d already started", epoch, first));
+    }
+    streamObserver.onNext(NewEpochResponse.getDefaultInstance());
+    streamObserver.onCompleted();
+  }
+
+  @Override
+  public void resolveGap(
+      ResolveGapRequest request, StreamObserver<ResolveGapResponse> streamObserver) {
+    long seqNumber = request.getSeqNumber();
+    long end = request.getEndSeqNumber() == 0 ? seqNumber + 1 : request.getEndSeqNumber();
+    boolean epochless = end > seqNumber + 1 && request.getEpoch() <= 0 && !request.getRelease();
+    if (seqNumber <= 0 || end <= seqNumber || epochless) {
+      System.err.printf("[ERROR] Got gap of invalid SN %d to %d\n", seqNumber, end - 1);
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT
+              .withDescription(
+                  String.format("Invalid sequence numbers %d to %d", seqNumber, end - 1))
+              .asRuntimeException());
+      return;
+    }
+
+    ServerState.GapStatus status;
+    String requester = request.getRequester();
+    if (request.getRelease()) {
+      tuplesSpace.releaseGaps(seqNumber, end, requester);
+      status = tuplesSpace.getGapStatus(seqNumber);
+    } else if (end == seqNumber + 1) {
+      status =
+          request.getFill()
+              ? tuplesSpace.fillGap(seqNumber)
+              : tuplesSpace.promiseGap(seqNumber, requester);
+    } else {
+      status =
+          request.getFill()
+              ? tuplesSpace.skipGaps(seqNumber, end, request.getEpoch())
+              : tuplesSpace.promiseGaps(seqNumber, end, requester);
+    }
+    if (request.getFill()) {
+      System.out.println(
+          "[INFO] "
+              + String.format(
+                  "Ran 'resolveGap' filling SN %d to %d, it is %s", seqNumber, end - 1, status));
+    } else {
+      debug(String.format("SN %d to %d - Asked about gap, it is %s", seqNumber, end - 1, status));
+    }
+    streamObserver.onNext(
+        ResolveGapResponse.newBuilder()
+            .setStatus(ResolveGapResponse.Status.forNumber(status.ordinal()))
+            .build());
+    streamObserver.onCompleted();
+  }
+
+  @Override
+  public void fetchOperation(
+      FetchOperationRequest request, StreamObserver<FetchOperationResponse> streamObserver) {
+    long seqNumber = request.getSeqNumber();
+    if (seqNumber <= 0) {
+      System.err.printf("[ERROR] Got fetch of invalid SN %d\n", seqNumber);
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT
+              .withDescription(String.format("Invalid sequence number %d", seqNumber))
+              .asRuntimeException());
+      return;
+    }
+
+    LogRecord operation = tuplesSpace.getAppliedOperation(seqNumber);
+    FetchOperationResponse.Builder response = FetchOperationResponse.newBuilder();
+    if (operation != null) {
+      response
+          .setFound(true)
+          .setOperation(
+              TransferredOperation.newBuilder()
+                  .setSeqNumber(operation.getSeqNumber())
+                  .setType(TransferredOperation.Type.forNumber(operation.getType().ordinal()))
+                  .setValue(operation.getValue()));
+    } else {
+      response.setForgotten(tuplesSpace.isForgotten(seqNumber));
+    }
+    debug(String.format("SN %d - Peer fetched it, found=%b", seqNumber, operation != null));
+    streamObserver.onNext(response.build());
     streamObserver.onCompleted();
   }
 
@@ -86,4 +418,191 @@ public class TuplesSpaceServiceImpl extends TupleSpacesReplicaImplBase {
     streamObserver.onNext(response);
     streamObserver.onCompleted();
   }
+
+  @Override
+  public void getTupleSpacesStateStream(
+      getTupleSpacesStateStreamRequest request,
+      StreamObserver<getTupleSpacesStateResponse> responseObserver) {
+    ServerCallStreamObserver<getTupleSpacesStateResponse> streamObserver =
+        (ServerCallStreamObserver<getTupleSpacesStateResponse>) responseObserver;
+    int chunkSize = request.getChunkSize() > 0 ? request.getChunkSize() : DEFAULT_CHUNK_SIZE;
+    long minSeqNumber = request.getMinSeqNumber();
+    if (minSeqNumber < 0) {
+      System.err.println("[ERROR] Got invalid minimum sequence number " + minSeqNumber);
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT
+              .withDescription("Invalid minimum sequence number " + minSeqNumber)
+              .asRuntimeException());
+      return;
+    }
+
+    // like a read, the state is only copied once this replica caught up with the client, without
+    // holding a thread until then, a receiver cancelling the stream stops the wait
+    CompletableFuture<Void> applied = tuplesSpace.whenApplied(minSeqNumber);
+    StreamSender<getTupleSpacesStateResponse> sender =
+        new StreamSender<>(streamObserver, streamExecutor, () -> applied.cancel(false));
+    applied.thenRunAsync(
+        () -> sendState(request.getSearchPattern(), chunkSize, streamObserver, sender),
+        streamExecutor);
+  }
+
+  /**
+   * Copy the state of the TupleSpaces and stream it in chunks.
+   *
+   * @param searchPattern pattern of the tuples to be sent, empty for every tuple
+   * @param chunkSize tuples per message
+   * @param streamObserver observer of the RPC
+   * @param sender sender of the stream
+   */
+  private void sendState(
+      String searchPattern,
+      int chunkSize,
+      ServerCallStreamObserver<getTupleSpacesStateResponse> streamObserver,
+      StreamSender<getTupleSpacesStateResponse> sender) {
+    List<String> tuples;
+    try {
+      tuples =
+          searchPattern.isEmpty()
+              ? tuplesSpace.getTupleSpacesState()
+              : tuplesSpace.getTupleSpacesState(searchPattern);
+    } catch (InvalidInputSearchPatternException e) {
+      debug(e.getMessage());
+      System.err.println("[ERROR] Got invalid search pattern " + searchPattern);
+      streamObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+      return;
+    }
+
+    // the copy is consistent, chunks are only built from it as the client takes them
+    sender.start(
+        new StreamSender.Source<>() {
+          private int sent = 0;
+          private boolean finished = false;
+
+          @Override
+          public getTupleSpacesStateResponse next() {
+            if (finished) {
+              return null;
+            }
+            List<String> chunk = tuples.subList(sent, Math.min(sent + chunkSize, tuples.size()));
+            sent += chunk.size();
+            finished = sent == tuples.size(); // an empty state is still sent as an empty chunk
+            if (finished) {
+              System.out.println("[INFO] Ran 'getTupleSpacesStateStream'");
+            }
+            return getTupleSpacesStateResponse.newBuilder().addAllTuple(chunk).build();
+          }
+
+          @Override
+          public boolean isFinished() {
+            return finished;
+          }
+        });
+  }
+
+  @Override
+  public void transferState(
+      TransferStateRequest request, StreamObserver<TransferStateResponse> responseObserver) {
+    ServerCallStreamObserver<TransferStateResponse> streamObserver =
+        (ServerCallStreamObserver<TransferStateResponse>) responseObserver;
+    int chunkSize =
+        request.getChunkSize() > 0 ? request.getChunkSize() : DEFAULT_CHUNK_SIZE;
+
+    StateTransfer transfer = tuplesSpace.beginTransfer();
+    StreamSender<TransferStateResponse> sender =
+        new StreamSender<>(streamObserver, streamExecutor, () -> tuplesSpace.endTransfer(transfer));
+    transfer.setOnApplied(sender::sendLater);
+    sender.start(new TransferSource(transfer, chunkSize, request.getLingerMillis(), sender));
+  }
+
+  /**
+   * Messages of a state transfer: the snapshot first, in chunks so a large tuple space doesn't need
+   * a single huge message, then every operation applied since, until some time after the joining
+   * replica caught up.
+   */
+  private static class TransferSource implements StreamSender.Source<TransferStateResponse> {
+    private final StateTransfer transfer;
+    private final int chunkSize;
+    private final long lingerMillis;
+    private final StreamSender<TransferStateResponse> sender; // woken up once the linger is over
+    private final List<LogRecord> operations;
+    private int sent = 0; // snapshot tuples sent
+    private boolean snapshotSent = false;
+    private long deadline = Long.MAX_VALUE; // set once caught up
+    private boolean finished = false; // the linger is over
+
+    TransferSource(
+        StateTransfer transfer,
+        int chunkSize,
+        long lingerMillis,
+        StreamSender<TransferStateResponse> sender) {
+      this.transfer = transfer;
+      this.chunkSize = chunkSize;
+      this.lingerMillis = lingerMillis;
+      this.sender = sender;
+      this.operations = new ArrayList<>(chunkSize);
+    }
+
+    @Override
+    public TransferStateResponse next() {
+      if (transfer.isOverflowed()) {
+        // the joining replica registers with what it has and fetches the rest from the peers
+        System.err.println("[WARN] Joining replica fell too far behind, aborting state transfer");
+        throw Status.RESOURCE_EXHAUSTED
+            .withDescription("Too many operations applied since the snapshot, fetch them instead")
+            .asRuntimeException();
+      }
+      Snapshot snapshot = transfer.getSnapshot();
+      if (!snapshotSent) {
+        List<String> tuples = snapshot.getTuples();
+        List<String> chunk = tuples.subList(sent, Math.min(sent + chunkSize, tuples.size()));
+        sent += chunk.size();
+        TransferStateResponse.Builder response =
+            TransferStateResponse.newBuilder()
+                .setSnapshotSeqNumber(snapshot.getSeqNumber())
+                .addAllTuple(chunk);
+        if (sent == tuples.size()) {
+          response.addAllPendingTake(snapshot.getPendingTakes()).setSnapshotComplete(true);
+          snapshotSent = true;
+        }
+        return response.build();
+      }
+
+      if (isFinished()) {
+        return null;
+      }
+      operations.clear();
+      try {
+        transfer.poll(chunkSize, 0, TimeUnit.MILLISECONDS, operations);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw Status.CANCELLED.withDescription("Interrupted").asRuntimeException();
+      }
+      TransferStateResponse.Builder response = TransferStateResponse.newBuilder();
+      for (LogRecord operation : operations) {
+        response.addOperation(
+            TransferredOperation.newBuilder()
+                .setSeqNumber(operation.getSeqNumber())
+                .setType(TransferredOperation.Type.forNumber(operation.getType().ordinal()))
+                .setValue(operation.getValue()));
+      }
+      // a partial batch means every applied operation was sent
+      if (deadline == Long.MAX_VALUE && operations.size() < chunkSize) {
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        sender.sendAfter(lingerMillis);
+        return response.setCaughtUp(true).build();
+      }
+      return operations.isEmpty() ? null : response.build(); // nothing to say otherwise
+    }
+
+    @Override
+    public boolean isFinished() {
+      if (!finished && System.nanoTime() >= deadline) {
+        finished = true;
+        System.out.printf(
+            "[INFO] Ran 'transferState' from SN %d\n", transfer.getSnapshot().getSeqNumber());
+      }
+      return finished;
+    }
+  }
 }
@@ -0,0 +1,122 @@
+package pt.ulisboa.tecnico.tuplespaces.server;
+
+import com.google.protobuf.TextFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.FieldPattern.Range;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.Tuple;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.TupleField;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.TuplePattern;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.FieldPattern;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputSearchPatternException;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputTupleStringException;
+
+/**
+ * Conversion of the typed tuples and structured patterns of the replica contract to the text form
+ * fields are stored in. Integers and reals are written in their decimal form, so a string tuple
+ * "&lt;a,1&gt;" and a typed tuple with the text "a" and the integer 1 are the same tuple.
+ */
+public class TypedTuples {
+  private TypedTuples() {}
+
+  /**
+   * Get the text form of every field of a typed tuple.
+   *
+   * @param tuple typed tuple
+   * @return text form of the fields, in order
+   * @throws InvalidInputTupleStringException if a field has no value, isn't finite or holds a
+   *     character that can't be stored
+   */
+  public static List<String> fields(Tuple tuple) throws InvalidInputTupleStringException {
+    List<String> fields = new ArrayList<>(tuple.getFieldCount());
+    for (TupleField field : tuple.getFieldList()) {
+      String text = text(field);
+      if (text == null || ServerState.isInvalidField(text)) {
+        throw new InvalidInputTupleStringException(TextFormat.shortDebugString(tuple));
+      }
+      fields.add(text);
+    }
+    return fields;
+  }
+
+  /**
+   * Get the field patterns of a structured pattern.
+   *
+   * @param pattern structured pattern
+   * @return pattern of every field, in order
+   * @throws InvalidInputSearchPatternException if a field has no constraint, an invalid regex or
+   *     range bounds of different types
+   */
+  public static List<FieldPattern> fieldPatterns(TuplePattern pattern)
+      throws InvalidInputSearchPatternException {
+    List<FieldPattern> fields = new ArrayList<>(pattern.getFieldCount());
+    try {
+      for (TupleSpacesReplicaTotalOrder.FieldPattern field : pattern.getFieldList()) {
+        switch (field.getMatchCase()) {
+          case LITERAL:
+            String literal = text(field.getLiteral());
+            if (literal == null) {
+              throw new IllegalArgumentException("Literal without a value");
+            }
+            fields.add(FieldPattern.literal(literal));
+            break;
+          case ANY:
+            fields.add(FieldPattern.any());
+            break;
+          case REGEX:
+            fields.add(FieldPattern.regex(field.getRegex()));
+            break;
+          case RANGE:
+            fields.add(range(field.getRange()));
+            break;
+          default:
+            throw new IllegalArgumentException("Field pattern without a constraint");
+        }
+      }
+    } catch (IllegalArgumentException e) { // PatternSyntaxException and NumberFormatException too
+      throw new InvalidInputSearchPatternException(TextFormat.shortDebugString(pattern));
+    }
+    return fields;
+  }
+
+  private static FieldPattern range(Range range) throws IllegalArgumentException {
+    TupleField.ValueCase minType = range.hasMin() ? range.getMin().getValueCase() : null;
+    TupleField.ValueCase maxType = range.hasMax() ? range.getMax().getValueCase() : null;
+    String min = range.hasMin() ? text(range.getMin()) : null;
+    String max = range.hasMax() ? text(range.getMax()) : null;
+
+    if (isText(minType) || isText(maxType)) {
+      if ((minType != null && !isText(minType)) || (maxType != null && !isText(maxType))) {
+        throw new IllegalArgumentException("Range between text and a number");
+      }
+      return FieldPattern.textRange(min, max);
+    }
+    if (minType == TupleField.ValueCase.BINARY || maxType == TupleField.ValueCase.BINARY) {
+      throw new IllegalArgumentException("Range of binary values");
+    }
+    return FieldPattern.numericRange(min, max);
+  }
+
+  private static boolean isText(TupleField.ValueCase type) {
+    return type == TupleField.ValueCase.TEXT;
+  }
+
+  /** Text form of a typed field, null if it has no value or isn't finite */
+  private static String text(TupleField field) {
+    switch (field.getValueCase()) {
+      case TEXT:
+        return field.getText();
+      case INTEGER:
+        return Long.toString(field.getInteger());
+      case REAL:
+        return Double.isFinite(field.getReal()) ? Double.toString(field.getReal()) : null;
+      case BINARY:
+        return Base64.getEncoder().encodeToString(field.getBinary().toByteArray());
+      default:
+        return null;
+    }
+  }
+}
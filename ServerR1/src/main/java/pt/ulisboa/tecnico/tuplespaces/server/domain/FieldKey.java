@@ -0,0 +1,29 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.Objects;
+
+/** Index key of a field with a given value, at a given position, on tuples of a given arity */
+class FieldKey {
+  private final int arity;
+  private final int position;
+  private final String value;
+
+  FieldKey(int arity, int position, String value) {
+    this.arity = arity;
+    this.position = position;
+    this.value = value;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof FieldKey)) return false;
+    FieldKey other = (FieldKey) o;
+    return arity == other.arity && position == other.position && value.equals(other.value);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(arity, position, value);
+  }
+}
@@ -0,0 +1,255 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Constraint on a single field of a structured search pattern.
+ *
+ * <p>A field is matched on its own text form: a literal is compared for equality, a regex only has
+ * to match the field, a numeric range parses the field as a decimal number and a text range
+ * compares it lexicographically. None of them needs a regex over the whole tuple, and literal
+ * fields can still be looked up in the TupleStore field index.
+ *
+ * <p>Patterns are logged, snapshotted and transferred by their source, so a list of field patterns
+ * has a text encoding that {@link #decode(String)} turns back into the same patterns. Every field
+ * is a kind letter followed by its length prefixed values (e.g "L2:sd" for the literal "sd").
+ */
+public class FieldPattern {
+  public enum Kind {
+    LITERAL('L'),
+    ANY('A'),
+    REGEX('R'),
+    NUMERIC_RANGE('N'),
+    TEXT_RANGE('T');
+
+    private final char code;
+
+    Kind(char code) {
+      this.code = code;
+    }
+  }
+
+  private static final char UNBOUNDED = '-';
+
+  private final Kind kind;
+  private final String value; // literal or regex source, null otherwise
+  private final Pattern regex; // null if not a regex
+  private final String min; // inclusive range bounds, null if unbounded or not a range
+  private final String max;
+  private final BigDecimal numericMin; // parsed bounds of a numeric range
+  private final BigDecimal numericMax;
+
+  private FieldPattern(Kind kind, String value, String min, String max) {
+    this.kind = kind;
+    this.value = value;
+    this.regex = kind == Kind.REGEX ? Pattern.compile(value) : null;
+    this.min = min;
+    this.max = max;
+    this.numericMin = kind == Kind.NUMERIC_RANGE && min != null ? new BigDecimal(min) : null;
+    this.numericMax = kind == Kind.NUMERIC_RANGE && max != null ? new BigDecimal(max) : null;
+  }
+
+  /**
+   * Field equal to the given value.
+   *
+   * @param value text form of the field
+   * @return field pattern
+   */
+  public static FieldPattern literal(String value) {
+    return new FieldPattern(Kind.LITERAL, value, null, null);
+  }
+
+  /** Field with any value */
+  public static FieldPattern any() {
+    return new FieldPattern(Kind.ANY, null, null, null);
+  }
+
+  /**
+   * Field matching the given regex, the regex is only matched against the field.
+   *
+   * @param regex regex source
+   * @return field pattern
+   * @throws PatternSyntaxException if the regex is invalid
+   */
+  public static FieldPattern regex(String regex) throws PatternSyntaxException {
+    return new FieldPattern(Kind.REGEX, regex, null, null);
+  }
+
+  /**
+   * Field holding a number between the given bounds.
+   *
+   * @param min inclusive lower bound, null if unbounded
+   * @param max inclusive upper bound, null if unbounded
+   * @return field pattern
+   * @throws NumberFormatException if a bound isn't a decimal number
+   */
+  public static FieldPattern numericRange(String min, String max) throws NumberFormatException {
+    return new FieldPattern(Kind.NUMERIC_RANGE, null, min, max);
+  }
+
+  /**
+   * Field lexicographically between the given bounds.
+   *
+   * @param min inclusive lower bound, null if unbounded
+   * @param max inclusive upper bound, null if unbounded
+   * @return field pattern
+   */
+  public static FieldPattern textRange(String min, String max) {
+    return new FieldPattern(Kind.TEXT_RANGE, null, min, max);
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  /** Returns the value the field must be equal to, null if the pattern isn't a literal */
+  public String getLiteral() {
+    return kind == Kind.LITERAL ? value : null;
+  }
+
+  /**
+   * Test a tuple field against this pattern.
+   *
+   * @param field text form of the field
+   * @return true if the field matches
+   */
+  public boolean matches(String field) {
+    switch (kind) {
+      case LITERAL:
+        return value.equals(field);
+      case ANY:
+        return true;
+      case REGEX:
+        return regex.matcher(field).matches();
+      case NUMERIC_RANGE:
+        BigDecimal number;
+        try {
+          number = new BigDecimal(field);
+        } catch (NumberFormatException e) {
+          return false;
+        }
+        return (numericMin == null || number.compareTo(numericMin) >= 0)
+            && (numericMax == null || number.compareTo(numericMax) <= 0);
+      default:
+        return (min == null || field.compareTo(min) >= 0)
+            && (max == null || field.compareTo(max) <= 0);
+    }
+  }
+
+  /**
+   * Encode field patterns in their text form.
+   *
+   * @param fields field patterns in field order
+   * @return encoded patterns (e.g "L2:sdAR8:turno[12]")
+   */
+  public static String encode(List<FieldPattern> fields) {
+    StringBuilder encoded = new StringBuilder();
+    for (FieldPattern field : fields) {
+      encoded.append(field.kind.code);
+      switch (field.kind) {
+        case LITERAL:
+        case REGEX:
+          appendValue(encoded, field.value);
+          break;
+        case NUMERIC_RANGE:
+        case TEXT_RANGE:
+          appendValue(encoded, field.min);
+          appendValue(encoded, field.max);
+          break;
+        default:
+          break;
+      }
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * Decode field patterns from their text form.
+   *
+   * @param encoded encoded patterns, as returned by {@link #encode(List)}
+   * @return field patterns in field order
+   * @throws IllegalArgumentException if the encoding or one of the patterns is invalid
+   */
+  public static List<FieldPattern> decode(String encoded) throws IllegalArgumentException {
+    List<FieldPattern> fields = new ArrayList<>();
+    int[] position = {0};
+    while (position[0] < encoded.length()) {
+      char code = encoded.charAt(position[0]++);
+      switch (code) {
+        case 'L':
+          fields.add(literal(readRequiredValue(encoded, position)));
+          break;
+        case 'A':
+          fields.add(any());
+          break;
+        case 'R':
+          fields.add(regex(readRequiredValue(encoded, position)));
+          break;
+        case 'N':
+          fields.add(numericRange(readValue(encoded, position), readValue(encoded, position)));
+          break;
+        case 'T':
+          fields.add(textRange(readValue(encoded, position), readValue(encoded, position)));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown field pattern kind " + code);
+      }
+    }
+    return fields;
+  }
+
+  @Override
+  public String toString() {
+    switch (kind) {
+      case LITERAL:
+        return value;
+      case ANY:
+        return "*";
+      case REGEX:
+        return "/" + value + "/";
+      default:
+        return String.format("[%s..%s]", min == null ? "" : min, max == null ? "" : max);
+    }
+  }
+
+  private static void appendValue(StringBuilder encoded, String value) {
+    if (value == null) {
+      encoded.append(UNBOUNDED);
+    } else {
+      encoded.append(value.length()).append(':').append(value);
+    }
+  }
+
+  private static String readRequiredValue(String encoded, int[] position) {
+    String value = readValue(encoded, position);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing field pattern value");
+    }
+    return value;
+  }
+
+  private static String readValue(String encoded, int[] position) {
+    if (position[0] >= encoded.length()) {
+      throw new IllegalArgumentException("Truncated field pattern");
+    }
+    if (encoded.charAt(position[0]) == UNBOUNDED) {
+      position[0]++;
+      return null;
+    }
+    int colon = encoded.indexOf(':', position[0]);
+    if (colon == -1) {
+      throw new IllegalArgumentException("Truncated field pattern");
+    }
+    int length = Integer.parseInt(encoded.substring(position[0], colon));
+    int end = colon + 1 + length;
+    if (length < 0 || end > encoded.length()) {
+      throw new IllegalArgumentException("Truncated field pattern");
+    }
+    position[0] = end;
+    return encoded.substring(colon + 1, end);
+  }
+}
@@ -0,0 +1,101 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Bounded cache of compiled search patterns with LRU eviction.
+ *
+ * <p>Matching a tuple with {@code String.matches} compiles the regex on every call, so a scan over
+ * the whole TupleSpaces would compile the same pattern once per tuple. The cache is shared by
+ * every operation of a ServerState and is safe to use from concurrent gRPC threads.
+ */
+public class PatternCache {
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private final int capacity;
+  private final Map<String, Pattern> patterns; // kept in access order, eldest is evicted first
+  private final ReentrantLock lock = new ReentrantLock(); // doesn't pin virtual threads
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public PatternCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public PatternCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Pattern cache capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.patterns =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > PatternCache.this.capacity;
+          }
+        };
+  }
+
+  /**
+   * Get the compiled form of the given pattern, compiling and caching it on a miss.
+   *
+   * @param pattern regex to be compiled
+   * @return compiled pattern
+   * @throws PatternSyntaxException if the given pattern is not a valid regex
+   */
+  public Pattern get(String pattern) throws PatternSyntaxException {
+    lock.lock();
+    try {
+      Pattern compiled = patterns.get(pattern);
+      if (compiled != null) {
+        hits.incrementAndGet();
+        return compiled;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    // compile outside the lock, a concurrent miss on the same pattern only wastes one compile
+    misses.incrementAndGet();
+    Pattern compiled = Pattern.compile(pattern);
+    lock.lock();
+    try {
+      Pattern previous = patterns.putIfAbsent(pattern, compiled);
+      return previous != null ? previous : compiled;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return patterns.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "{size=%d, capacity=%d, hits=%d, misses=%d}", size(), capacity, getHits(), getMisses());
+  }
+}
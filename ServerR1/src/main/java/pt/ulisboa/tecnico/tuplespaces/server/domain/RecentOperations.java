@@ -0,0 +1,60 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+
+/**
+ * Bounded ring of the most recently applied operations, indexed by sequence number.
+ *
+ * <p>A replica that missed an operation fetches it from its peers, which have usually applied it
+ * only milliseconds before. Only the last operations are kept: an operation is evicted once the one
+ * numbered the ring capacity after it is applied, and can't be fetched from this replica anymore.
+ * A replica lagging further behind than that is told the operation was forgotten rather than not
+ * applied yet, and transfers the whole state of a peer instead, since its gap can't be filled
+ * either, the peers received the operation. The ring isn't thread safe, it is guarded by the
+ * ServerState lock.
+ */
+public class RecentOperations {
+  private final LogRecord[] records;
+
+  /**
+   * @param capacity number of operations kept
+   */
+  public RecentOperations(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+    }
+    this.records = new LogRecord[capacity];
+  }
+
+  /**
+   * Keep an applied operation, replacing the oldest one kept in its slot.
+   *
+   * @param record applied operation
+   */
+  public void add(LogRecord record) {
+    records[slot(record.getSeqNumber())] = record;
+  }
+
+  /**
+   * Get a recently applied operation.
+   *
+   * @param seqNumber sequence number of the operation
+   * @return applied operation or null if it wasn't applied or isn't kept anymore
+   */
+  public LogRecord get(long seqNumber) {
+    LogRecord record = records[slot(seqNumber)];
+    if (record == null || record.getSeqNumber() != seqNumber) {
+      return null;
+    }
+    return record;
+  }
+
+  /** Returns the number of operations kept */
+  public int capacity() {
+    return records.length;
+  }
+
+  private int slot(long seqNumber) {
+    return (int) Math.floorMod(seqNumber, (long) records.length);
+  }
+}
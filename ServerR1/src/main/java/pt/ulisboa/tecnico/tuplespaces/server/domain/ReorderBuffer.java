@@ -0,0 +1,416 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffer of sequenced operations that hands them out in sequence number order.
+ *
+ * <p>Operations may arrive in any order, only the single consumer (the ServerState apply thread)
+ * ever waits on the buffer, and it is only woken when the next expected sequence number arrives.
+ * A lock is used instead of the object monitor so producers running on virtual threads don't pin
+ * their carrier thread while waiting for it.
+ *
+ * <p>The buffer can be paused while a replica waits for a state transfer, operations are then
+ * buffered whatever their sequence number until the buffer is restarted at the first sequence
+ * number not covered by the transferred state.
+ *
+ * <p>Ranges of numbers that will never arrive can be skipped: once the consumer reaches a range,
+ * the operations of it that are buffered are still handed out in order, but the consumer no longer
+ * waits for the missing ones. Reaching the end of a range over a missing number hands out a marker
+ * in their place, so the jump can be recorded.
+ *
+ * <p>Missing numbers can also be promised away: operations offered with a promised number are
+ * refused, only operations offered as resolved (a no-op filling the gap, or the operation fetched
+ * from a peer) are still accepted for it. Promises are made to a requester and withdrawn by it, a
+ * number stays refused while any requester holds a promise for it.
+ *
+ * @param <T> type of the buffered operations
+ */
+public class ReorderBuffer<T> {
+  private final Map<Long, T> buffered = new HashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition nextBuffered = lock.newCondition(); // signalled when next arrives
+  private final Condition consumed = lock.newCondition(); // signalled when the consumer asks again
+  private long next; // next sequence number to be handed out
+  private boolean closed = false;
+  private boolean paused = false; // operations are buffered but not handed out
+  private boolean consuming = false; // the consumer still handles the last operations handed out
+  private final TreeMap<Long, Skip<T>> skips = new TreeMap<>(); // by first number of the range
+  // first number to the end of the range promised to each requester, refused numbers
+  private final TreeMap<Long, Map<String, Long>> promised = new TreeMap<>();
+
+  /** Range of numbers whose missing ones are skipped */
+  private static class Skip<T> {
+    final long end; // number right after the range
+    final T marker; // handed out when the end is reached over a missing number, may be null
+
+    Skip(long end, T marker) {
+      this.end = end;
+      this.marker = marker;
+    }
+  }
+
+  public ReorderBuffer(long firstSeqNumber) {
+    this.next = firstSeqNumber;
+  }
+
+  /**
+   * Buffer an operation.
+   *
+   * @param seqNumber sequence number of the operation
+   * @param operation operation to be buffered
+   * @return false if the sequence number was already handed out, is already buffered or promised
+   */
+  public boolean offer(long seqNumber, T operation) {
+    lock.lock();
+    try {
+      if (isPromised(seqNumber)) {
+        return false;
+      }
+      return offerResolved(seqNumber, operation);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Buffer an operation that resolves a missing number, even if the number was promised.
+   *
+   * @param seqNumber sequence number of the operation
+   * @param operation operation to be buffered
+   * @return false if the sequence number was already handed out or is already buffered
+   */
+  public boolean offerResolved(long seqNumber, T operation) {
+    lock.lock();
+    try {
+      if ((!paused && seqNumber < next) || buffered.containsKey(seqNumber)) {
+        return false;
+      }
+      buffered.put(seqNumber, operation);
+      if (!paused && seqNumber == next) {
+        nextBuffered.signal(); // wake the consumer only when it can make progress
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Buffer a block of operations with contiguous sequence numbers in a single lock acquisition, the
+   * consumer is woken at most once for the whole block.
+   *
+   * @param firstSeqNumber sequence number of the first operation
+   * @param operations operations numbered from firstSeqNumber in list order
+   * @return operations whose sequence number was already handed out, buffered or promised, in
+   *     list order
+   */
+  public List<T> offerAll(long firstSeqNumber, List<T> operations) {
+    List<T> rejected = new ArrayList<>();
+    lock.lock();
+    try {
+      long seqNumber = firstSeqNumber;
+      for (T operation : operations) {
+        if ((!paused && seqNumber < next)
+            || buffered.containsKey(seqNumber)
+            || isPromised(seqNumber)) {
+          rejected.add(operation);
+        } else {
+          buffered.put(seqNumber, operation);
+        }
+        seqNumber++;
+      }
+      if (!paused && buffered.containsKey(next)) {
+        nextBuffered.signal();
+      }
+      return rejected;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Block until the next operation is buffered and remove every operation that follows it without
+   * a gap.
+   *
+   * @return contiguous operations in sequence number order, empty only once the buffer is closed
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public List<T> awaitContiguous() throws InterruptedException {
+    lock.lock();
+    try {
+      consuming = false;
+      consumed.signalAll();
+      while ((paused || (!buffered.containsKey(next) && skipAt(next) == null)) && !closed) {
+        nextBuffered.await();
+      }
+      List<T> operations = new ArrayList<>();
+      while (true) {
+        Map.Entry<Long, Skip<T>> skip;
+        if (buffered.containsKey(next)) {
+          operations.add(buffered.remove(next));
+          next++;
+        } else if ((skip = skipAt(next)) != null) {
+          skipMissing(skip, operations);
+        } else {
+          break;
+        }
+      }
+      skips.headMap(next).values().removeIf(skip -> skip.end <= next);
+      promised.headMap(next).values().removeIf(ends -> Collections.max(ends.values()) <= next);
+      consuming = !operations.isEmpty();
+      return operations;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Jump over the missing numbers up to the first buffered one of a skipped range, or up to its
+   * end, called while holding the lock.
+   *
+   * @param skip skipped range holding the next number
+   * @param operations operations being handed out, gets the range marker if its end is reached
+   */
+  private void skipMissing(Map.Entry<Long, Skip<T>> skip, List<T> operations) {
+    long to = skip.getValue().end;
+    for (long seqNumber : buffered.keySet()) {
+      if (seqNumber > next && seqNumber < to) {
+        to = seqNumber;
+      }
+    }
+    next = to;
+    if (next == skip.getValue().end) {
+      skips.remove(skip.getKey());
+      if (skip.getValue().marker != null) {
+        operations.add(skip.getValue().marker);
+      }
+    }
+  }
+
+  /** Returns the skipped range holding the given number, null if none, called holding the lock */
+  private Map.Entry<Long, Skip<T>> skipAt(long seqNumber) {
+    for (Map.Entry<Long, Skip<T>> skip : skips.headMap(seqNumber, true).entrySet()) {
+      if (skip.getValue().end > seqNumber) {
+        return skip;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stop waiting for the numbers of a range that didn't arrive, they will never be offered. The
+   * numbers before the range are still waited for.
+   *
+   * @param first first number of the range
+   * @param end number right after the range
+   * @param marker handed out in place of the skipped numbers, if the end is reached over one
+   * @return false if the range was already handed out or skipped
+   */
+  public boolean skipRange(long first, long end, T marker) {
+    lock.lock();
+    try {
+      if (!paused && end <= next) {
+        return false;
+      }
+      for (Skip<T> skip : skips.headMap(first, true).values()) {
+        if (skip.end >= end) {
+          return false;
+        }
+      }
+      skips.put(first, new Skip<>(end, marker));
+      if (!paused && skipAt(next) != null) {
+        nextBuffered.signal();
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Promise to refuse the operations later offered with a number of the given range, unless one
+   * of them was already received. Only operations offered as resolved are accepted for them then.
+   *
+   * @param first first number of the range
+   * @param end number right after the range
+   * @param requester replica the promise is made to
+   * @return false if a number of the range is buffered or was handed out, nothing is promised then
+   */
+  public boolean promiseMissing(long first, long end, String requester) {
+    lock.lock();
+    try {
+      if (first < next) {
+        return false;
+      }
+      for (long seqNumber : buffered.keySet()) {
+        if (seqNumber >= first && seqNumber < end) {
+          return false;
+        }
+      }
+      promised.computeIfAbsent(first, key -> new HashMap<>()).merge(requester, end, Math::max);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Withdraw the promises made to a requester for ranges starting in the given one, its operations
+   * are accepted again unless another requester holds a promise for them.
+   *
+   * @param first first number of the range
+   * @param end number right after the range
+   * @param requester replica the promises were made to
+   */
+  public void releasePromise(long first, long end, String requester) {
+    lock.lock();
+    try {
+      Map<Long, Map<String, Long>> released = promised.subMap(first, end);
+      for (Map<String, Long> ends : released.values()) {
+        ends.remove(requester);
+      }
+      released.values().removeIf(Map::isEmpty);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns true if the number was promised, called while holding the lock */
+  private boolean isPromised(long seqNumber) {
+    for (Map<String, Long> ends : promised.headMap(seqNumber, true).values()) {
+      for (long end : ends.values()) {
+        if (end > seqNumber) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stop handing out operations, they are still buffered. Waits for the consumer to be done with
+   * the operations it was already handed, so they can't be applied over a state installed next.
+   */
+  public void pause() {
+    lock.lock();
+    try {
+      paused = true;
+      while (consuming && !closed) {
+        consumed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Resume handing out operations from the given sequence number.
+   *
+   * @param nextSeqNumber next sequence number to be handed out
+   * @return buffered operations with a lower sequence number, which are dropped, in sequence order
+   */
+  public List<T> resume(long nextSeqNumber) {
+    lock.lock();
+    try {
+      List<T> stale = new ArrayList<>();
+      List<Long> staleSeqNumbers = new ArrayList<>();
+      for (Long seqNumber : buffered.keySet()) {
+        if (seqNumber < nextSeqNumber) {
+          staleSeqNumbers.add(seqNumber);
+        }
+      }
+      staleSeqNumbers.sort(null);
+      for (Long seqNumber : staleSeqNumbers) {
+        stale.add(buffered.remove(seqNumber));
+      }
+
+      next = nextSeqNumber;
+      paused = false;
+      if (buffered.containsKey(next) || skipAt(next) != null) {
+        nextBuffered.signal();
+      }
+      return stale;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Wake the consumer and make it stop waiting for operations */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      nextBuffered.signal();
+      consumed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the next sequence number to be handed out */
+  public long getNext() {
+    lock.lock();
+    try {
+      return next;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the next sequence number if later operations are waiting for it, 0 if there is no such
+   * gap or the buffer is paused.
+   */
+  public long getMissing() {
+    lock.lock();
+    try {
+      if (paused || buffered.isEmpty() || buffered.containsKey(next) || skipAt(next) != null) {
+        return 0;
+      }
+      return next;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns true if an operation with the given number is buffered or was handed out already, only
+   * known for buffered operations while paused.
+   */
+  public boolean hasReceived(long seqNumber) {
+    lock.lock();
+    try {
+      return buffered.containsKey(seqNumber) || (!paused && seqNumber < next);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns true if operations are buffered but not handed out */
+  public boolean isPaused() {
+    lock.lock();
+    try {
+      return paused;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the number of operations waiting for an earlier sequence number */
+  public int size() {
+    lock.lock();
+    try {
+      return buffered.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,397 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiled search pattern together with the field constraints that can be read off its source.
+ *
+ * <p>A search pattern is a regex over the whole tuple string (e.g "&lt;sd,vaga,[^,]+&gt;"). When the
+ * regex can be split on its top level commas and none of the resulting fields is able to match a
+ * comma, every matching tuple has exactly that many fields and the fields without regex
+ * metacharacters must be equal to the corresponding tuple field. Those constraints let the
+ * TupleStore only regex check the tuples in the smallest candidate bucket. Patterns whose shape
+ * can't be safely determined are left unconstrained and fall back to a full scan.
+ *
+ * <p>Patterns without any regex metacharacter only match a single tuple, they are served from the
+ * TupleStore exact match multiset and never go through the regex engine.
+ *
+ * <p>Structured patterns are a list of {@link FieldPattern}, one per field, so their arity and
+ * literal fields are known without parsing a regex and tuples are matched field by field. Their
+ * source is the encoded field list behind {@link #STRUCTURED_PREFIX}, which can't start a string
+ * pattern, so they can be logged and compiled again like any other pattern.
+ */
+public class SearchPattern {
+  public static final int UNKNOWN_ARITY = -1;
+  public static final String STRUCTURED_PREFIX = "#"; // string patterns start with '<'
+
+  private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+  private final String source;
+  private final Pattern compiled; // null for exact patterns
+  private final String exactTuple; // the only tuple matched by the pattern, null if not exact
+  private final int arity; // number of fields of any matching tuple, UNKNOWN_ARITY if unknown
+  private final String[] literals; // literal field values by position, null if not a literal
+  private final FieldPattern[] fields; // field patterns of a structured pattern, null otherwise
+
+  public SearchPattern(String source, Pattern compiled) {
+    this.source = source;
+    this.compiled = compiled;
+    this.exactTuple = literalValue(source);
+
+    List<String> fields = splitFields(source);
+    String[] literals = null;
+    int arity = UNKNOWN_ARITY;
+    if (fields != null && fields.stream().noneMatch(SearchPattern::canMatchComma)) {
+      arity = fields.size();
+      literals = new String[arity];
+      for (int i = 0; i < arity; i++) {
+        literals[i] = literalValue(fields.get(i));
+      }
+    }
+    this.arity = arity;
+    this.literals = literals;
+    this.fields = null;
+  }
+
+  /**
+   * Build a structured search pattern.
+   *
+   * @param fields pattern of every tuple field, in order
+   * @throws IllegalArgumentException if there are no fields
+   */
+  public SearchPattern(List<FieldPattern> fields) throws IllegalArgumentException {
+    if (fields.isEmpty()) {
+      throw new IllegalArgumentException("Structured pattern without fields");
+    }
+    this.source = STRUCTURED_PREFIX + FieldPattern.encode(fields);
+    this.compiled = null;
+    this.fields = fields.toArray(new FieldPattern[0]);
+    this.arity = this.fields.length;
+    this.literals = new String[arity];
+    boolean exact = true;
+    for (int i = 0; i < arity; i++) {
+      literals[i] = this.fields[i].getLiteral();
+      exact &= literals[i] != null;
+    }
+    this.exactTuple = exact ? "<" + String.join(",", literals) + ">" : null;
+  }
+
+  /**
+   * Build a search pattern, only compiling it when it isn't a plain tuple.
+   *
+   * @param source search pattern
+   * @param cache cache of compiled regexes
+   * @return search pattern
+   * @throws PatternSyntaxException if the pattern is not a valid regex
+   * @throws IllegalArgumentException if a structured pattern is invalid
+   */
+  public static SearchPattern compile(String source, PatternCache cache)
+      throws PatternSyntaxException {
+    if (isStructured(source)) {
+      return new SearchPattern(FieldPattern.decode(source.substring(STRUCTURED_PREFIX.length())));
+    }
+    if (literalValue(source) != null) {
+      return new SearchPattern(source, null);
+    }
+    return new SearchPattern(source, cache.get(source));
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  /** Returns true if given source is the source of a structured pattern */
+  public static boolean isStructured(String source) {
+    return source.startsWith(STRUCTURED_PREFIX);
+  }
+
+  /** Returns true if the pattern has no regex constructs and only matches a single tuple */
+  public boolean isExact() {
+    return exactTuple != null;
+  }
+
+  /** Returns the only tuple matched by an exact pattern, null if the pattern isn't exact */
+  public String getExactTuple() {
+    return exactTuple;
+  }
+
+  /** Returns the number of fields of every matching tuple, or UNKNOWN_ARITY */
+  public int getArity() {
+    return arity;
+  }
+
+  /** Returns true if tuples matching this pattern are known to have a fixed number of fields */
+  public boolean hasKnownArity() {
+    return arity != UNKNOWN_ARITY;
+  }
+
+  /**
+   * Get the literal value the field at given position must have.
+   *
+   * @param position field position, must be lower than the pattern arity
+   * @return literal value or null if the field isn't a literal
+   */
+  public String getLiteral(int position) {
+    return literals == null ? null : literals[position];
+  }
+
+  /**
+   * Test given tuple against this pattern.
+   *
+   * @param tuple tuple to be tested
+   * @return true if the whole tuple matches the pattern
+   */
+  public boolean matches(String tuple) {
+    if (exactTuple != null) {
+      return exactTuple.equals(tuple);
+    }
+    if (fields != null) {
+      return matchesFields(tupleFields(tuple));
+    }
+    return compiled.matcher(tuple).matches();
+  }
+
+  /**
+   * Test a tuple that was already split in its fields against this pattern.
+   *
+   * @param tuple tuple to be tested
+   * @param tupleFields fields of the tuple, as returned by {@link #tupleFields(String)}
+   * @return true if the whole tuple matches the pattern
+   */
+  public boolean matches(String tuple, String[] tupleFields) {
+    if (fields != null && exactTuple == null) {
+      return matchesFields(tupleFields);
+    }
+    return matches(tuple);
+  }
+
+  private boolean matchesFields(String[] tupleFields) {
+    if (tupleFields.length != fields.length) {
+      return false;
+    }
+    for (int i = 0; i < fields.length; i++) {
+      if (!fields[i].matches(tupleFields[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+
+  /**
+   * Split the tuple fields of a tuple string, the same split is applied to tuples and patterns so
+   * their field positions line up.
+   *
+   * @param tuple a valid tuple (e.g "&lt;sd,vaga,turno1&gt;")
+   * @return tuple fields (e.g ["sd", "vaga", "turno1"])
+   */
+  public static String[] tupleFields(String tuple) {
+    return tuple.substring(1, tuple.length() - 1).split(",", -1);
+  }
+
+  /**
+   * Split a search pattern in its top level fields, commas inside groups, character classes or
+   * quantifier braces don't separate fields.
+   *
+   * @param pattern search pattern, wrapped in the tuple delimiters
+   * @return list with the source of each field or null if the pattern shape can't be determined
+   */
+  private static List<String> splitFields(String pattern) {
+    String content = pattern.substring(1, pattern.length() - 1);
+    if (content.isEmpty()) {
+      List<String> fields = new ArrayList<>();
+      fields.add(content);
+      return fields;
+    }
+    // a leading quantifier would apply to the opening delimiter, see the ',' case for the others
+    if ("*+?{".indexOf(content.charAt(0)) != -1) {
+      return null;
+    }
+
+    List<String> fields = new ArrayList<>();
+    int classDepth = 0;
+    int groupDepth = 0;
+    boolean inBraces = false;
+    int start = 0;
+    for (int i = 0; i < content.length(); i++) {
+      char c = content.charAt(i);
+      if (c == '\\') {
+        if (i + 1 >= content.length()) {
+          return null; // escapes the closing delimiter
+        }
+        char next = content.charAt(i + 1);
+        if (next == 'Q' || next == 'E') {
+          return null; // quoted sections aren't worth parsing
+        }
+        i++;
+        continue;
+      }
+
+      if (classDepth > 0) {
+        if (c == '[') classDepth++;
+        else if (c == ']') classDepth--;
+        continue;
+      }
+
+      switch (c) {
+        case '[':
+          classDepth++;
+          // a ']' right after the opening bracket (or its negation) is a literal
+          if (i + 1 < content.length() && content.charAt(i + 1) == '^') i++;
+          if (i + 1 < content.length() && content.charAt(i + 1) == ']') i++;
+          break;
+        case '(':
+          // inline flags (e.g "(?i)") change how the following fields match
+          if (i + 2 < content.length()
+              && content.charAt(i + 1) == '?'
+              && (Character.isLetter(content.charAt(i + 2)) || content.charAt(i + 2) == '-')) {
+            return null;
+          }
+          groupDepth++;
+          break;
+        case ')':
+          groupDepth--;
+          if (groupDepth < 0) return null;
+          break;
+        case '{':
+          inBraces = true;
+          break;
+        case '}':
+          inBraces = false;
+          break;
+        case '|':
+          if (groupDepth == 0) return null; // alternation over the whole pattern
+          break;
+        case ',':
+          if (groupDepth == 0 && !inBraces) {
+            // a quantifier leading the next field applies to the comma, e.g "<a,?b>" matches "<ab>"
+            if (i + 1 < content.length() && "*+?{".indexOf(content.charAt(i + 1)) != -1) {
+              return null;
+            }
+            fields.add(content.substring(start, i));
+            start = i + 1;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    if (classDepth != 0 || groupDepth != 0 || inBraces) {
+      return null;
+    }
+    fields.add(content.substring(start));
+    return fields;
+  }
+
+  /**
+   * Conservatively determine if the regex of a single field is able to match a comma.
+   *
+   * @param field regex source of the field
+   * @return false only if the field can't match a comma
+   */
+  private static boolean canMatchComma(String field) {
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\') {
+        char next = field.charAt(++i);
+        // escapes that are able to match a comma (or that we won't evaluate)
+        if (next == ',' || "WDSpPXxu0ckN123456789".indexOf(next) != -1) {
+          return true;
+        }
+      } else if (c == '.' || c == ',') {
+        return true;
+      } else if (c == '{') {
+        i = field.indexOf('}', i); // quantifier bounds aren't matched characters
+        if (i == -1) return true;
+      } else if (c == '[') {
+        int end = classEnd(field, i);
+        if (end == -1 || classCanMatchComma(field.substring(i + 1, end))) {
+          return true;
+        }
+        i = end;
+      }
+    }
+    return false;
+  }
+
+  /** Index of the ']' closing the character class that opens at given index, -1 if nested */
+  private static int classEnd(String field, int open) {
+    int i = open + 1;
+    if (i < field.length() && field.charAt(i) == '^') i++;
+    if (i < field.length() && field.charAt(i) == ']') i++;
+    for (; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\') i++;
+      else if (c == '[') return -1;
+      else if (c == ']') return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Conservatively determine if a (non nested) character class is able to match a comma.
+   *
+   * @param body class contents, without the surrounding brackets
+   * @return false only if the class can't match a comma
+   */
+  private static boolean classCanMatchComma(String body) {
+    if (body.contains("&&")) {
+      return true;
+    }
+    boolean negated = body.startsWith("^");
+    boolean hasComma = false;
+    for (int i = negated ? 1 : 0; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if (c == '\\' && i + 1 < body.length()) {
+        char next = body.charAt(++i);
+        if (next == ',') {
+          hasComma = true;
+        } else if ("WDSpPxu0c".indexOf(next) != -1) {
+          return true;
+        }
+      } else if (c == ',') {
+        hasComma = true;
+      } else if (c == '-' && i > 0 && i + 1 < body.length()) {
+        char low = body.charAt(i - 1);
+        char high = body.charAt(i + 1);
+        if (low <= ',' && ',' <= high) {
+          hasComma = true;
+        }
+      }
+    }
+    return negated != hasComma;
+  }
+
+  /**
+   * Get the literal value matched by a field regex.
+   *
+   * @param field regex source of the field
+   * @return the only string matched by the field or null if the field contains regex constructs
+   */
+  private static String literalValue(String field) {
+    StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\') {
+        char next = field.charAt(++i);
+        if (Character.isLetterOrDigit(next)) {
+          return null; // character classes, anchors and back references
+        }
+        literal.append(next);
+      } else if (METACHARACTERS.indexOf(c) != -1) {
+        return null;
+      } else {
+        literal.append(c);
+      }
+    }
+    return literal.toString();
+  }
+}
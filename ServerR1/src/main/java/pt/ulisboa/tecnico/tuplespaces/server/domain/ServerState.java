@@ -2,39 +2,468 @@ package pt.ulisboa.tecnico.tuplespaces.server.domain;
 
 import static pt.ulisboa.tecnico.tuplespaces.server.ServerMain.debug;
 
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.PatternSyntaxException;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputSearchPatternException;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputTupleStringException;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidSequenceNumberException;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.Snapshot;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.SnapshotStore;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.WriteAheadLog;
 
+/**
+ * TupleSpaces replica state.
+ *
+ * <p>Sequenced operations (put and take) are buffered by sequence number and applied, one at a
+ * time and in order, by a single apply thread. Callers get a future that is completed once their
+ * operation is applied, so no gRPC thread waits for its turn. Reads aren't sequenced, a read
+ * without a matching tuple is parked as a future completed by the put that matches it.
+ *
+ * <p>The state is guarded by a ReentrantLock rather than the object monitor, so handlers running on
+ * virtual threads never pin their carrier thread on it.
+ *
+ * <p>When given a write-ahead log, the state is rebuilt from it on construction and every applied
+ * operation is appended to it. Callers are only answered after the batch their operation was
+ * applied in is committed, so operations applied together share a single write and fsync. If the
+ * log can't be written or committed, the callers of the batch are failed instead and the state
+ * stops applying operations, since it no longer matches what is durable: see {@link
+ * #whenFailed()}.
+ *
+ * <p>When also given a snapshot store, a snapshot is taken every given number of applied
+ * operations: the apply thread copies the tuple and pending take references between two batches
+ * and starts a new log segment, a background thread then writes the snapshot and deletes the log
+ * segments it covers. On construction the latest snapshot is loaded and only the log tail after it
+ * is replayed.
+ *
+ * <p>A running state can be transferred to a joining replica: {@link #beginTransfer()} takes a
+ * consistent cut of the state and queues every operation applied after it. The joining replica
+ * pauses its reorder buffer, installs the transferred snapshot and offers the transferred
+ * operations like any other, operations it receives directly in the meantime are kept buffered.
+ *
+ * <p>The last applied operations are kept in a bounded ring, so a replica that missed one (e.g. a
+ * lost client request) can fetch it from its peers instead of stalling until the client retries.
+ * A replica missing one its peers no longer keep has its state replaced by the one of a peer.
+ *
+ * <p>A read can be given the sequence number of the last operation its client saw applied, it is
+ * only served once this replica applied it too. A client can then read from any single replica
+ * and still see its own writes.
+ */
 public class ServerState {
   private static final String BGN_TUPLE = "<";
   private static final String END_TUPLE = ">";
+  private static final String FIELD_SEPARATOR = ",";
+  private static final int RECENT_OPERATIONS = 4096; // applied operations kept for the peers
+  // operations queued for a joining replica, still kept for the peers once the transfer drops them
+  private static final int TRANSFER_BACKLOG = RECENT_OPERATIONS / 2;
 
-  class PendingTake {
-    private String searchPattern;
+  /** What a replica knows about a sequence number another replica is missing */
+  public enum GapStatus {
+    MISSING, // never received
+    RECEIVED, // an operation with this number was received, it isn't a gap
+    FILLED, // consumed by a no-op
+    UNKNOWN // the state is being transferred, can't tell yet
+  }
+
+  /** Operation waiting in the reorder buffer for its turn to be applied */
+  abstract class SequencedOperation {
+    protected final long seqNumber;
+
+    SequencedOperation(long seqNumber) {
+      this.seqNumber = seqNumber;
+    }
+
+    /** Apply the operation, called by the apply thread while holding the state lock */
+    abstract void apply();
+
+    /** Complete the caller's future, called by the apply thread after releasing the lock */
+    abstract void complete();
+
+    /** Fail the caller's future without applying the operation */
+    abstract void reject(Throwable t);
+
+    /** Record of the operation in the write-ahead log */
+    abstract LogRecord toLogRecord();
+
+    /** Complete the caller's future like the transferred operation with the same number */
+    abstract void follow(SequencedOperation transferred);
+  }
+
+  class PutOperation extends SequencedOperation {
+    private final String tuple;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private List<CompletableFuture<String>> readers;
+    private CompletableFuture<String> taker;
+
+    PutOperation(long seqNumber, String tuple) {
+      super(seqNumber);
+      this.tuple = tuple;
+    }
+
+    @Override
+    void apply() {
+      readers = pendingReads.removeAllMatching(tuple);
+      // the oldest take waiting for this tuple gets it directly, it never enters the space
+      taker = pendingTakes.removeOldestMatching(tuple);
+      if (taker == null) {
+        tuples.add(tuple);
+      }
+    }
+
+    @Override
+    void complete() {
+      // only wake up the operations waiting for this tuple
+      for (CompletableFuture<String> reader : readers) {
+        reader.complete(tuple);
+      }
+      if (taker != null) {
+        debug(String.format("put SN %d - Handed %s to pending take", seqNumber, tuple));
+        taker.complete(tuple);
+      }
+      result.complete(null);
+    }
+
+    @Override
+    void reject(Throwable t) {
+      result.completeExceptionally(t);
+    }
+
+    @Override
+    LogRecord toLogRecord() {
+      return LogRecord.put(seqNumber, tuple);
+    }
+
+    @Override
+    void follow(SequencedOperation transferred) {
+      if (!(transferred instanceof PutOperation)) {
+        reject(new InvalidSequenceNumberException(seqNumber));
+        return;
+      }
+      ((PutOperation) transferred)
+          .result.whenComplete(
+              (ignored, t) -> {
+                if (t != null) {
+                  reject(t);
+                } else {
+                  result.complete(null);
+                }
+              });
+    }
+  }
+
+  class TakeOperation extends SequencedOperation {
+    private final SearchPattern pattern;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private String taken;
+
+    TakeOperation(long seqNumber, SearchPattern pattern) {
+      super(seqNumber);
+      this.pattern = pattern;
+    }
+
+    @Override
+    void apply() {
+      // try to get the tuple, otherwise wait for the put that hands it over
+      taken = tuples.remove(pattern);
+      if (taken == null) {
+        debug(String.format("take SN %d - Waiting for %s", seqNumber, pattern));
+        pendingTakes.register(pattern, result);
+      }
+    }
+
+    @Override
+    void complete() {
+      if (taken != null) {
+        result.complete(taken);
+      }
+    }
+
+    @Override
+    void reject(Throwable t) {
+      result.completeExceptionally(t);
+    }
+
+    @Override
+    LogRecord toLogRecord() {
+      return LogRecord.take(seqNumber, pattern.getSource());
+    }
+
+    @Override
+    void follow(SequencedOperation transferred) {
+      if (!(transferred instanceof TakeOperation)) {
+        reject(new InvalidSequenceNumberException(seqNumber));
+        return;
+      }
+      ((TakeOperation) transferred)
+          .result.whenComplete(
+              (tuple, t) -> {
+                if (t != null) {
+                  reject(t);
+                } else {
+                  result.complete(tuple);
+                }
+              });
+    }
+  }
+
+  /** Consumes a sequence number without changing the state (e.g for invalid operations) */
+  class NoOperation extends SequencedOperation {
+    NoOperation(long seqNumber) {
+      super(seqNumber);
+    }
+
+    @Override
+    void apply() {}
+
+    @Override
+    void complete() {}
+
+    @Override
+    void reject(Throwable t) {}
+
+    @Override
+    LogRecord toLogRecord() {
+      return LogRecord.noop(seqNumber);
+    }
+
+    @Override
+    void follow(SequencedOperation transferred) {}
+  }
 
-    public PendingTake(String pattern) {
-      searchPattern = pattern;
+  /**
+   * Marks the start of a sequencer epoch, handed out by the reorder buffer in place of the numbers
+   * of the previous epoch the replicas agreed will never arrive. Its number is the last one of the
+   * previous epoch.
+   */
+  class EpochOperation extends SequencedOperation {
+    private final long epoch;
+
+    EpochOperation(long seqNumber, long epoch) {
+      super(seqNumber);
+      this.epoch = epoch;
     }
 
-    public String getSearchPattern() {
-      return searchPattern;
+    @Override
+    void apply() {
+      debug(String.format("SN %d - Epoch %d starts, skipped missing numbers", seqNumber, epoch));
+    }
+
+    @Override
+    void complete() {}
+
+    @Override
+    void reject(Throwable t) {}
+
+    @Override
+    LogRecord toLogRecord() {
+      return LogRecord.epoch(seqNumber, epoch);
     }
+
+    @Override
+    void follow(SequencedOperation transferred) {}
   }
 
-  private final List<String> tuples; // tuples in the tuplespace
+  private final TupleStore tuples; // tuples in the tuplespace, indexed by arity and field values
+  private final ReentrantLock lock = new ReentrantLock(); // doesn't pin virtual threads
+  private final PatternCache patternCache = new PatternCache(); // compiled search patterns
+
+  private final WaiterRegistry<CompletableFuture<String>> pendingReads = new WaiterRegistry<>();
+  private final WaiterRegistry<CompletableFuture<String>> pendingTakes =
+      new WaiterRegistry<>(); // FIFO
 
-  private Integer state = 1;
-  private final Lock stateLock = new ReentrantLock();
-  private final Condition stateChange = stateLock.newCondition();
+  private final WriteAheadLog log; // null if the state isn't persisted
+  private final SnapshotStore snapshots; // null if no snapshots are taken
+  private final int snapshotInterval; // applied operations between snapshots, 0 if never
+  private final ExecutorService snapshotWriter; // null if no snapshots are taken
+  private volatile boolean snapshotInProgress = false;
+  private int appliedSinceSnapshot = 0; // only used by the apply thread
+  private final ReorderBuffer<SequencedOperation> reorderBuffer;
+  private final Thread applyThread; // the only thread changing the tuple space
+  private long lastApplied; // sequence number of the last applied operation
 
-  private final List<PendingTake> pendingTakes = new LinkedList<>(); // iteration in FIFO order and appends to end of list
+  private final Set<Long> filledGaps = ConcurrentHashMap.newKeySet(); // numbers filled by no-ops
+  private final NavigableMap<Long, LogRecord> skippedGaps =
+      new ConcurrentSkipListMap<>(); // epoch marker ending each skipped range, by its first number
+  private long epoch = 0; // latest sequencer epoch announced, guarded by the lock
+  private long epochFirstSeqNumber = 0; // first number of that epoch, guarded by the lock
+  private final List<StateTransfer> transfers = new CopyOnWriteArrayList<>(); // being sent
+  private final Map<Long, SequencedOperation> transferred =
+      new ConcurrentHashMap<>(); // received operations, by sequence number
+  private final RecentOperations recent =
+      new RecentOperations(RECENT_OPERATIONS); // guarded by the lock
+  private final Map<Long, SequencedOperation> repaired =
+      new ConcurrentHashMap<>(); // fetched from a peer, by sequence number
+  private final CompletableFuture<IOException> failed =
+      new CompletableFuture<>(); // completed once the write-ahead log fails
+  private final NavigableMap<Long, List<CompletableFuture<Void>>> appliedWaiters =
+      new TreeMap<>(); // reads waiting for a sequence number to be applied, guarded by the lock
 
   public ServerState() {
-    this.tuples = new ArrayList<>();
+    this.tuples = new TupleStore();
+    this.log = null;
+    this.snapshots = null;
+    this.snapshotInterval = 0;
+    this.snapshotWriter = null;
+    this.lastApplied = 0;
+    this.reorderBuffer = new ReorderBuffer<>(1);
+    this.applyThread = startApplyThread();
+  }
+
+  /**
+   * Create a state persisted to the given write-ahead log, replaying the operations already in it.
+   *
+   * @param log write-ahead log of the state
+   * @throws IOException if the log can't be read
+   */
+  public ServerState(WriteAheadLog log) throws IOException {
+    this(log, null, 0);
+  }
+
+  /**
+   * Create a state persisted to the given write-ahead log and snapshot store, loading the latest
+   * snapshot and replaying the operations logged after it.
+   *
+   * @param log write-ahead log of the state
+   * @param snapshots snapshot store of the state, null if there are no snapshots
+   * @param snapshotInterval number of applied operations between snapshots, 0 to never take one
+   * @throws IOException if the snapshot or the log can't be read
+   */
+  public ServerState(WriteAheadLog log, SnapshotStore snapshots, int snapshotInterval)
+      throws IOException {
+    this.tuples = new TupleStore();
+    this.log = log;
+    this.snapshots = snapshots;
+    this.snapshotInterval = snapshotInterval;
+
+    long covered = 0;
+    if (snapshots != null) {
+      this.snapshotWriter =
+          Executors.newSingleThreadExecutor(
+              r -> {
+                Thread thread = new Thread(r, "ServerState-snapshot");
+                thread.setDaemon(true);
+                return thread;
+              });
+      Snapshot snapshot = snapshots.loadLatest();
+      if (snapshot != null) {
+        restore(snapshot);
+        covered = snapshot.getSeqNumber();
+      }
+    } else {
+      this.snapshotWriter = null;
+    }
+
+    this.lastApplied = replay(log.replay(covered), covered);
+    this.reorderBuffer = new ReorderBuffer<>(lastApplied + 1);
+    this.applyThread = startApplyThread();
+  }
+
+  /**
+   * Get a future completed once the write-ahead log failed. The state stopped applying sequenced
+   * operations by then, the replica is meant to shut down.
+   *
+   * @return future completed with the log failure
+   */
+  public CompletableFuture<IOException> whenFailed() {
+    return failed;
+  }
+
+  /** Stop applying sequenced operations and close the write-ahead log, if any. */
+  public void shutdown() {
+    // not interrupted, an interrupt during a log write would close the log file under it
+    reorderBuffer.close();
+    if (log == null) {
+      return;
+    }
+    try {
+      applyThread.join(); // the log is only written by the apply thread
+      if (snapshotWriter != null) {
+        snapshotWriter.shutdown();
+        snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      log.close();
+    } catch (InterruptedException | IOException e) {
+      System.err.printf("[ERROR] Unable to close the write-ahead log: %s\n", e.getMessage());
+    }
+  }
+
+  /**
+   * Get the write-ahead log the state is persisted to.
+   *
+   * @return write-ahead log or null if the state isn't persisted
+   */
+  public WriteAheadLog getWriteAheadLog() {
+    return log;
+  }
+
+  /**
+   * Get the sequence number the next sequenced operation must have.
+   *
+   * @return next sequence number to be applied
+   */
+  public long getNextSeqNumber() {
+    return reorderBuffer.getNext();
+  }
+
+  /**
+   * Get the sequence number of the last applied operation, including no-ops.
+   *
+   * @return last applied sequence number, 0 if none was applied
+   */
+  public long getLastApplied() {
+    lock.lock();
+    try {
+      return lastApplied;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get a future completed once the operation with the given sequence number is applied.
+   * Cancelling the returned future stops waiting for it.
+   *
+   * @param seqNumber sequence number to wait for
+   * @return future completed once the last applied sequence number reaches it
+   */
+  public CompletableFuture<Void> whenApplied(long seqNumber) {
+    CompletableFuture<Void> applied = new CompletableFuture<>();
+    lock.lock();
+    try {
+      if (lastApplied >= seqNumber) {
+        applied.complete(null);
+        return applied;
+      }
+      appliedWaiters.computeIfAbsent(seqNumber, seq -> new ArrayList<>()).add(applied);
+    } finally {
+      lock.unlock();
+    }
+
+    applied.whenComplete(
+        (ignored, t) -> {
+          if (applied.isCancelled()) {
+            lock.lock();
+            try {
+              List<CompletableFuture<Void>> waiters = appliedWaiters.get(seqNumber);
+              if (waiters != null && waiters.remove(applied) && waiters.isEmpty()) {
+                appliedWaiters.remove(seqNumber);
+              }
+            } finally {
+              lock.unlock();
+            }
+          }
+        });
+    return applied;
   }
 
   /**
@@ -48,148 +477,1087 @@ public class ServerState {
   }
 
   /**
-   * Put given tuple in the TupleSpaces.
+   * Determine if given typed tuple field can't be stored, its text form would be split or taken
+   * for a tuple delimiter.
+   *
+   * @param field text form of the field
+   * @return true if given field is invalid
+   */
+  public static boolean isInvalidField(String field) {
+    return field.contains(FIELD_SEPARATOR)
+        || field.contains(BGN_TUPLE)
+        || field.contains(END_TUPLE);
+  }
+
+  /**
+   * Validate and compile given search pattern, compiled patterns are cached across operations and
+   * plain tuples aren't compiled at all. Sources of structured patterns are decoded.
+   *
+   * @param pattern search pattern to be compiled
+   * @return compiled search pattern
+   * @throws InvalidInputSearchPatternException if given pattern is invalid or isn't a valid regex
+   */
+  private SearchPattern compileSearchPattern(String pattern)
+      throws InvalidInputSearchPatternException {
+    if (!SearchPattern.isStructured(pattern) && isInvalidTuple(pattern)) {
+      throw new InvalidInputSearchPatternException(pattern);
+    }
+
+    try {
+      return SearchPattern.compile(pattern, patternCache);
+    } catch (PatternSyntaxException e) {
+      debug(String.format("Invalid regex %s: %s", pattern, e.getDescription()));
+      throw new InvalidInputSearchPatternException(pattern);
+    } catch (IllegalArgumentException e) {
+      debug(String.format("Invalid structured pattern %s: %s", pattern, e.getMessage()));
+      throw new InvalidInputSearchPatternException(pattern);
+    }
+  }
+
+  /**
+   * Build a structured search pattern.
+   *
+   * @param fields pattern of every field
+   * @return search pattern matching tuples field by field
+   * @throws InvalidInputSearchPatternException if there are no fields
+   */
+  private static SearchPattern structuredPattern(List<FieldPattern> fields)
+      throws InvalidInputSearchPatternException {
+    try {
+      return new SearchPattern(fields);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidInputSearchPatternException(fields.toString());
+    }
+  }
+
+  /**
+   * Get the compiled search pattern cache, mostly useful for inspecting its hit/miss counters.
+   *
+   * @return search pattern cache used by this state
+   */
+  public PatternCache getPatternCache() {
+    return patternCache;
+  }
+
+  /**
+   * Put given tuple in the TupleSpaces once every operation before it was applied.
    *
    * @param tuple new tuple to be added.
-   * @throws InvalidInputTupleStringException if given tuple is invalid
+   * @param seqNumber sequence number of the operation
+   * @return future completed when the tuple is put, or failed with InvalidSequenceNumberException
+   * @throws InvalidInputTupleStringException if given tuple is invalid, its sequence number is
+   *     still consumed so the following operations aren't blocked
    */
-  public void put(String tuple, Integer seqNumber) throws InvalidInputTupleStringException {
+  public CompletableFuture<Void> putAsync(String tuple, long seqNumber)
+      throws InvalidInputTupleStringException {
     if (isInvalidTuple(tuple)) {
+      submit(new NoOperation(seqNumber));
       throw new InvalidInputTupleStringException(tuple);
     }
 
-    // lock until it's this operation time to be executed
-    stateLock.lock();
-    while (!seqNumber.equals(state)) {
-      try {
-        debug(String.format("put SN %d, state %d - Out of order, waiting", seqNumber, state));
-        stateChange.await();
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
-      }
+    PutOperation operation = new PutOperation(seqNumber, tuple);
+    submit(operation);
+    return operation.result;
+  }
+
+  /**
+   * Put a typed tuple in the TupleSpaces once every operation before it was applied. The tuple is
+   * stored in the same text form as string tuples, so either kind of pattern can match it.
+   *
+   * @param fields text form of every tuple field
+   * @param seqNumber sequence number of the operation
+   * @return future completed when the tuple is put, or failed with InvalidSequenceNumberException
+   * @throws InvalidInputTupleStringException if there are no fields or one of them is invalid, its
+   *     sequence number is still consumed so the following operations aren't blocked
+   */
+  public CompletableFuture<Void> putAsync(List<String> fields, long seqNumber)
+      throws InvalidInputTupleStringException {
+    String tuple = BGN_TUPLE + String.join(FIELD_SEPARATOR, fields) + END_TUPLE;
+    if (fields.isEmpty() || fields.stream().anyMatch(ServerState::isInvalidField)) {
+      submit(new NoOperation(seqNumber));
+      throw new InvalidInputTupleStringException(fields.toString());
     }
+    return putAsync(tuple, seqNumber);
+  }
 
-    synchronized (this) {
-      this.tuples.add(tuple);
-      notifyAll(); // unlock reads
-      state += 1;
+  /**
+   * Put given tuple in the TupleSpaces, blocking until it is applied.
+   *
+   * @param tuple new tuple to be added.
+   * @param seqNumber sequence number of the operation
+   * @throws InvalidInputTupleStringException if given tuple is invalid
+   */
+  public void put(String tuple, long seqNumber) throws InvalidInputTupleStringException {
+    putAsync(tuple, seqNumber).join();
+  }
+
+  /**
+   * Read a tuple from the TupleSpaces matching the given pattern without blocking the caller. A
+   * read without a matching tuple only costs a registered future until a put completes it.
+   * Cancelling the returned future unregisters the pending read.
+   *
+   * @param pattern to be matched
+   * @return future completed with the read tuple
+   * @throws InvalidInputSearchPatternException if given pattern is invalid
+   */
+  public CompletableFuture<String> readAsync(String pattern)
+      throws InvalidInputSearchPatternException {
+    return readAsync(compileSearchPattern(pattern));
+  }
+
+  /**
+   * Read a tuple from the TupleSpaces matching a structured pattern, see {@link
+   * #readAsync(String)}. Fields are matched one by one, without a regex over the whole tuple.
+   *
+   * @param fields pattern of every field
+   * @return future completed with the read tuple
+   * @throws InvalidInputSearchPatternException if there are no fields
+   */
+  public CompletableFuture<String> readAsync(List<FieldPattern> fields)
+      throws InvalidInputSearchPatternException {
+    return readAsync(structuredPattern(fields));
+  }
+
+  /**
+   * Read a tuple matching the given pattern once the operation with the given sequence number is
+   * applied, see {@link #readAsync(String)}. Cancelling the returned future also stops waiting for
+   * the operation.
+   *
+   * @param pattern to be matched
+   * @param minSeqNumber sequence number the read waits for, 0 to read right away
+   * @return future completed with the read tuple
+   * @throws InvalidInputSearchPatternException if given pattern is invalid
+   */
+  public CompletableFuture<String> readAsync(String pattern, long minSeqNumber)
+      throws InvalidInputSearchPatternException {
+    return readAfter(compileSearchPattern(pattern), minSeqNumber);
+  }
+
+  /**
+   * Read a tuple matching a structured pattern once the operation with the given sequence number
+   * is applied, see {@link #readAsync(String, long)}.
+   *
+   * @param fields pattern of every field
+   * @param minSeqNumber sequence number the read waits for, 0 to read right away
+   * @return future completed with the read tuple
+   * @throws InvalidInputSearchPatternException if there are no fields
+   */
+  public CompletableFuture<String> readAsync(List<FieldPattern> fields, long minSeqNumber)
+      throws InvalidInputSearchPatternException {
+    return readAfter(structuredPattern(fields), minSeqNumber);
+  }
+
+  private CompletableFuture<String> readAfter(SearchPattern compiled, long minSeqNumber) {
+    CompletableFuture<Void> applied = whenApplied(minSeqNumber);
+    if (applied.isDone()) {
+      return readAsync(compiled);
     }
 
-    // wake up oldest take waiting for this tuple
-    for (PendingTake pendingOperation : pendingTakes) {
-      synchronized (pendingOperation) {
-        if (tuple.matches(pendingOperation.getSearchPattern())) {
-          debug(String.format("put SN %d - Notified pending take for %s", seqNumber, pendingOperation.searchPattern));
-          pendingOperation.notify(); // notify take waitin
-          break;
-        }
+    CompletableFuture<String> result = new CompletableFuture<>();
+    applied.thenRun(
+        () -> {
+          CompletableFuture<String> read = readAsync(compiled);
+          result.whenComplete(
+              (ignored, t) -> {
+                if (result.isCancelled()) {
+                  read.cancel(false);
+                }
+              });
+          read.whenComplete(
+              (tuple, t) -> {
+                if (t != null) {
+                  result.completeExceptionally(t);
+                } else {
+                  result.complete(tuple);
+                }
+              });
+        });
+    result.whenComplete(
+        (ignored, t) -> {
+          if (result.isCancelled()) {
+            applied.cancel(false);
+          }
+        });
+    return result;
+  }
+
+  private CompletableFuture<String> readAsync(SearchPattern compiled) {
+    CompletableFuture<String> pendingRead = new CompletableFuture<>();
+    WaiterRegistry.Waiter<CompletableFuture<String>> waiter;
+    lock.lock();
+    try {
+      String t = this.tuples.find(compiled);
+      if (t != null) {
+        pendingRead.complete(t);
+        return pendingRead;
       }
+      waiter = pendingReads.register(compiled, pendingRead);
+    } finally {
+      lock.unlock();
     }
 
-    stateChange.signalAll();
-    stateLock.unlock();
+    // a put hands us a matching tuple, no need to scan again
+    pendingRead.whenComplete(
+        (ignored, t) -> {
+          if (pendingRead.isCancelled()) {
+            lock.lock();
+            try {
+              pendingReads.remove(waiter);
+            } finally {
+              lock.unlock();
+            }
+          }
+        });
+    return pendingRead;
   }
 
   /**
-   * Read a tuple from the TupleSpaces matching the given pattern.
+   * Read a tuple from the TupleSpaces matching the given pattern, blocking until one exists.
    *
    * @param pattern to be matched
    * @return desired tuple
    * @throws InvalidInputSearchPatternException if given pattern is invalid
    */
   public String read(String pattern) throws InvalidInputSearchPatternException {
-    if (isInvalidTuple(pattern)) {
-      throw new InvalidInputSearchPatternException(pattern);
+    CompletableFuture<String> pendingRead = readAsync(pattern);
+    try {
+      return pendingRead.get();
+    } catch (InterruptedException e) {
+      pendingRead.cancel(false);
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
     }
+  }
 
-    synchronized (this) {
-      while (true) {
-        for (String t : this.tuples) {
-          if (t.matches(pattern)) {
-            return t;
-          }
-        }
-        try {
-          wait();
-        } catch (InterruptedException e) {
-          throw new RuntimeException(e);
+  /** Returns the number of reads waiting for a matching tuple */
+  public int getPendingReadCount() {
+    lock.lock();
+    try {
+      return pendingReads.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the number of applied takes waiting for a matching tuple */
+  public int getPendingTakeCount() {
+    lock.lock();
+    try {
+      return pendingTakes.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take a tuple matching the given pattern from the TupleSpaces once every operation before it
+   * was applied. A take without a matching tuple stays pending until a put hands it one.
+   *
+   * @param pattern to be matched
+   * @param seqNumber sequence number of the operation
+   * @return future completed with the taken tuple, or failed with InvalidSequenceNumberException
+   * @throws InvalidInputSearchPatternException if given pattern is invalid, its sequence number is
+   *     still consumed so the following operations aren't blocked
+   */
+  public CompletableFuture<String> takeAsync(String pattern, long seqNumber)
+      throws InvalidInputSearchPatternException {
+    SearchPattern compiled;
+    try {
+      compiled = compileSearchPattern(pattern);
+    } catch (InvalidInputSearchPatternException e) {
+      submit(new NoOperation(seqNumber));
+      throw e;
+    }
+    return takeAsync(compiled, seqNumber);
+  }
+
+  /**
+   * Take a tuple matching a structured pattern from the TupleSpaces, see {@link
+   * #takeAsync(String, long)}.
+   *
+   * @param fields pattern of every field
+   * @param seqNumber sequence number of the operation
+   * @return future completed with the taken tuple, or failed with InvalidSequenceNumberException
+   * @throws InvalidInputSearchPatternException if there are no fields, its sequence number is
+   *     still consumed so the following operations aren't blocked
+   */
+  public CompletableFuture<String> takeAsync(List<FieldPattern> fields, long seqNumber)
+      throws InvalidInputSearchPatternException {
+    SearchPattern compiled;
+    try {
+      compiled = structuredPattern(fields);
+    } catch (InvalidInputSearchPatternException e) {
+      submit(new NoOperation(seqNumber));
+      throw e;
+    }
+    return takeAsync(compiled, seqNumber);
+  }
+
+  private CompletableFuture<String> takeAsync(SearchPattern compiled, long seqNumber) {
+    TakeOperation operation = new TakeOperation(seqNumber, compiled);
+    submit(operation);
+    return operation.result;
+  }
+
+  /**
+   * Take a tuple matching the given pattern from the TupleSpaces, blocking until it is taken.
+   *
+   * @param pattern to be matched
+   * @param seqNumber sequence number of the operation
+   * @return taken tuple
+   * @throws InvalidInputSearchPatternException if given pattern is invalid
+   */
+  public String take(String pattern, long seqNumber) throws InvalidInputSearchPatternException {
+    return takeAsync(pattern, seqNumber).join();
+  }
+
+  /**
+   * Put a block of tuples numbered from the given sequence number. The whole block is buffered at
+   * once, so the apply thread applies it in a single pass under one lock acquisition and commits
+   * it to the log with a single write.
+   *
+   * @param tuples new tuples, in sequence number order
+   * @param firstSeqNumber sequence number of the first tuple
+   * @return future completed when every tuple is put, or failed with InvalidSequenceNumberException
+   * @throws InvalidInputTupleStringException if one of the tuples is invalid, the valid ones are
+   *     still put and the invalid ones consume their sequence number
+   */
+  public CompletableFuture<Void> putBatchAsync(List<String> tuples, long firstSeqNumber)
+      throws InvalidInputTupleStringException {
+    List<SequencedOperation> operations = new ArrayList<>(tuples.size());
+    List<CompletableFuture<Void>> results = new ArrayList<>(tuples.size());
+    String invalid = null;
+    long seqNumber = firstSeqNumber;
+    for (String tuple : tuples) {
+      if (isInvalidTuple(tuple)) {
+        invalid = invalid == null ? tuple : invalid;
+        operations.add(new NoOperation(seqNumber++));
+        continue;
+      }
+      PutOperation operation = new PutOperation(seqNumber++, tuple);
+      operations.add(operation);
+      results.add(operation.result);
+    }
+
+    submitAll(firstSeqNumber, operations);
+    if (invalid != null) {
+      throw new InvalidInputTupleStringException(invalid);
+    }
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * Take a tuple for each of a block of patterns numbered from the given sequence number, see
+   * {@link #putBatchAsync(List, long)}. Takes without a matching tuple stay pending like single
+   * ones, so the returned future is only completed once all of them got their tuple.
+   *
+   * @param patterns patterns to be matched, in sequence number order
+   * @param firstSeqNumber sequence number of the first take
+   * @return future completed with the taken tuples in pattern order, or failed with
+   *     InvalidSequenceNumberException
+   * @throws InvalidInputSearchPatternException if one of the patterns is invalid, the valid ones
+   *     are still taken and the invalid ones consume their sequence number
+   */
+  public CompletableFuture<List<String>> takeBatchAsync(List<String> patterns, long firstSeqNumber)
+      throws InvalidInputSearchPatternException {
+    List<SequencedOperation> operations = new ArrayList<>(patterns.size());
+    List<CompletableFuture<String>> results = new ArrayList<>(patterns.size());
+    InvalidInputSearchPatternException invalid = null;
+    long seqNumber = firstSeqNumber;
+    for (String pattern : patterns) {
+      SearchPattern compiled;
+      try {
+        compiled = compileSearchPattern(pattern);
+      } catch (InvalidInputSearchPatternException e) {
+        invalid = invalid == null ? e : invalid;
+        operations.add(new NoOperation(seqNumber++));
+        continue;
+      }
+      TakeOperation operation = new TakeOperation(seqNumber++, compiled);
+      operations.add(operation);
+      results.add(operation.result);
+    }
+
+    submitAll(firstSeqNumber, operations);
+    if (invalid != null) {
+      throw invalid;
+    }
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+        .thenApply(
+            ignored -> {
+              List<String> taken = new ArrayList<>(results.size());
+              for (CompletableFuture<String> result : results) {
+                taken.add(result.join());
+              }
+              return taken;
+            });
+  }
+
+  /**
+   * Consume a block of sequence numbers without changing the state. Clients lease numbers from the
+   * sequencer in blocks, the ones they end up not using are skipped so the operations after them
+   * don't wait for them forever. Numbers that were already used are left as they are.
+   *
+   * @param firstSeqNumber first sequence number to be skipped
+   * @param count number of sequence numbers to be skipped
+   */
+  public void skip(long firstSeqNumber, int count) {
+    List<SequencedOperation> operations = new ArrayList<>(count);
+    for (long seqNumber = firstSeqNumber; seqNumber < firstSeqNumber + count; seqNumber++) {
+      operations.add(new NoOperation(seqNumber));
+    }
+    submitAll(firstSeqNumber, operations);
+  }
+
+  /**
+   * Returns the sequence number the later buffered operations are waiting for, 0 if none is
+   * missing. A client that crashed after getting its number, or a lost request, leaves such a gap.
+   */
+  public long getMissingSeqNumber() {
+    return reorderBuffer.getMissing();
+  }
+
+  /**
+   * Get what this replica knows about a sequence number another replica is missing.
+   *
+   * @param seqNumber missing sequence number
+   * @return whether it was received, filled or is missing here too
+   */
+  public GapStatus getGapStatus(long seqNumber) {
+    if (filledGaps.contains(seqNumber) || isSkipped(seqNumber, seqNumber + 1)) {
+      return GapStatus.FILLED;
+    }
+    if (reorderBuffer.hasReceived(seqNumber)) {
+      return GapStatus.RECEIVED;
+    }
+    return reorderBuffer.isPaused() ? GapStatus.UNKNOWN : GapStatus.MISSING;
+  }
+
+  /**
+   * Get what this replica knows about a sequence number another replica is missing, and if it is
+   * missing here too promise to refuse its operation from now on. The gap is then either filled or
+   * the operation is fetched from a peer that received it, so the answer can't go stale before the
+   * gap is resolved.
+   *
+   * @param seqNumber missing sequence number
+   * @param requester replica resolving the gap, the promise is kept until it fills or releases it
+   * @return MISSING if it is now promised, its status otherwise
+   */
+  public GapStatus promiseGap(long seqNumber, String requester) {
+    return promiseGaps(seqNumber, seqNumber + 1, requester);
+  }
+
+  /**
+   * Promise to refuse the operations of a range of missing numbers, like {@link
+   * #promiseGap(long, String)}, unless any of them was received.
+   *
+   * @param first first number of the range
+   * @param end number right after the range
+   * @param requester replica resolving the range
+   * @return MISSING if none of them was received and they are now promised, FILLED if they were
+   *     already filled or skipped, RECEIVED if any of them may have been received
+   */
+  public GapStatus promiseGaps(long first, long end, String requester) {
+    if ((end == first + 1 && filledGaps.contains(first)) || isSkipped(first, end)) {
+      return GapStatus.FILLED;
+    }
+    if (reorderBuffer.isPaused()) {
+      return GapStatus.UNKNOWN;
+    }
+    if (!reorderBuffer.promiseMissing(first, end, requester)) {
+      return GapStatus.RECEIVED;
+    }
+    debug(
+        String.format(
+            "SN %d to %d - Promised %s to refuse their operations", first, end - 1, requester));
+    return GapStatus.MISSING;
+  }
+
+  /**
+   * Withdraw the promise made to a replica that abandoned resolving a number or a range before
+   * filling it, e.g. because a peer didn't answer. Its operation is accepted again if it arrives,
+   * unless another replica resolving it holds a promise too.
+   *
+   * @param first first number of the range
+   * @param end number right after the range
+   * @param requester replica the promise was made to
+   */
+  public void releaseGaps(long first, long end, String requester) {
+    reorderBuffer.releasePromise(first, end, requester);
+    debug(
+        String.format("SN %d to %d - Released the promise made to %s", first, end - 1, requester));
+  }
+
+  /**
+   * Consume a missing sequence number with a no-op, so the operations after it are applied. Only
+   * done once every replica promised it is missing, the operation is then rejected if it arrives.
+   *
+   * @param seqNumber missing sequence number
+   * @return FILLED if it is now consumed by a no-op, its status otherwise
+   */
+  public GapStatus fillGap(long seqNumber) {
+    if (reorderBuffer.isPaused()) {
+      return GapStatus.UNKNOWN;
+    }
+    if (reorderBuffer.offerResolved(seqNumber, new NoOperation(seqNumber))) {
+      filledGaps.add(seqNumber);
+      debug(String.format("SN %d - Filled gap with a no-op", seqNumber));
+      return GapStatus.FILLED;
+    }
+    return getGapStatus(seqNumber);
+  }
+
+  /**
+   * Start a new sequencer epoch. A restarted sequencer resumes above its durable high-water mark,
+   * so most of the numbers below the first one of its epoch that didn't arrive yet were never
+   * granted. Some may still be in flight though, so nothing is skipped here: the gap resolver asks
+   * the replicas about them and only skips the ones none of them received. Every client announces
+   * the epochs it sees, announcements of an epoch already started are ignored.
+   *
+   * @param epoch sequencer epoch
+   * @param firstSeqNumber first sequence number of the epoch
+   * @return false if the epoch was already started or its numbers are already reached
+   */
+  public boolean newEpoch(long epoch, long firstSeqNumber) {
+    lock.lock();
+    try {
+      if (firstSeqNumber <= epochFirstSeqNumber || firstSeqNumber <= reorderBuffer.getNext()) {
+        return false;
+      }
+      this.epoch = epoch;
+      this.epochFirstSeqNumber = firstSeqNumber;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the latest sequencer epoch announced, 0 if none */
+  public long getEpoch() {
+    lock.lock();
+    try {
+      return epoch;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the first sequence number of the latest epoch announced, 0 if none */
+  public long getEpochFirstSeqNumber() {
+    lock.lock();
+    try {
+      return epochFirstSeqNumber;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Skip the missing numbers of a range, once every replica promised none of them was received.
+   * The operations of the range already buffered are still applied, and the jump is logged as the
+   * start of the epoch following the range.
+   *
+   * @param first first number of the range
+   * @param end first number of the epoch
+   * @param epoch epoch starting at end
+   * @return FILLED if the range is now skipped, its status otherwise
+   */
+  public GapStatus skipGaps(long first, long end, long epoch) {
+    if (reorderBuffer.isPaused()) {
+      return GapStatus.UNKNOWN;
+    }
+    if (reorderBuffer.skipRange(first, end, new EpochOperation(end - 1, epoch))) {
+      skippedGaps.put(first, LogRecord.epoch(end - 1, epoch));
+      debug(String.format("SN %d to %d - Skipped, epoch %d starts after", first, end - 1, epoch));
+      return GapStatus.FILLED;
+    }
+    return isSkipped(first, end) ? GapStatus.FILLED : GapStatus.RECEIVED;
+  }
+
+  /** Returns true if the whole range was skipped */
+  private boolean isSkipped(long first, long end) {
+    Map.Entry<Long, LogRecord> skipped = skippedGaps.floorEntry(first);
+    return skipped != null && skipped.getValue().getSeqNumber() >= end - 1;
+  }
+
+  /**
+   * Get a list of all tuples in the TupleSpaces.
+   *
+   * @return List of all tuples.
+   */
+  public List<String> getTupleSpacesState() {
+    lock.lock();
+    try {
+      return tuples.toList();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the tuples in the TupleSpaces matching the given pattern. Only the references of the
+   * indexed candidates are copied while holding the lock, they are matched after releasing it.
+   *
+   * @param pattern to be matched
+   * @return List of the matching tuples in insertion order
+   * @throws InvalidInputSearchPatternException if given pattern is invalid
+   */
+  public List<String> getTupleSpacesState(String pattern)
+      throws InvalidInputSearchPatternException {
+    SearchPattern compiled = compileSearchPattern(pattern);
+
+    List<String> candidates;
+    lock.lock();
+    try {
+      candidates = tuples.candidateList(compiled);
+    } finally {
+      lock.unlock();
+    }
+    if (!compiled.isExact()) {
+      candidates.removeIf(tuple -> !compiled.matches(tuple));
+    }
+    return candidates;
+  }
+
+  /**
+   * Take a consistent cut of the state to be sent to a joining replica. Every operation applied
+   * from now on is queued in the returned transfer until {@link #endTransfer(StateTransfer)}, the
+   * transfer overflows once more than half the operations kept for the peers wait to be sent.
+   *
+   * @return transfer holding the snapshot and the operations applied after it
+   */
+  public StateTransfer beginTransfer() {
+    lock.lock();
+    try {
+      StateTransfer transfer = new StateTransfer(copyState(lastApplied), TRANSFER_BACKLOG);
+      transfers.add(transfer);
+      debug(String.format("Started state transfer at SN %d", lastApplied));
+      return transfer;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop queueing applied operations in a transfer.
+   *
+   * @param transfer transfer returned by {@link #beginTransfer()}
+   */
+  public void endTransfer(StateTransfer transfer) {
+    transfers.remove(transfer);
+  }
+
+  /**
+   * Stop applying sequenced operations until a transferred state is installed, operations keep
+   * being buffered whatever their sequence number. Called before serving requests when joining,
+   * or by a running replica missing operations no peer keeps anymore, once the operations being
+   * applied are done.
+   */
+  public void pauseForTransfer() {
+    reorderBuffer.pause();
+  }
+
+  /**
+   * Replace the state by a transferred snapshot and resume applying sequenced operations after it.
+   * The snapshot is persisted before resuming, so the log only has to hold what follows it.
+   *
+   * @param snapshot transferred snapshot
+   * @throws IOException if the snapshot can't be persisted
+   */
+  public void installTransfer(Snapshot snapshot) throws IOException {
+    List<Runnable> wakeups = new ArrayList<>(); // reads parked while waiting for the transfer
+    lock.lock();
+    try {
+      tuples.clear();
+      // a running replica catching up can't tell which of its waiting takes the snapshot holds,
+      // the clients get their tuples from the other replicas
+      for (CompletableFuture<String> taker : pendingTakes.clear()) {
+        wakeups.add(
+            () ->
+                taker.completeExceptionally(
+                    new IllegalStateException("Replaced by the state of a peer")));
+      }
+      restore(snapshot);
+      for (String tuple : snapshot.getTuples()) {
+        for (CompletableFuture<String> reader : pendingReads.removeAllMatching(tuple)) {
+          wakeups.add(() -> reader.complete(tuple));
         }
       }
+      lastApplied = snapshot.getSeqNumber();
+    } finally {
+      lock.unlock();
+    }
+    wakeups.forEach(Runnable::run);
+    releaseAppliedWaiters();
+
+    // the apply thread is paused, so it can't be writing the log
+    if (log != null && snapshots != null) {
+      snapshots.write(snapshot);
+      log.roll(snapshot.getSeqNumber() + 1);
+      log.truncate(snapshot.getSeqNumber());
+    } else if (log != null) {
+      System.err.println(
+          "[WARN] Transferred state isn't persisted without a snapshot store, the log has a gap");
     }
+
+    resumeAt(snapshot.getSeqNumber() + 1);
+    debug(String.format("Installed transferred snapshot of SN %d", snapshot.getSeqNumber()));
   }
 
-  public String take(String pattern, Integer seqNumber) throws InvalidInputSearchPatternException {
-    if (isInvalidTuple(pattern)) {
-      throw new InvalidInputSearchPatternException(pattern);
+  /** Resume applying sequenced operations after the local state, when no transfer is possible */
+  public void resumeWithoutTransfer() {
+    lock.lock();
+    long next;
+    try {
+      next = lastApplied + 1;
+    } finally {
+      lock.unlock();
+    }
+    resumeAt(next);
+  }
+
+  /**
+   * Buffer an operation applied by the replica the state is being transferred from. A request for
+   * the same sequence number received directly is answered once the transferred one is applied.
+   *
+   * @param record transferred operation
+   */
+  public void offerTransferred(LogRecord record) {
+    if (record.getType() == LogRecord.Type.EPOCH) {
+      // the skipped numbers aren't transferred, the ones still missing were skipped there too
+      reorderBuffer.skipRange(
+          0,
+          record.getSeqNumber() + 1,
+          new EpochOperation(record.getSeqNumber(), Long.parseLong(record.getValue())));
+      return;
+    }
+    SequencedOperation operation = fromLogRecord(record);
+    if (reorderBuffer.offerResolved(operation.seqNumber, operation)) {
+      transferred.put(operation.seqNumber, operation);
+    } else {
+      debug(String.format("SN %d - Already buffered, ignoring transferred", record.getSeqNumber()));
     }
+  }
+
+  /**
+   * Get a recently applied operation, for a peer that missed it.
+   *
+   * @param seqNumber sequence number of the operation
+   * @return applied operation, the epoch marker ending the range if it was skipped, or null if it
+   *     wasn't applied yet or is too old to be kept
+   */
+  public LogRecord getAppliedOperation(long seqNumber) {
+    LogRecord record;
+    lock.lock();
+    try {
+      record = recent.get(seqNumber);
+    } finally {
+      lock.unlock();
+    }
+    if (record == null && isSkipped(seqNumber, seqNumber + 1)) {
+      return skippedGaps.floorEntry(seqNumber).getValue();
+    }
+    return record;
+  }
+
+  /**
+   * Returns true if the operation with the given number was applied here, or covered by an
+   * installed snapshot, too long ago to still be kept for the peers.
+   *
+   * @param seqNumber sequence number of the operation
+   */
+  public boolean isForgotten(long seqNumber) {
+    lock.lock();
+    try {
+      return seqNumber <= lastApplied && recent.get(seqNumber) == null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Buffer an operation this replica missed, as applied by a peer. A request for the same sequence
+   * number that arrives late is answered once the fetched one is applied.
+   *
+   * @param seqNumber missing sequence number the operation was fetched for
+   * @param record operation fetched from a peer, or the epoch marker ending the range it skipped
+   * @return false if the sequence number was already buffered or applied
+   */
+  public boolean offerRepaired(long seqNumber, LogRecord record) {
+    if (record.getType() == LogRecord.Type.EPOCH) {
+      // the peers agreed to skip the range up to the marker, from at least the missing number
+      return skipGaps(seqNumber, record.getSeqNumber() + 1, Long.parseLong(record.getValue()))
+          == GapStatus.FILLED;
+    }
+    SequencedOperation operation = fromLogRecord(record);
+    if (!reorderBuffer.offerResolved(operation.seqNumber, operation)) {
+      return false;
+    }
+    // a request lagging further behind than the peers keep operations won't show up anymore
+    repaired.keySet().removeIf(kept -> kept < operation.seqNumber - RECENT_OPERATIONS);
+    repaired.put(operation.seqNumber, operation);
+    debug(String.format("SN %d - Repaired from a peer", operation.seqNumber));
+    return true;
+  }
+
+  /** Forget the transferred operations, called once the transfer stream ends */
+  public void finishTransfer() {
+    transferred.clear();
+  }
+
+  /** Resume the paused reorder buffer, operations before the given number are answered as is */
+  private void resumeAt(long nextSeqNumber) {
+    for (SequencedOperation stale : reorderBuffer.resume(nextSeqNumber)) {
+      // already reflected by the installed state, it can't be applied again
+      if (stale instanceof PutOperation) {
+        ((PutOperation) stale).result.complete(null);
+      } else {
+        stale.reject(new InvalidSequenceNumberException(stale.seqNumber));
+      }
+    }
+  }
 
-    // lock until it's this operation time to be executed
-    stateLock.lock();
-    while (!seqNumber.equals(state)) {
+  /** Buffer a sequenced operation until the apply thread reaches its sequence number */
+  private void submit(SequencedOperation operation) {
+    if (!reorderBuffer.offer(operation.seqNumber, operation)) {
+      onAlreadyUsed(operation);
+      return;
+    }
+    debug(
+        String.format(
+            "SN %d - Buffered, next to apply is %d",
+            operation.seqNumber, reorderBuffer.getNext()));
+  }
+
+  /** Buffer a block of sequenced operations with contiguous numbers in a single call */
+  private void submitAll(long firstSeqNumber, List<SequencedOperation> operations) {
+    if (operations.isEmpty()) {
+      return;
+    }
+    for (SequencedOperation operation : reorderBuffer.offerAll(firstSeqNumber, operations)) {
+      onAlreadyUsed(operation);
+    }
+    debug(
+        String.format(
+            "SN %d to %d - Buffered, next to apply is %d",
+            firstSeqNumber, firstSeqNumber + operations.size() - 1, reorderBuffer.getNext()));
+  }
+
+  /** Answer an operation whose sequence number was already buffered or applied */
+  private void onAlreadyUsed(SequencedOperation operation) {
+    SequencedOperation transferredOperation = transferred.remove(operation.seqNumber);
+    if (transferredOperation != null) {
+      debug(String.format("SN %d - Received by transfer, following it", operation.seqNumber));
+      operation.follow(transferredOperation);
+      return;
+    }
+    SequencedOperation repairedOperation = repaired.remove(operation.seqNumber);
+    if (repairedOperation != null) {
+      debug(String.format("SN %d - Repaired from a peer, following it", operation.seqNumber));
+      operation.follow(repairedOperation);
+      return;
+    }
+    debug(String.format("SN %d - Already used, rejecting", operation.seqNumber));
+    operation.reject(new InvalidSequenceNumberException(operation.seqNumber));
+  }
+
+  private Thread startApplyThread() {
+    Thread thread = new Thread(this::applyLoop, "ServerState-apply");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Load the tuples and pending takes of a snapshot into the (empty) state.
+   *
+   * @param snapshot snapshot to be loaded
+   */
+  private void restore(Snapshot snapshot) {
+    for (String tuple : snapshot.getTuples()) {
+      tuples.add(tuple);
+    }
+    for (String pattern : snapshot.getPendingTakes()) {
       try {
-        debug(String.format("take SN %d, state %d - Out of order, waiting", seqNumber, state));
-        stateChange.await();
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+        pendingTakes.register(compileSearchPattern(pattern), new CompletableFuture<>());
+      } catch (InvalidInputSearchPatternException e) {
+        System.err.printf("[WARN] Ignoring invalid pending take %s in snapshot\n", pattern);
       }
     }
+    debug(
+        String.format(
+            "Loaded snapshot of SN %d with %d tuples and %d pending takes",
+            snapshot.getSeqNumber(), tuples.size(), pendingTakes.size()));
+  }
 
-    state += 1;
+  /**
+   * Rebuild the state from logged operations, pending takes are registered again so the puts that
+   * follow them hand them their tuple just like on the other replicas.
+   *
+   * @param records logged operations in sequence number order
+   * @param covered sequence number already covered by a loaded snapshot, 0 if none
+   * @return sequence number of the last replayed operation, or covered if none
+   */
+  private long replay(List<LogRecord> records, long covered) {
+    long last = covered;
+    for (LogRecord record : records) {
+      SequencedOperation operation = fromLogRecord(record);
+      operation.apply();
+      operation.complete();
+      last = record.getSeqNumber();
+    }
+    debug(String.format("Replayed %d logged operations, last SN %d", records.size(), last));
+    return last;
+  }
 
-    // first attempt at getting tuple
-    synchronized (this) {
-      for (String t : tuples) {
-        if (t.matches(pattern)) {
-          tuples.remove(t);
-          stateChange.signalAll();
-          stateLock.unlock();
-          return t;
+  /** Rebuild a sequenced operation from its log record */
+  private SequencedOperation fromLogRecord(LogRecord record) {
+    switch (record.getType()) {
+      case PUT:
+        return new PutOperation(record.getSeqNumber(), record.getValue());
+      case TAKE:
+        try {
+          SearchPattern pattern = compileSearchPattern(record.getValue());
+          return new TakeOperation(record.getSeqNumber(), pattern);
+        } catch (InvalidInputSearchPatternException e) {
+          return new NoOperation(record.getSeqNumber()); // only valid takes are logged
         }
-      }
+      default:
+        return new NoOperation(record.getSeqNumber());
     }
+  }
 
-    debug(String.format("take SN %d - No tuple found", seqNumber));
+  /** Complete the futures waiting for an operation applied by now, outside the lock */
+  private void releaseAppliedWaiters() {
+    List<CompletableFuture<Void>> released = new ArrayList<>();
+    lock.lock();
+    try {
+      Map<Long, List<CompletableFuture<Void>>> reached = appliedWaiters.headMap(lastApplied, true);
+      reached.values().forEach(released::addAll);
+      reached.clear();
+    } finally {
+      lock.unlock();
+    }
+    released.forEach(applied -> applied.complete(null));
+  }
 
-    // doesn't exist, block waiting on put
-    PendingTake pendingOperation = new PendingTake(pattern);
-    // if we get here and tuple still doesn't exist, we wait
-    synchronized (pendingOperation) {
-      pendingTakes.add(pendingOperation);
+  /** Apply thread body, applies every contiguous run of buffered operations in a single pass */
+  private void applyLoop() {
+    while (true) {
+      List<SequencedOperation> operations;
       try {
-        stateChange.signalAll();
-        stateLock.unlock();
-        debug(
-            String.format(
-                "take SN %d - Waiting for %s",
-                seqNumber, pendingOperation.getSearchPattern()));
-        pendingOperation.wait(); // unblocked by put operation
-        pendingTakes.remove(pendingOperation);
+        operations = reorderBuffer.awaitContiguous();
       } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+        return;
+      }
+      if (operations.isEmpty()) {
+        return; // closed
       }
-    }
 
-    // after unlock, tuple will exist
-    synchronized (this) {
-      for (String t : tuples) {
-        if (t.matches(pattern)) {
-          tuples.remove(t);
-          return t;
+      int applied = 0;
+      IOException logFailure = null;
+      lock.lock();
+      try {
+        for (SequencedOperation operation : operations) {
+          LogRecord record = operation.toLogRecord();
+          if (log != null) {
+            log.append(record);
+          }
+          operation.apply();
+          lastApplied = operation.seqNumber;
+          recent.add(record);
+          for (StateTransfer transfer : transfers) {
+            transfer.onApplied(record);
+          }
+          applied++;
+        }
+      } catch (IOException e) {
+        System.err.printf("[ERROR] Unable to append to the write-ahead log: %s\n", e.getMessage());
+        logFailure = e;
+      } finally {
+        lock.unlock();
+      }
+
+      // one commit for the whole batch, done outside the lock so reads aren't held back by it
+      if (log != null && logFailure == null) {
+        try {
+          log.commit();
+        } catch (IOException e) {
+          System.err.printf("[ERROR] Unable to commit the write-ahead log: %s\n", e.getMessage());
+          logFailure = e;
+        }
+      }
+      if (logFailure != null) {
+        // nothing of the batch is known to be durable, so no caller is told it succeeded
+        for (SequencedOperation operation : operations) {
+          operation.reject(logFailure);
         }
+        reorderBuffer.close();
+        failed.complete(logFailure);
+        return;
+      }
+      // callers are answered outside the lock so reads aren't held back by their callbacks
+      for (SequencedOperation operation : operations) {
+        operation.complete();
+      }
+      releaseAppliedWaiters();
+
+      appliedSinceSnapshot += applied;
+      if (snapshots != null
+          && snapshotInterval > 0
+          && applied > 0
+          && appliedSinceSnapshot >= snapshotInterval
+          && !snapshotInProgress) {
+        takeSnapshot(operations.get(applied - 1).seqNumber);
       }
     }
+  }
 
-    // never reached, if it's reached then there might be a bug
-    throw new RuntimeException(
-        "Reach end of ServerState::take function, this is unexpected behaviour and shouldn't happen");
+  /**
+   * Copy the tuples and pending takes, called by the apply thread or while holding the lock.
+   *
+   * @param seqNumber sequence number of the last applied operation
+   * @return snapshot of the state
+   */
+  private Snapshot copyState(long seqNumber) {
+    List<String> pendingTakePatterns = new ArrayList<>(pendingTakes.size());
+    for (SearchPattern pattern : pendingTakes.patterns()) {
+      pendingTakePatterns.add(pattern.getSource());
+    }
+    return new Snapshot(seqNumber, tuples.toList(), pendingTakePatterns);
   }
 
   /**
-   * Get a list of all tuples in the TupleSpaces.
+   * Copy the state and hand it to the snapshot thread, called by the apply thread between batches.
    *
-   * @return List of all tuples.
+   * @param seqNumber sequence number of the last applied operation
    */
-  public synchronized List<String> getTupleSpacesState() {
-    return new ArrayList<>(tuples);
+  private void takeSnapshot(long seqNumber) {
+    // only the apply thread changes tuples and pending takes, so no lock is needed to copy them
+    Snapshot snapshot = copyState(seqNumber);
+    try {
+      log.roll(seqNumber + 1); // the covered segments can be deleted once the snapshot is written
+    } catch (IOException e) {
+      System.err.printf("[ERROR] Unable to start a new log segment: %s\n", e.getMessage());
+      return;
+    }
+
+    appliedSinceSnapshot = 0;
+    snapshotInProgress = true;
+    snapshotWriter.execute(
+        () -> {
+          try {
+            snapshots.write(snapshot);
+            int deleted = log.truncate(seqNumber);
+            debug(
+                String.format(
+                    "Snapshot of SN %d written, deleted %d log segments", seqNumber, deleted));
+          } catch (IOException e) {
+            System.err.printf("[ERROR] Unable to write snapshot: %s\n", e.getMessage());
+          } finally {
+            snapshotInProgress = false;
+          }
+        });
   }
 }
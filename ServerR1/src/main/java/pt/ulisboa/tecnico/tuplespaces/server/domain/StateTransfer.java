@@ -0,0 +1,79 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.Snapshot;
+
+/**
+ * State of a replica being transferred to a joining replica.
+ *
+ * <p>The snapshot is a consistent cut taken between two applied operations, every operation
+ * applied after it is queued in order until the transfer ends, so the joining replica can apply
+ * the snapshot followed by the queued operations and end up in the same state.
+ *
+ * <p>The queue is bounded. A joining replica that falls too far behind overflows it, and the
+ * transfer can't be completed anymore: queueing stops, so it must be aborted and the joining
+ * replica fetches what it missed from the peers instead.
+ */
+public class StateTransfer {
+  private final Snapshot snapshot;
+  private final BlockingQueue<LogRecord> applied;
+  private volatile Runnable onApplied = () -> {}; // told about every queued operation
+  private volatile boolean overflowed = false;
+
+  StateTransfer(Snapshot snapshot, int capacity) {
+    this.snapshot = snapshot;
+    this.applied = new ArrayBlockingQueue<>(capacity);
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Set what is told about every operation queued from now on, instead of polling for them. It
+   * runs on the apply thread, so it must only hand the work over to another thread.
+   *
+   * @param onApplied run after each operation is queued
+   */
+  public void setOnApplied(Runnable onApplied) {
+    this.onApplied = onApplied;
+  }
+
+  /** Returns true if an operation couldn't be queued, the transfer must be aborted then */
+  public boolean isOverflowed() {
+    return overflowed;
+  }
+
+  /** Queue an operation applied after the snapshot, called by the apply thread, never blocks */
+  void onApplied(LogRecord record) {
+    if (!overflowed && !applied.offer(record)) {
+      overflowed = true;
+    }
+    onApplied.run();
+  }
+
+  /**
+   * Wait for operations applied after the snapshot.
+   *
+   * @param max maximum number of operations to be returned
+   * @param timeout how long to wait for the first operation, 0 to return right away
+   * @param unit unit of the timeout
+   * @param operations list the operations are added to, in sequence number order
+   * @return false if no operation was applied before the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean poll(int max, long timeout, TimeUnit unit, List<LogRecord> operations)
+      throws InterruptedException {
+    LogRecord first = applied.poll(timeout, unit);
+    if (first == null) {
+      return false;
+    }
+    operations.add(first);
+    applied.drainTo(operations, max - 1);
+    return true;
+  }
+}
@@ -0,0 +1,175 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tuple storage indexed by tuple arity and by literal field values.
+ *
+ * <p>Every bucket keeps its tuples in insertion order, so the first match found in any candidate
+ * bucket is also the oldest matching tuple in the whole store. Exact patterns are served from a
+ * hashed multiset of whole tuples, so their lookup and removal don't depend on the store size. The
+ * class isn't thread safe, the owning ServerState is responsible for synchronization.
+ */
+public class TupleStore {
+  /** Stored tuple, compared by identity so equal tuples can be stored more than once */
+  static class Entry {
+    private final String tuple;
+    private final String[] fields;
+
+    Entry(String tuple) {
+      this.tuple = tuple;
+      this.fields = SearchPattern.tupleFields(tuple);
+    }
+  }
+
+  private final Set<Entry> entries = new LinkedHashSet<>(); // all tuples in insertion order
+  private final Map<String, Set<Entry>> byTuple = new HashMap<>(); // occurrences of each tuple
+  private final Map<Integer, Set<Entry>> byArity = new HashMap<>();
+  private final Map<FieldKey, Set<Entry>> byField = new HashMap<>();
+
+  /**
+   * Add a tuple to the store.
+   *
+   * @param tuple valid tuple
+   */
+  public void add(String tuple) {
+    Entry entry = new Entry(tuple);
+    int arity = entry.fields.length;
+    entries.add(entry);
+    byTuple.computeIfAbsent(tuple, k -> new LinkedHashSet<>()).add(entry);
+    byArity.computeIfAbsent(arity, k -> new LinkedHashSet<>()).add(entry);
+    for (int i = 0; i < arity; i++) {
+      byField
+          .computeIfAbsent(new FieldKey(arity, i, entry.fields[i]), k -> new LinkedHashSet<>())
+          .add(entry);
+    }
+  }
+
+  /**
+   * Find the oldest tuple matching the given pattern.
+   *
+   * @param pattern search pattern
+   * @return matching tuple or null if none exists
+   */
+  public String find(SearchPattern pattern) {
+    Entry entry = findEntry(pattern);
+    return entry == null ? null : entry.tuple;
+  }
+
+  /**
+   * Remove the oldest tuple matching the given pattern.
+   *
+   * @param pattern search pattern
+   * @return removed tuple or null if none exists
+   */
+  public String remove(SearchPattern pattern) {
+    Entry entry = findEntry(pattern);
+    if (entry == null) {
+      return null;
+    }
+
+    int arity = entry.fields.length;
+    entries.remove(entry);
+    removeFromBucket(byTuple, entry.tuple, entry);
+    removeFromBucket(byArity, arity, entry);
+    for (int i = 0; i < arity; i++) {
+      removeFromBucket(byField, new FieldKey(arity, i, entry.fields[i]), entry);
+    }
+    return entry.tuple;
+  }
+
+  /** Remove every stored tuple */
+  public void clear() {
+    entries.clear();
+    byTuple.clear();
+    byArity.clear();
+    byField.clear();
+  }
+
+  /** Returns the number of stored tuples */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Get all stored tuples.
+   *
+   * @return new list with every tuple in insertion order
+   */
+  public List<String> toList() {
+    List<String> tuples = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      tuples.add(entry.tuple);
+    }
+    return tuples;
+  }
+
+  /**
+   * Get the stored tuples that may match the given pattern, taken from the smallest index bucket
+   * every matching tuple must be in, so they can be matched without holding up writers.
+   *
+   * @param pattern search pattern to be matched
+   * @return new list with a superset of the matching tuples in insertion order
+   */
+  public List<String> candidateList(SearchPattern pattern) {
+    Set<Entry> candidates =
+        pattern.isExact()
+            ? byTuple.getOrDefault(pattern.getExactTuple(), Collections.emptySet())
+            : candidates(pattern);
+    List<String> tuples = new ArrayList<>(candidates.size());
+    for (Entry entry : candidates) {
+      tuples.add(entry.tuple);
+    }
+    return tuples;
+  }
+
+  /** Pick the smallest bucket every tuple matching the pattern must be in and scan it */
+  private Entry findEntry(SearchPattern pattern) {
+    if (pattern.isExact()) {
+      Set<Entry> occurrences = byTuple.get(pattern.getExactTuple());
+      return occurrences == null ? null : occurrences.iterator().next();
+    }
+
+    for (Entry entry : candidates(pattern)) {
+      if (pattern.matches(entry.tuple, entry.fields)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private Set<Entry> candidates(SearchPattern pattern) {
+    if (!pattern.hasKnownArity()) {
+      return entries;
+    }
+
+    int arity = pattern.getArity();
+    Set<Entry> smallest = byArity.getOrDefault(arity, Collections.emptySet());
+    for (int i = 0; i < arity && !smallest.isEmpty(); i++) {
+      String literal = pattern.getLiteral(i);
+      if (literal == null) {
+        continue;
+      }
+      Set<Entry> bucket =
+          byField.getOrDefault(new FieldKey(arity, i, literal), Collections.emptySet());
+      if (bucket.size() < smallest.size()) {
+        smallest = bucket;
+      }
+    }
+    return smallest;
+  }
+
+  private static <K> void removeFromBucket(Map<K, Set<Entry>> index, K key, Entry entry) {
+    Set<Entry> bucket = index.get(key);
+    bucket.remove(entry);
+    if (bucket.isEmpty()) {
+      index.remove(key);
+    }
+  }
+}
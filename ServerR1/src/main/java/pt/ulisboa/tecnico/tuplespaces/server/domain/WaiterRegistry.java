@@ -0,0 +1,228 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry of operations waiting for a tuple matching their search pattern.
+ *
+ * <p>Waiters are indexed the same way as the TupleStore: exact patterns by their tuple, patterns
+ * with a literal field by that field, patterns with a known arity by the arity and the remaining
+ * ones in a catch all bucket. A new tuple is then only tested against the waiters of the buckets
+ * it falls in, instead of against every waiter. Waiters are kept in registration order, so the
+ * oldest waiter matching a tuple can be picked across buckets. The class isn't thread safe, the
+ * owning ServerState is responsible for synchronization.
+ *
+ * @param <W> type of the waiting operation
+ */
+public class WaiterRegistry<W> {
+  private static final Object UNCONSTRAINED = new Object(); // bucket of patterns without an index
+
+  /** Registered waiter, also works as the handle used to unregister it */
+  public static class Waiter<W> {
+    private final SearchPattern pattern;
+    private final W value;
+    private final Object bucketKey;
+    private final long order; // registration order
+
+    private Waiter(SearchPattern pattern, W value, Object bucketKey, long order) {
+      this.pattern = pattern;
+      this.value = value;
+      this.bucketKey = bucketKey;
+      this.order = order;
+    }
+
+    public SearchPattern getPattern() {
+      return pattern;
+    }
+
+    public W getValue() {
+      return value;
+    }
+  }
+
+  private final Map<Object, Set<Waiter<W>>> buckets = new HashMap<>(); // FIFO order per bucket
+  private int size = 0;
+  private long registrations = 0;
+
+  /**
+   * Register an operation waiting for a tuple matching the given pattern.
+   *
+   * @param pattern search pattern of the waiting operation
+   * @param value waiting operation
+   * @return handle of the registered waiter
+   */
+  public Waiter<W> register(SearchPattern pattern, W value) {
+    Waiter<W> waiter = new Waiter<>(pattern, value, bucketKey(pattern), registrations++);
+    buckets.computeIfAbsent(waiter.bucketKey, k -> new LinkedHashSet<>()).add(waiter);
+    size++;
+    return waiter;
+  }
+
+  /**
+   * Unregister a waiter.
+   *
+   * @param waiter handle returned on registration
+   * @return true if the waiter was still registered
+   */
+  public boolean remove(Waiter<W> waiter) {
+    Set<Waiter<W>> bucket = buckets.get(waiter.bucketKey);
+    if (bucket == null || !bucket.remove(waiter)) {
+      return false;
+    }
+    if (bucket.isEmpty()) {
+      buckets.remove(waiter.bucketKey);
+    }
+    size--;
+    return true;
+  }
+
+  /**
+   * Unregister every waiter whose pattern matches the given tuple.
+   *
+   * @param tuple new tuple
+   * @return waiting operations matched by the tuple
+   */
+  public List<W> removeAllMatching(String tuple) {
+    List<W> matched = new ArrayList<>();
+    if (size == 0) {
+      return matched;
+    }
+
+    for (Object key : candidateKeys(tuple)) {
+      Set<Waiter<W>> bucket = buckets.get(key);
+      if (bucket == null) {
+        continue;
+      }
+      Iterator<Waiter<W>> iterator = bucket.iterator();
+      while (iterator.hasNext()) {
+        Waiter<W> waiter = iterator.next();
+        if (waiter.pattern.matches(tuple)) {
+          matched.add(waiter.value);
+          iterator.remove();
+          size--;
+        }
+      }
+      if (bucket.isEmpty()) {
+        buckets.remove(key);
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * Unregister the oldest waiter whose pattern matches the given tuple.
+   *
+   * @param tuple new tuple
+   * @return oldest waiting operation matched by the tuple or null if there is none
+   */
+  public W removeOldestMatching(String tuple) {
+    if (size == 0) {
+      return null;
+    }
+
+    // buckets are FIFO, so only the first match of each bucket is a candidate
+    Waiter<W> oldest = null;
+    for (Object key : candidateKeys(tuple)) {
+      Set<Waiter<W>> bucket = buckets.get(key);
+      if (bucket == null) {
+        continue;
+      }
+      for (Waiter<W> waiter : bucket) {
+        if (oldest != null && waiter.order > oldest.order) {
+          break;
+        }
+        if (waiter.pattern.matches(tuple)) {
+          oldest = waiter;
+          break;
+        }
+      }
+    }
+
+    if (oldest == null) {
+      return null;
+    }
+    remove(oldest);
+    return oldest.value;
+  }
+
+  /**
+   * Get the patterns of every registered waiter.
+   *
+   * @return search patterns in registration order
+   */
+  public List<SearchPattern> patterns() {
+    List<Waiter<W>> waiters = new ArrayList<>(size);
+    for (Set<Waiter<W>> bucket : buckets.values()) {
+      waiters.addAll(bucket);
+    }
+    waiters.sort(Comparator.comparingLong(w -> w.order));
+    List<SearchPattern> patterns = new ArrayList<>(waiters.size());
+    for (Waiter<W> waiter : waiters) {
+      patterns.add(waiter.pattern);
+    }
+    return patterns;
+  }
+
+  /**
+   * Unregister every waiter.
+   *
+   * @return waiting operations in registration order
+   */
+  public List<W> clear() {
+    List<Waiter<W>> waiters = new ArrayList<>(size);
+    for (Set<Waiter<W>> bucket : buckets.values()) {
+      waiters.addAll(bucket);
+    }
+    waiters.sort(Comparator.comparingLong(w -> w.order));
+    buckets.clear();
+    size = 0;
+
+    List<W> values = new ArrayList<>(waiters.size());
+    for (Waiter<W> waiter : waiters) {
+      values.add(waiter.value);
+    }
+    return values;
+  }
+
+  /** Returns the number of registered waiters */
+  public int size() {
+    return size;
+  }
+
+  /** Bucket a waiter goes in, every tuple its pattern matches must map to the same key */
+  private static Object bucketKey(SearchPattern pattern) {
+    if (pattern.isExact()) {
+      return pattern.getExactTuple();
+    }
+    if (!pattern.hasKnownArity()) {
+      return UNCONSTRAINED;
+    }
+    for (int i = 0; i < pattern.getArity(); i++) {
+      String literal = pattern.getLiteral(i);
+      if (literal != null) {
+        return new FieldKey(pattern.getArity(), i, literal);
+      }
+    }
+    return pattern.getArity();
+  }
+
+  /** Keys of every bucket that may hold a waiter matching the given tuple */
+  private static List<Object> candidateKeys(String tuple) {
+    String[] fields = SearchPattern.tupleFields(tuple);
+    List<Object> keys = new ArrayList<>(fields.length + 3);
+    keys.add(tuple);
+    for (int i = 0; i < fields.length; i++) {
+      keys.add(new FieldKey(fields.length, i, fields[i]));
+    }
+    keys.add(fields.length);
+    keys.add(UNCONSTRAINED);
+    return keys;
+  }
+}
@@ -0,0 +1,7 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions;
+
+public class InvalidSequenceNumberException extends InvalidInputException {
+  public InvalidSequenceNumberException(long seqNumber) {
+    super(String.format("Sequence number %d was already used", seqNumber));
+  }
+}
@@ -5,6 +5,8 @@ import static pt.ulisboa.tecnico.tuplespaces.server.ServerMain.debug;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
+import java.util.List;
+import java.util.stream.Collectors;
 import pt.ulisboa.tecnico.tuplespaces.nameserver.contract.NameServerGrpc;
 import pt.ulisboa.tecnico.tuplespaces.nameserver.contract.NameServerOuterClass;
 import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.NameServerRPCFailureException;
@@ -84,4 +86,28 @@ public class NameServerService {
       throw new NameServerRPCFailureException("Delete", e.getStatus().getDescription());
     }
   }
+
+  /**
+   * NameServerService 'lookup' gRPC wrapper, fetching every server of a service.
+   *
+   * @param serviceName String representing the service being looked up
+   * @return addresses of the registered servers, possibly empty
+   * @throws NameServerRPCFailureException on RPC failure
+   */
+  public List<String> lookup(String serviceName) throws NameServerRPCFailureException {
+    debug(String.format("Call NameServerService::lookup: serviceName=%s", serviceName));
+
+    NameServerOuterClass.LookupResponse response;
+    try {
+      response =
+          this.stub.lookup(
+              NameServerOuterClass.LookupRequest.newBuilder().setServiceName(serviceName).build());
+    } catch (StatusRuntimeException e) {
+      throw new NameServerRPCFailureException("Lookup", e.getStatus().getDescription());
+    }
+
+    return response.getServiceEntriesList().stream()
+        .map(NameServerOuterClass.LookupResponse.ServiceEntry::getServiceAddress)
+        .collect(Collectors.toList());
+  }
 }
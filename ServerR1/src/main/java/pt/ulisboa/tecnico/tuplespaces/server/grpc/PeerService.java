@@ -0,0 +1,216 @@
+package pt.ulisboa.tecnico.tuplespaces.server.grpc;
+
+import static pt.ulisboa.tecnico.tuplespaces.server.ServerMain.debug;
+
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaGrpc;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.FetchOperationRequest;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.FetchOperationResponse;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.ResolveGapRequest;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.ResolveGapResponse;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.TransferStateRequest;
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.TransferStateResponse;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.OperationForgottenException;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.PeerRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+
+/** PeerService class encapsulates the gRPC interface of another replica of the TupleSpaces */
+public class PeerService {
+  private static final long RESOLVE_GAP_DEADLINE_MILLIS = 1000;
+  private static final long FETCH_OPERATION_DEADLINE_MILLIS = 200; // the next peer is asked then
+
+  private final String address; // peer address
+  private ManagedChannel channel;
+  private TupleSpacesReplicaGrpc.TupleSpacesReplicaBlockingStub stub;
+
+  public PeerService(String address) {
+    this.address = address;
+
+    setup();
+  }
+
+  public String getAddress() {
+    return address;
+  }
+
+  /** Create channel and stub for the peer. */
+  private void setup() {
+    debug(String.format("Call PeerService::connect: address=%s", address));
+    this.channel = ManagedChannelBuilder.forTarget(this.address).usePlaintext().build();
+    this.stub = TupleSpacesReplicaGrpc.newBlockingStub(this.channel);
+  }
+
+  /** Perform peer shutdown logic */
+  public void shutdown() {
+    debug(String.format("Call PeerService::shutdown: address=%s", address));
+    if (this.channel != null) this.channel.shutdown();
+  }
+
+  /**
+   * TupleSpacesReplica 'transferState' gRPC wrapper, blocks until the peer ends the stream.
+   *
+   * @param chunkSize maximum number of tuples or operations per message
+   * @param lingerMillis how long the peer keeps forwarding operations after catching up
+   * @param onResponse called with every streamed message, in order, the transfer is cancelled if
+   *     it throws an IllegalArgumentException
+   * @throws PeerRPCFailureException on RPC failure or on a message onResponse can't handle,
+   *     possibly after some messages were handled
+   */
+  public void transferState(
+      int chunkSize, int lingerMillis, Consumer<TransferStateResponse> onResponse)
+      throws PeerRPCFailureException {
+    debug(
+        String.format(
+            "Call PeerService::transferState: address=%s, chunkSize=%d, lingerMillis=%d",
+            address, chunkSize, lingerMillis));
+    // the call is cancelled when the stream is left early, the peer stops sending then
+    Context.CancellableContext call = Context.current().withCancellation();
+    Context previous = call.attach();
+    try {
+      Iterator<TransferStateResponse> responses =
+          this.stub.transferState(
+              TransferStateRequest.newBuilder()
+                  .setChunkSize(chunkSize)
+                  .setLingerMillis(lingerMillis)
+                  .build());
+      while (responses.hasNext()) {
+        onResponse.accept(responses.next());
+      }
+    } catch (StatusRuntimeException e) {
+      throw new PeerRPCFailureException("TransferState", address, e.getStatus().getDescription());
+    } catch (IllegalArgumentException e) {
+      throw new PeerRPCFailureException("TransferState", address, e.getMessage());
+    } finally {
+      call.detach(previous);
+      call.cancel(null);
+    }
+  }
+
+  /**
+   * TupleSpacesReplica 'resolveGap' gRPC wrapper.
+   *
+   * @param seqNumber sequence number missing on this replica
+   * @param requester address of this replica, the peer makes its promise to it
+   * @param fill consume it with a no-op on the peer if it is missing there too, otherwise the peer
+   *     promises to refuse its operation if it is missing there
+   * @return what the peer knows about the sequence number, after filling it if asked to
+   * @throws PeerRPCFailureException on RPC failure or if the peer didn't answer in time
+   */
+  public ResolveGapResponse.Status resolveGap(long seqNumber, String requester, boolean fill)
+      throws PeerRPCFailureException {
+    return resolveGap(
+        ResolveGapRequest.newBuilder()
+            .setSeqNumber(seqNumber)
+            .setRequester(requester)
+            .setFill(fill));
+  }
+
+  /**
+   * TupleSpacesReplica 'resolveGap' gRPC wrapper for a range left behind by a sequencer restart.
+   *
+   * @param first first sequence number of the range
+   * @param end first sequence number of the epoch following the range
+   * @param epoch epoch starting at end
+   * @param requester address of this replica, the peer makes its promise to it
+   * @param fill skip the range on the peer if none of it was received there, otherwise the peer
+   *     promises to refuse the operations of the range if none of it was received there
+   * @return what the peer knows about the range, after skipping it if asked to
+   * @throws PeerRPCFailureException on RPC failure or if the peer didn't answer in time
+   */
+  public ResolveGapResponse.Status resolveGaps(
+      long first, long end, long epoch, String requester, boolean fill)
+      throws PeerRPCFailureException {
+    return resolveGap(
+        ResolveGapRequest.newBuilder()
+            .setSeqNumber(first)
+            .setEndSeqNumber(end)
+            .setEpoch(epoch)
+            .setRequester(requester)
+            .setFill(fill));
+  }
+
+  /**
+   * TupleSpacesReplica 'resolveGap' gRPC wrapper withdrawing the promise the peer made to this
+   * replica for a number, or a range, it gave up resolving for now.
+   *
+   * @param first first sequence number of the range
+   * @param end number right after the range
+   * @param requester address of this replica, the promise was made to it
+   * @return what the peer knows about the first number of the range
+   * @throws PeerRPCFailureException on RPC failure or if the peer didn't answer in time
+   */
+  public ResolveGapResponse.Status releaseGaps(long first, long end, String requester)
+      throws PeerRPCFailureException {
+    return resolveGap(
+        ResolveGapRequest.newBuilder()
+            .setSeqNumber(first)
+            .setEndSeqNumber(end == first + 1 ? 0 : end)
+            .setRequester(requester)
+            .setRelease(true));
+  }
+
+  private ResolveGapResponse.Status resolveGap(ResolveGapRequest.Builder request)
+      throws PeerRPCFailureException {
+    debug(
+        String.format(
+            "Call PeerService::resolveGap: address=%s, seqNumber=%d, endSeqNumber=%d, fill=%b,"
+                + " release=%b",
+            address,
+            request.getSeqNumber(),
+            request.getEndSeqNumber(),
+            request.getFill(),
+            request.getRelease()));
+    try {
+      return this.stub
+          .withDeadlineAfter(RESOLVE_GAP_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+          .resolveGap(request.build())
+          .getStatus();
+    } catch (StatusRuntimeException e) {
+      throw new PeerRPCFailureException("ResolveGap", address, e.getStatus().getDescription());
+    }
+  }
+
+  /**
+   * TupleSpacesReplica 'fetchOperation' gRPC wrapper.
+   *
+   * @param seqNumber sequence number this replica is stuck on
+   * @return operation the peer applied with that number, or null if it didn't apply it yet
+   * @throws OperationForgottenException if the peer applied it too long ago to still keep it
+   * @throws PeerRPCFailureException on RPC failure or if the peer didn't answer in time
+   */
+  public LogRecord fetchOperation(long seqNumber)
+      throws OperationForgottenException, PeerRPCFailureException {
+    debug(
+        String.format(
+            "Call PeerService::fetchOperation: address=%s, seqNumber=%d", address, seqNumber));
+    FetchOperationResponse response;
+    try {
+      response =
+          this.stub
+              .withDeadlineAfter(FETCH_OPERATION_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+              .fetchOperation(FetchOperationRequest.newBuilder().setSeqNumber(seqNumber).build());
+    } catch (StatusRuntimeException e) {
+      throw new PeerRPCFailureException("FetchOperation", address, e.getStatus().getDescription());
+    }
+    if (response.getForgotten()) {
+      throw new OperationForgottenException(seqNumber, address);
+    }
+    if (!response.getFound()) {
+      return null;
+    }
+    try {
+      return new LogRecord(
+          response.getOperation().getSeqNumber(),
+          LogRecord.Type.fromValue(response.getOperation().getTypeValue()),
+          response.getOperation().getValue());
+    } catch (IllegalArgumentException e) { // sent by a replica with a newer contract
+      throw new PeerRPCFailureException("FetchOperation", address, e.getMessage());
+    }
+  }
+}
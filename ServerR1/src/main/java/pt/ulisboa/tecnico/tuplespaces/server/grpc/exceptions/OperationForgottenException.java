@@ -0,0 +1,7 @@
+package pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions;
+
+public class OperationForgottenException extends Exception {
+  public OperationForgottenException(long seqNumber, String address) {
+    super(String.format("SN %d was applied too long ago on %s to be kept", seqNumber, address));
+  }
+}
@@ -0,0 +1,7 @@
+package pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions;
+
+public class PeerRPCFailureException extends Exception {
+  public PeerRPCFailureException(String procedure, String address, String err) {
+    super(String.format("Failed %s RPC on %s. Error: %s", procedure, address, err));
+  }
+}
@@ -0,0 +1,82 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+/** Sequenced operation as recorded in the write-ahead log. */
+public class LogRecord {
+  public enum Type {
+    PUT,
+    TAKE,
+    NOOP, // consumed sequence number (e.g invalid operation), nothing to apply
+    EPOCH; // the numbers up to it that never arrived were skipped, nothing to apply
+
+    private static final Type[] VALUES = values();
+
+    /**
+     * Returns the type with the given value, as written in the log and in the replica contract.
+     *
+     * @throws IllegalArgumentException if no type has that value
+     */
+    public static Type fromValue(int value) throws IllegalArgumentException {
+      if (value < 0 || value >= VALUES.length) {
+        throw new IllegalArgumentException("Unknown log record type " + value);
+      }
+      return VALUES[value];
+    }
+  }
+
+  private final long seqNumber;
+  private final Type type;
+  private final String value; // tuple for puts, search pattern for takes, epoch, or empty
+
+  public LogRecord(long seqNumber, Type type, String value) {
+    this.seqNumber = seqNumber;
+    this.type = type;
+    this.value = value;
+  }
+
+  public static LogRecord put(long seqNumber, String tuple) {
+    return new LogRecord(seqNumber, Type.PUT, tuple);
+  }
+
+  public static LogRecord take(long seqNumber, String pattern) {
+    return new LogRecord(seqNumber, Type.TAKE, pattern);
+  }
+
+  public static LogRecord noop(long seqNumber) {
+    return new LogRecord(seqNumber, Type.NOOP, "");
+  }
+
+  public static LogRecord epoch(long seqNumber, long epoch) {
+    return new LogRecord(seqNumber, Type.EPOCH, Long.toString(epoch));
+  }
+
+  public long getSeqNumber() {
+    return seqNumber;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof LogRecord)) {
+      return false;
+    }
+    LogRecord other = (LogRecord) o;
+    return seqNumber == other.seqNumber && type == other.type && value.equals(other.value);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * Long.hashCode(seqNumber) + type.hashCode()) + value.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d %s %s", seqNumber, type, value);
+  }
+}
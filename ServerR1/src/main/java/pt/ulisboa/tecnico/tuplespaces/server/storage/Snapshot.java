@@ -0,0 +1,28 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+import java.util.List;
+
+/** Point-in-time copy of a ServerState, covering every operation up to a sequence number. */
+public class Snapshot {
+  private final long seqNumber; // last sequence number applied to the state
+  private final List<String> tuples; // tuples in insertion order
+  private final List<String> pendingTakes; // search patterns of pending takes in arrival order
+
+  public Snapshot(long seqNumber, List<String> tuples, List<String> pendingTakes) {
+    this.seqNumber = seqNumber;
+    this.tuples = tuples;
+    this.pendingTakes = pendingTakes;
+  }
+
+  public long getSeqNumber() {
+    return seqNumber;
+  }
+
+  public List<String> getTuples() {
+    return tuples;
+  }
+
+  public List<String> getPendingTakes() {
+    return pendingTakes;
+  }
+}
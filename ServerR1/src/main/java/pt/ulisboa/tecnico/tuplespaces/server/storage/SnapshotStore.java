@@ -0,0 +1,179 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshots of a ServerState, stored next to its write-ahead log.
+ *
+ * <p>A snapshot file ("snapshot-0000000000000000042.bin", named after the last sequence number it
+ * covers) holds a magic number, the 64 bit covered sequence number, the tuples and the pending
+ * take patterns, each string prefixed by its UTF-8 length, followed by a CRC32 of everything
+ * before it. Snapshots are written to a temporary file, forced to disk and then atomically
+ * renamed, so a crash never leaves a partial snapshot behind, and older snapshots are deleted once
+ * a newer one is in place. Snapshots are loaded through a memory mapping of the file instead of a
+ * stream of reads.
+ */
+public class SnapshotStore {
+  private static final int MAGIC = 0x54535332; // "TSS2", sequence numbers are 64 bit since TSS2
+  private static final String PREFIX = "snapshot-";
+  private static final String SUFFIX = ".bin";
+
+  private final Path directory;
+
+  public SnapshotStore(Path directory) throws IOException {
+    this.directory = Files.createDirectories(directory);
+  }
+
+  /**
+   * Durably write a snapshot and delete the ones it supersedes.
+   *
+   * @param snapshot snapshot to be written
+   * @return snapshot file
+   * @throws IOException if the snapshot can't be written
+   */
+  public Path write(Snapshot snapshot) throws IOException {
+    Path temporary = directory.resolve(PREFIX + "tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      CRC32 crc = new CRC32();
+      // the channel is closed by the try-with-resources, after being forced
+      OutputStream unclosed = Channels.newOutputStream(channel);
+      DataOutputStream out =
+          new DataOutputStream(
+              new CheckedOutputStream(new BufferedOutputStream(unclosed, 1 << 16), crc));
+      out.writeInt(MAGIC);
+      out.writeLong(snapshot.getSeqNumber());
+      writeStrings(out, snapshot.getTuples());
+      writeStrings(out, snapshot.getPendingTakes());
+      out.flush();
+      new DataOutputStream(unclosed).writeInt((int) crc.getValue());
+      channel.force(true);
+    }
+
+    Path file = directory.resolve(fileName(snapshot.getSeqNumber()));
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+
+    for (Path older : snapshots().headMap(snapshot.getSeqNumber()).values()) {
+      Files.deleteIfExists(older);
+    }
+    return file;
+  }
+
+  /**
+   * Load the most recent intact snapshot.
+   *
+   * @return latest snapshot or null if there is none
+   * @throws IOException if the snapshots can't be read
+   */
+  public Snapshot loadLatest() throws IOException {
+    for (Path file : snapshots().descendingMap().values()) {
+      Snapshot snapshot = load(file);
+      if (snapshot != null) {
+        return snapshot;
+      }
+      System.err.printf("[WARN] Ignoring corrupted snapshot %s\n", file);
+    }
+    return null;
+  }
+
+  /** Snapshot files by the last sequence number they cover */
+  private TreeMap<Long, Path> snapshots() throws IOException {
+    TreeMap<Long, Path> snapshots = new TreeMap<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+      for (Path file : stream) {
+        String name = file.getFileName().toString();
+        try {
+          snapshots.put(
+              Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())),
+              file);
+        } catch (NumberFormatException e) {
+          System.err.printf("[WARN] Ignoring unexpected file %s in the log directory\n", file);
+        }
+      }
+    }
+    return snapshots;
+  }
+
+  /** Map and decode a snapshot file, returns null if it isn't intact */
+  private static Snapshot load(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < Integer.BYTES * 2 + Long.BYTES || size > Integer.MAX_VALUE) {
+        return null;
+      }
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+      ByteBuffer content = mapped.duplicate();
+      content.limit((int) size - Integer.BYTES);
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      if ((int) crc.getValue() != mapped.getInt((int) size - Integer.BYTES)) {
+        return null;
+      }
+
+      ByteBuffer in = mapped.duplicate();
+      in.limit((int) size - Integer.BYTES);
+      if (in.getInt() != MAGIC) {
+        return null;
+      }
+      long seqNumber = in.getLong();
+      List<String> tuples = readStrings(in);
+      List<String> pendingTakes = readStrings(in);
+      return new Snapshot(seqNumber, tuples, pendingTakes);
+    } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+      return null;
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> strings)
+      throws IOException {
+    out.writeInt(strings.size());
+    for (String s : strings) {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static List<String> readStrings(ByteBuffer in) {
+    int count = in.getInt();
+    if (count < 0) {
+      throw new IllegalArgumentException("Negative string count");
+    }
+    List<String> strings = new ArrayList<>(Math.min(count, in.remaining() / Integer.BYTES));
+    for (int i = 0; i < count; i++) {
+      byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      strings.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    return strings;
+  }
+
+  private static String fileName(long seqNumber) {
+    return String.format("%s%019d%s", PREFIX, seqNumber, SUFFIX);
+  }
+}
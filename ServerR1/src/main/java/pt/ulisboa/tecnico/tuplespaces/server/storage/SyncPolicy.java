@@ -0,0 +1,26 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+/** When the write-ahead log forces appended records to disk. */
+public enum SyncPolicy {
+  /** fsync after every record, an answered operation is always durable */
+  OPERATION,
+  /** fsync once per applied batch, operations applied together share a single fsync */
+  BATCH,
+  /** fsync on a fixed interval, operations answered since the last fsync may be lost on a crash */
+  PERIODIC;
+
+  /**
+   * Parse a sync policy argument.
+   *
+   * @param policy policy name, case insensitive (e.g "batch")
+   * @return parsed policy or null if the name is unknown
+   */
+  public static SyncPolicy parse(String policy) {
+    for (SyncPolicy value : values()) {
+      if (value.name().equalsIgnoreCase(policy)) {
+        return value;
+      }
+    }
+    return null;
+  }
+}
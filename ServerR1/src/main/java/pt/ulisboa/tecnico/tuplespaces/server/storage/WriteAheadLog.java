@@ -0,0 +1,381 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the sequenced operations applied to a ServerState.
+ *
+ * <p>The log is a directory of segment files, each named after the sequence number of its first
+ * record (e.g "wal-0000000000000000001.log"). Only the last segment is appended to, a new one is
+ * started whenever a snapshot is taken so the segments it covers can be deleted as a whole.
+ *
+ * <p>Every record is framed as {@code [body length][CRC32 of body][body]}, with the body holding
+ * the 64 bit sequence number, the operation type and the UTF-8 tuple or search pattern. Appended
+ * records are kept in memory until {@link #commit()} writes them with a single write call, so
+ * operations applied in the same batch share one write and, with the BATCH policy, one fsync. A
+ * crash in the middle of a write leaves a torn record at the end of the last segment, replay stops
+ * at the first record that fails its checksum and truncates the segment there. A corrupted record
+ * in an earlier segment ends the replay the same way: the segments after it are deleted and the
+ * truncated one is appended to, so the log stays in sequence order and the replica gets the lost
+ * operations from its peers.
+ *
+ * <p>Records are appended, committed and rolled by the ServerState apply thread only, the periodic
+ * sync thread only ever forces the file and the snapshot thread only deletes covered segments.
+ */
+public class WriteAheadLog implements Closeable {
+  private static final int HEADER_SIZE = Integer.BYTES * 2; // body length and checksum
+  private static final int MAX_BODY_SIZE = 16 * 1024 * 1024; // anything bigger is garbage
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private final Path directory;
+  private final SyncPolicy syncPolicy;
+  private final ScheduledExecutorService syncer; // only used by the PERIODIC policy
+
+  private volatile FileChannel channel = null; // segment being appended to, open after replay
+  private ByteBuffer pending = ByteBuffer.allocate(4096); // appended but not yet written records
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong syncs = new AtomicLong();
+  private final AtomicBoolean unsynced = new AtomicBoolean(); // written since the last fsync
+
+  /**
+   * Open (or create) a write-ahead log, it can only be appended to after being replayed.
+   *
+   * @param directory directory holding the log segments
+   * @param syncPolicy when records are forced to disk
+   * @param syncIntervalMillis fsync interval of the PERIODIC policy
+   * @throws IOException if the directory can't be created
+   */
+  public WriteAheadLog(Path directory, SyncPolicy syncPolicy, long syncIntervalMillis)
+      throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.syncPolicy = syncPolicy;
+
+    if (syncPolicy == SyncPolicy.PERIODIC) {
+      this.syncer =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread thread = new Thread(r, "WriteAheadLog-sync");
+                thread.setDaemon(true);
+                return thread;
+              });
+      this.syncer.scheduleAtFixedRate(
+          this::periodicSync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      this.syncer = null;
+    }
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Read every intact record after the given sequence number and open the last segment for
+   * appending. A torn or corrupted tail of a segment is cut off, along with the segments after it
+   * unless the records lost with the tail are covered by the snapshot.
+   *
+   * @param afterSeqNumber sequence number already covered by a snapshot, 0 if none
+   * @return logged records in sequence number order
+   * @throws IOException if the segments can't be read, or the ones after a torn record deleted
+   */
+  public List<LogRecord> replay(long afterSeqNumber) throws IOException {
+    List<LogRecord> replayed = new ArrayList<>();
+    TreeMap<Long, Path> segments = segments();
+    for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+      boolean torn;
+      try (FileChannel file =
+          FileChannel.open(segment.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long end = readSegment(file, afterSeqNumber, replayed);
+        torn = end < file.size();
+        if (torn) {
+          System.err.printf(
+              "[WARN] Discarding %d bytes of torn records at the end of %s\n",
+              file.size() - end, segment.getValue());
+          file.truncate(end);
+        }
+      }
+      Long next = segments.higherKey(segment.getKey());
+      if (torn && next != null && next > afterSeqNumber + 1) {
+        // the following segments can't be applied without the lost records, and the next ones
+        // appended would land after them
+        for (Path discarded : segments.tailMap(next).values()) {
+          System.err.printf("[WARN] Discarding %s, it follows a torn record\n", discarded);
+          Files.delete(discarded);
+        }
+        segments = new TreeMap<>(segments.headMap(next));
+        break;
+      }
+    }
+
+    if (segments.isEmpty()) {
+      openSegment(afterSeqNumber + 1);
+    } else {
+      channel =
+          FileChannel.open(
+              segments.lastEntry().getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      channel.position(channel.size());
+    }
+    return replayed;
+  }
+
+  /**
+   * Append a record, it is only written on the next commit unless the policy is OPERATION.
+   *
+   * @param record record to be appended
+   * @throws IOException if the record can't be written
+   */
+  public void append(LogRecord record) throws IOException {
+    byte[] value = record.getValue().getBytes(StandardCharsets.UTF_8);
+    int length = Long.BYTES + 1 + value.length;
+    ensureCapacity(HEADER_SIZE + length);
+
+    int start = pending.position();
+    pending.position(start + HEADER_SIZE);
+    pending.putLong(record.getSeqNumber());
+    pending.put((byte) record.getType().ordinal());
+    pending.put(value);
+    ByteBuffer body = pending.duplicate();
+    body.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+    pending.putInt(start, length);
+    pending.putInt(start + Integer.BYTES, checksum(body));
+    records.incrementAndGet();
+
+    if (syncPolicy == SyncPolicy.OPERATION) {
+      write();
+      force();
+    }
+  }
+
+  /**
+   * Write every appended record, forcing them to disk if the policy is BATCH.
+   *
+   * @throws IOException if the records can't be written
+   */
+  public void commit() throws IOException {
+    write();
+    if (syncPolicy == SyncPolicy.BATCH) {
+      force();
+    }
+  }
+
+  /**
+   * Close the current segment and start a new one, every record appended from now on must have
+   * at least the given sequence number.
+   *
+   * @param nextSeqNumber sequence number of the first record of the new segment
+   * @throws IOException if the current segment can't be closed or the new one created
+   */
+  public void roll(long nextSeqNumber) throws IOException {
+    write();
+    force();
+    channel.close();
+    openSegment(nextSeqNumber);
+  }
+
+  /**
+   * Delete every segment whose records are all covered by a snapshot.
+   *
+   * @param seqNumber last sequence number covered by the snapshot
+   * @return number of deleted segments
+   * @throws IOException if a segment can't be deleted
+   */
+  public int truncate(long seqNumber) throws IOException {
+    int deleted = 0;
+    TreeMap<Long, Path> segments = segments();
+    for (Long first : segments.keySet()) {
+      Long next = segments.higherKey(first);
+      // a segment ends right before the next one starts, the last one is never covered
+      if (next != null && next <= seqNumber + 1) {
+        Files.deleteIfExists(segments.get(first));
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  public SyncPolicy getSyncPolicy() {
+    return syncPolicy;
+  }
+
+  public long getRecords() {
+    return records.get();
+  }
+
+  public long getSyncs() {
+    return syncs.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (syncer != null) {
+      syncer.shutdown();
+      try {
+        syncer.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (channel != null) {
+      write();
+      force();
+      channel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "{directory=%s, policy=%s, records=%d, syncs=%d}",
+        directory, syncPolicy, getRecords(), getSyncs());
+  }
+
+  /** Segment files of the log by the sequence number of their first record */
+  private TreeMap<Long, Path> segments() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path segment : stream) {
+        String name = segment.getFileName().toString();
+        try {
+          long first =
+              Long.parseLong(
+                  name.substring(
+                      SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(first, segment);
+        } catch (NumberFormatException e) {
+          System.err.printf("[WARN] Ignoring unexpected file %s in the log directory\n", segment);
+        }
+      }
+    }
+    return segments;
+  }
+
+  private void openSegment(long firstSeqNumber) throws IOException {
+    String name = String.format("%s%019d%s", SEGMENT_PREFIX, firstSeqNumber, SEGMENT_SUFFIX);
+    channel =
+        FileChannel.open(
+            directory.resolve(name),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    channel.position(channel.size());
+  }
+
+  /**
+   * Read the intact records of a segment.
+   *
+   * @return position right after the last intact record
+   */
+  private static long readSegment(FileChannel file, long afterSeqNumber, List<LogRecord> replayed)
+      throws IOException {
+    long size = file.size();
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (position + HEADER_SIZE <= size) {
+      header.clear();
+      file.read(header, position);
+      header.flip();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      if (length < Long.BYTES + 1
+          || length > MAX_BODY_SIZE
+          || position + HEADER_SIZE + length > size) {
+        break;
+      }
+
+      ByteBuffer body = ByteBuffer.allocate(length);
+      file.read(body, position + HEADER_SIZE);
+      body.flip();
+      if (checksum(body) != checksum) {
+        break;
+      }
+      LogRecord record = decode(body);
+      if (record.getSeqNumber() > afterSeqNumber) {
+        replayed.add(record);
+      }
+      position += HEADER_SIZE + length;
+    }
+    return position;
+  }
+
+  private void write() throws IOException {
+    pending.flip();
+    if (pending.hasRemaining()) {
+      unsynced.set(true);
+    }
+    while (pending.hasRemaining()) {
+      channel.write(pending);
+    }
+    pending.clear();
+  }
+
+  private void force() throws IOException {
+    unsynced.set(false);
+    channel.force(false);
+    syncs.incrementAndGet();
+  }
+
+  private void periodicSync() {
+    FileChannel current = channel;
+    try {
+      if (current != null && unsynced.getAndSet(false)) {
+        current.force(false);
+        syncs.incrementAndGet();
+      }
+    } catch (ClosedChannelException e) {
+      // rolled or closed in the meantime, which already forced it
+    } catch (IOException e) {
+      System.err.printf("[ERROR] Unable to sync %s: %s\n", directory, e.getMessage());
+    }
+  }
+
+  private void ensureCapacity(int needed) {
+    if (pending.remaining() >= needed) {
+      return;
+    }
+    ByteBuffer larger =
+        ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+    pending.flip();
+    larger.put(pending);
+    pending = larger;
+  }
+
+  private static int checksum(ByteBuffer body) {
+    CRC32 crc = new CRC32();
+    crc.update(body.duplicate());
+    return (int) crc.getValue();
+  }
+
+  private static LogRecord decode(ByteBuffer body) throws IOException {
+    long seqNumber = body.getLong();
+    LogRecord.Type type;
+    try {
+      type = LogRecord.Type.fromValue(body.get());
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage());
+    }
+    byte[] value = new byte[body.remaining()];
+    body.get(value);
+    return new LogRecord(seqNumber, type, new String(value, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,139 @@
+package pt.ulisboa.tecnico.tuplespaces.server;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pt.ulisboa.tecnico.tuplespaces.replicaTotalOrder.contract.TupleSpacesReplicaTotalOrder.ResolveGapResponse;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.NameServerService;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.PeerService;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.OperationForgottenException;
+import pt.ulisboa.tecnico.tuplespaces.server.grpc.exceptions.PeerRPCFailureException;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+
+class GapResolverTest {
+  private static final String SELF = "localhost:2001";
+  private static final String FAST = "localhost:2002";
+  private static final String SLOW = "localhost:2003";
+
+  /** Replica where every number is missing, or that times out while it is slow */
+  private static class FakePeer extends PeerService {
+    final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    volatile boolean slow;
+    volatile boolean forgetful; // applied every number too long ago to still keep it
+
+    FakePeer(String address, boolean slow) {
+      super(address);
+      this.slow = slow;
+    }
+
+    @Override
+    public ResolveGapResponse.Status resolveGap(long seqNumber, String requester, boolean fill)
+        throws PeerRPCFailureException {
+      if (slow) {
+        throw new PeerRPCFailureException("ResolveGap", getAddress(), "DEADLINE_EXCEEDED");
+      }
+      calls.add((fill ? "fill " : "promise ") + seqNumber);
+      return fill ? ResolveGapResponse.Status.FILLED : ResolveGapResponse.Status.MISSING;
+    }
+
+    @Override
+    public ResolveGapResponse.Status releaseGaps(long first, long end, String requester) {
+      calls.add("release " + first);
+      return ResolveGapResponse.Status.MISSING;
+    }
+
+    @Override
+    public LogRecord fetchOperation(long seqNumber) throws OperationForgottenException {
+      if (forgetful) {
+        throw new OperationForgottenException(seqNumber, getAddress());
+      }
+      return null;
+    }
+  }
+
+  private static class FakeNameServer extends NameServerService {
+    FakeNameServer() {
+      super("localhost:5001");
+    }
+
+    @Override
+    public List<String> lookup(String serviceName) {
+      return List.of(SELF, FAST, SLOW);
+    }
+  }
+
+  @Test
+  void timedOutPeerLeavesTheGapUnfilledTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    // the client holding SN 2 crashed before sending its put
+    CompletableFuture<Void> later = state.putAsync("<sd,3>", 3);
+    FakePeer fast = new FakePeer(FAST, false);
+    FakePeer slow = new FakePeer(SLOW, true);
+    Map<String, PeerService> peers = Map.of(FAST, fast, SLOW, slow);
+    NameServerService nameServer = new FakeNameServer();
+
+    GapResolver resolver =
+        new GapResolver(state, nameServer, "TupleSpaces", SELF, 50, () -> {}, peers::get);
+    resolver.start();
+    Thread.sleep(500);
+    resolver.shutdown();
+
+    // the slow peer may still take the operation, every round is abandoned before filling
+    assertEquals(ServerState.GapStatus.MISSING, state.getGapStatus(2));
+    assertFalse(later.isDone());
+    assertEquals(0, resolver.getFilled());
+    assertFalse(fast.calls.contains("fill 2"));
+    assertEquals(
+        Collections.frequency(fast.calls, "promise 2"),
+        Collections.frequency(fast.calls, "release 2"));
+
+    // filled once every registered replica answered that it is missing
+    slow.slow = false;
+    GapResolver answered =
+        new GapResolver(state, nameServer, "TupleSpaces", SELF, 50, () -> {}, peers::get);
+    answered.start();
+    later.get(5, TimeUnit.SECONDS);
+    answered.shutdown();
+    nameServer.shutdown();
+    assertEquals(ServerState.GapStatus.FILLED, state.getGapStatus(2));
+    assertTrue(fast.calls.contains("fill 2"));
+    assertTrue(slow.calls.contains("fill 2"));
+    state.shutdown();
+  }
+
+  @Test
+  void operationForgottenByThePeersIsCaughtUpWithTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    // SN 2 was applied by the peers long enough ago to be evicted from their rings
+    CompletableFuture<Void> later = state.putAsync("<sd,3>", 3);
+    FakePeer fast = new FakePeer(FAST, false);
+    FakePeer slow = new FakePeer(SLOW, false);
+    fast.forgetful = true;
+    slow.forgetful = true;
+    Map<String, PeerService> peers = Map.of(FAST, fast, SLOW, slow);
+    NameServerService nameServer = new FakeNameServer();
+
+    CountDownLatch caughtUp = new CountDownLatch(1);
+    GapResolver resolver =
+        new GapResolver(
+            state, nameServer, "TupleSpaces", SELF, 0, caughtUp::countDown, peers::get);
+    resolver.start();
+    assertTrue(caughtUp.await(5, TimeUnit.SECONDS));
+    resolver.shutdown();
+    nameServer.shutdown();
+    assertFalse(later.isDone());
+    assertEquals(ServerState.GapStatus.MISSING, state.getGapStatus(2));
+    state.shutdown();
+  }
+}
@@ -0,0 +1,61 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FieldPatternTest {
+  @Test
+  void numericRangeComparesNumbersTest() {
+    FieldPattern range = FieldPattern.numericRange("2", "10");
+    assertTrue(range.matches("2"));
+    assertTrue(range.matches("9.5"));
+    assertTrue(range.matches("1.0E1"));
+    assertFalse(range.matches("11"));
+    assertFalse(range.matches("1"));
+    assertFalse(range.matches("abc"));
+    assertTrue(FieldPattern.numericRange(null, "0").matches("-3"));
+  }
+
+  @Test
+  void textRangeComparesLexicographicallyTest() {
+    FieldPattern range = FieldPattern.textRange("turno1", "turno3");
+    assertTrue(range.matches("turno2"));
+    assertFalse(range.matches("turno4"));
+    assertTrue(FieldPattern.textRange("b", null).matches("z"));
+  }
+
+  @Test
+  void regexOnlyMatchesItsFieldTest() {
+    FieldPattern regex = FieldPattern.regex("turno[0-9]+");
+    assertTrue(regex.matches("turno12"));
+    assertFalse(regex.matches("turno"));
+  }
+
+  @Test
+  void encodingRoundTripTest() {
+    List<FieldPattern> fields =
+        List.of(
+            FieldPattern.literal("sd"),
+            FieldPattern.any(),
+            FieldPattern.regex("a:b{1,2}"),
+            FieldPattern.numericRange("1", null),
+            FieldPattern.textRange(null, "z"));
+    String encoded = FieldPattern.encode(fields);
+    assertEquals("L2:sdAR8:a:b{1,2}N1:1-T-1:z", encoded);
+
+    List<FieldPattern> decoded = FieldPattern.decode(encoded);
+    assertEquals(encoded, FieldPattern.encode(decoded));
+    assertEquals("sd", decoded.get(0).getLiteral());
+    assertEquals(FieldPattern.Kind.NUMERIC_RANGE, decoded.get(3).getKind());
+  }
+
+  @Test
+  void invalidEncodingTest() {
+    assertThrows(IllegalArgumentException.class, () -> FieldPattern.decode("L5:sd"));
+    assertThrows(IllegalArgumentException.class, () -> FieldPattern.decode("X"));
+    assertThrows(IllegalArgumentException.class, () -> FieldPattern.decode("L-"));
+    assertThrows(IllegalArgumentException.class, () -> FieldPattern.decode("N3:one-"));
+  }
+}
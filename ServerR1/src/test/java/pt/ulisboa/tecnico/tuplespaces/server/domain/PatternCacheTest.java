@@ -0,0 +1,39 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.junit.jupiter.api.Test;
+
+class PatternCacheTest {
+  @Test
+  void cachedPatternIsReused() {
+    PatternCache cache = new PatternCache(4);
+    Pattern first = cache.get("<sd,vaga,[^,]+>");
+    Pattern second = cache.get("<sd,vaga,[^,]+>");
+    assertSame(first, second);
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  void leastRecentlyUsedIsEvicted() {
+    PatternCache cache = new PatternCache(2);
+    Pattern a = cache.get("<a>");
+    cache.get("<b>");
+    cache.get("<a>"); // <a> is now the most recently used
+    cache.get("<c>"); // evicts <b>
+    assertEquals(2, cache.size());
+    assertSame(a, cache.get("<a>"));
+    cache.get("<b>");
+    assertEquals(4, cache.getMisses());
+  }
+
+  @Test
+  void invalidRegexIsNotCached() {
+    PatternCache cache = new PatternCache(2);
+    assertThrows(PatternSyntaxException.class, () -> cache.get("<[>"));
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,33 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+
+class RecentOperationsTest {
+  @Test
+  void keptOperationIsFound() {
+    RecentOperations recent = new RecentOperations(4);
+    recent.add(LogRecord.put(1, "<a>"));
+    recent.add(LogRecord.take(2, "<a>"));
+    assertEquals(LogRecord.put(1, "<a>"), recent.get(1));
+    assertEquals(LogRecord.take(2, "<a>"), recent.get(2));
+    assertNull(recent.get(3)); // not applied yet
+  }
+
+  @Test
+  void oldestOperationIsOverwritten() {
+    RecentOperations recent = new RecentOperations(2);
+    recent.add(LogRecord.put(1, "<a>"));
+    recent.add(LogRecord.put(2, "<b>"));
+    recent.add(LogRecord.put(3, "<c>")); // takes the slot of SN 1
+    assertNull(recent.get(1));
+    assertEquals(LogRecord.put(3, "<c>"), recent.get(3));
+  }
+
+  @Test
+  void nonPositiveCapacityIsRejected() {
+    assertThrows(IllegalArgumentException.class, () -> new RecentOperations(0));
+  }
+}
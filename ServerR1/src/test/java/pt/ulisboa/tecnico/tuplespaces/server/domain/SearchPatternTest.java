@@ -0,0 +1,86 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class SearchPatternTest {
+  private static SearchPattern compile(String pattern) {
+    return new SearchPattern(pattern, Pattern.compile(pattern));
+  }
+
+  @Test
+  void literalPatternTest() {
+    SearchPattern pattern = compile("<sd,vaga,turno1>");
+    assertEquals(3, pattern.getArity());
+    assertEquals("sd", pattern.getLiteral(0));
+    assertEquals("vaga", pattern.getLiteral(1));
+    assertEquals("turno1", pattern.getLiteral(2));
+  }
+
+  @Test
+  void regexFieldsAreNotLiteralsTest() {
+    SearchPattern pattern = compile("<sd,vaga,[^,]+>");
+    assertEquals(3, pattern.getArity());
+    assertEquals("sd", pattern.getLiteral(0));
+    assertNull(pattern.getLiteral(2));
+  }
+
+  @Test
+  void escapedLiteralTest() {
+    SearchPattern pattern = compile("<a\\.b,c>");
+    assertEquals("a.b", pattern.getLiteral(0));
+    assertTrue(pattern.matches("<a.b,c>"));
+  }
+
+  @Test
+  void commaInsideGroupsAndQuantifiersTest() {
+    SearchPattern pattern = compile("<turno[0-9]{1,3},sd>");
+    assertEquals(2, pattern.getArity());
+    assertEquals("sd", pattern.getLiteral(1));
+  }
+
+  @Test
+  void dotMakesArityUnknownTest() {
+    assertFalse(compile("<vaga1,sd,turno(.*)>").hasKnownArity());
+    assertFalse(compile("<sd,.*>").hasKnownArity());
+  }
+
+  @Test
+  void unsafeShapesAreUnconstrainedTest() {
+    assertFalse(compile("<a,b>|<c>").hasKnownArity()); // top level alternation
+    assertFalse(compile("<(?i)sd,vaga>").hasKnownArity()); // inline flags
+    assertFalse(compile("<[a-z,]+,b>").hasKnownArity()); // class containing a comma
+    assertFalse(compile("<[^a]+,b>").hasKnownArity()); // negated class without a comma
+  }
+
+  @Test
+  void quantifiedCommaIsUnconstrainedTest() {
+    // the quantifier applies to the comma, so these match the single field tuple "<ab>"
+    for (String source : new String[] {"<a,?b>", "<a,*b>", "<a,{0}b>", "<a,b,+c>"}) {
+      SearchPattern pattern = compile(source);
+      assertFalse(pattern.hasKnownArity(), source);
+      assertNull(pattern.getLiteral(0), source);
+    }
+    assertTrue(compile("<a,?b>").matches("<ab>"));
+  }
+
+  @Test
+  void tupleFieldsTest() {
+    assertArrayEquals(new String[] {"sd", "vaga"}, SearchPattern.tupleFields("<sd,vaga>"));
+    assertArrayEquals(new String[] {""}, SearchPattern.tupleFields("<>"));
+  }
+
+  @Test
+  void exactPatternSkipsRegexTest() {
+    PatternCache cache = new PatternCache();
+    SearchPattern exact = SearchPattern.compile("<vaga,sd,turno1>", cache);
+    assertTrue(exact.isExact());
+    assertEquals("<vaga,sd,turno1>", exact.getExactTuple());
+    assertTrue(exact.matches("<vaga,sd,turno1>"));
+    assertFalse(SearchPattern.compile("<vaga,sd,turno[0-9]>", cache).isExact());
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+}
@@ -1,16 +1,29 @@
 package pt.ulisboa.tecnico.tuplespaces.server.domain;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 
 import pt.ulisboa.tecnico.tuplespaces.server.Server;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputException;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputSearchPatternException;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidInputTupleStringException;
+import pt.ulisboa.tecnico.tuplespaces.server.domain.exceptions.InvalidSequenceNumberException;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.LogRecord;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.Snapshot;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.SnapshotStore;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.SyncPolicy;
+import pt.ulisboa.tecnico.tuplespaces.server.storage.WriteAheadLog;
 
 class ServerStateTest {
   @Test
@@ -47,7 +60,7 @@ class ServerStateTest {
   void putTupleAndReadTest() {
     ServerState state = new ServerState();
     try {
-      state.put("<sd,vaga,turno1>");
+      state.put("<sd,vaga,turno1>", 1);
       assertEquals(state.read("<sd,vaga,turno1>"), "<sd,vaga,turno1>");
     } catch (InvalidInputException e) {
       fail("Failed with exception: " + e.getMessage());
@@ -58,8 +71,8 @@ class ServerStateTest {
   void readTupleWithRegex() {
     ServerState state = new ServerState();
     try {
-      state.put("<sd,vaga,turno1>");
-      state.put("<sd,vaga,turno2>");
+      state.put("<sd,vaga,turno1>", 1);
+      state.put("<sd,vaga,turno2>", 2);
       String tuple = state.read("<sd,vaga,[^,]+>");
       assertTrue(tuple.equals("<sd,vaga,turno1>") || tuple.equals("<sd,vaga,turno2>"));
     } catch (InvalidInputException e) {
@@ -71,8 +84,8 @@ class ServerStateTest {
   void takeTuple() {
     ServerState state = new ServerState();
     try {
-      state.put("<sd,vaga,turno1>");
-      String tuple = state.take("<sd,vaga,turno1>");
+      state.put("<sd,vaga,turno1>", 1);
+      String tuple = state.take("<sd,vaga,turno1>", 2);
       assertEquals(tuple, "<sd,vaga,turno1>");
     } catch (InvalidInputException e) {
       fail("Failed with exception: " + e.getMessage());
@@ -83,9 +96,9 @@ class ServerStateTest {
   void takeRemoveTest() {
     ServerState state = new ServerState();
     try {
-      state.put("<sd,vaga,turno1>");
-      state.put("<sd,vaga,turno2>");
-      String tuple = state.take("<sd,vaga,turno1>");
+      state.put("<sd,vaga,turno1>", 1);
+      state.put("<sd,vaga,turno2>", 2);
+      String tuple = state.take("<sd,vaga,turno1>", 3);
       assertEquals(tuple, "<sd,vaga,turno1>");
       assertEquals(state.getTupleSpacesState(), new ArrayList<>(List.of("<sd,vaga,turno2>")));
     } catch (InvalidInputException e)  {
@@ -97,9 +110,9 @@ class ServerStateTest {
   void takeRemoveRegexTest() {
     ServerState state = new ServerState();
     try {
-      state.put("<sd,vaga,turno1>");
-      state.put("<sd,vaga,turno2>");
-      String tuple = state.take("<sd,vaga,[^,]+>");
+      state.put("<sd,vaga,turno1>", 1);
+      state.put("<sd,vaga,turno2>", 2);
+      String tuple = state.take("<sd,vaga,[^,]+>", 3);
       assertEquals(tuple, "<sd,vaga,turno1>");
       assertEquals(state.getTupleSpacesState(), new ArrayList<>(List.of("<sd,vaga,turno2>")));
     } catch (InvalidInputException e)  {
@@ -111,9 +124,9 @@ class ServerStateTest {
   void getAllTuplesTest() {
     ServerState state = new ServerState();
     try {
-      state.put("<sd,vaga,turno1>");
-      state.put("<sd,vaga,turno2>");
-      state.put("<es,vaga,turno1>");
+      state.put("<sd,vaga,turno1>", 1);
+      state.put("<sd,vaga,turno2>", 2);
+      state.put("<es,vaga,turno1>", 3);
       assertEquals(
           state.getTupleSpacesState(),
           new ArrayList<>(
@@ -127,7 +140,7 @@ class ServerStateTest {
   void invalidInputPutTest() {
     ServerState state = new ServerState();
     try {
-      state.put("invalidtuple");
+      state.put("invalidtuple", 1);
       fail("Didn't throw expected InvalidInput");
     } catch (InvalidInputException e) {
       // all good if here
@@ -149,7 +162,7 @@ class ServerStateTest {
   void invalidInputTakeTest() {
     ServerState state = new ServerState();
     try {
-      state.take("invalidtuple");
+      state.take("invalidtuple", 1);
       fail("Didn't throw expected InvalidInput");
     } catch (InvalidInputException e) {
       // all good if here
@@ -161,4 +174,628 @@ class ServerStateTest {
     ServerState state = new ServerState();
     assertEquals(state.getTupleSpacesState(), new ArrayList<>(List.of()));
   }
+
+  @Test
+  void invalidRegexTakeTest() {
+    ServerState state = new ServerState();
+    try {
+      state.take("<sd,[vaga>", 1);
+      fail("Didn't throw expected InvalidInput");
+    } catch (InvalidInputException e) {
+      // all good if here
+    }
+  }
+
+  @Test
+  void readUsesPatternCache() {
+    ServerState state = new ServerState();
+    try {
+      state.put("<sd,vaga,turno1>", 1);
+      state.put("<sd,vaga,turno2>", 2);
+      state.read("<sd,vaga,turno[0-9]>");
+      state.read("<sd,vaga,turno[0-9]>");
+      state.read("<sd,vaga,turno2>"); // exact patterns skip the regex engine
+      assertEquals(1, state.getPatternCache().getMisses());
+      assertEquals(1, state.getPatternCache().getHits());
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+  }
+
+  @Test
+  void blockedReadWokenByMatchingPutTest() throws Exception {
+    ServerState state = new ServerState();
+    CompletableFuture<String> result =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return state.read("<sd,vaga,[^,]+>");
+              } catch (InvalidInputException e) {
+                throw new CompletionException(e);
+              }
+            });
+    awaitCount(state::getPendingReadCount, 1); // parked before the puts
+    state.put("<es,vaga,turno1>", 1);
+    assertEquals(1, state.getPendingReadCount()); // not woken by a put that doesn't match
+    state.put("<sd,vaga,turno2>", 2);
+    assertEquals("<sd,vaga,turno2>", result.get(5, TimeUnit.SECONDS));
+    assertEquals(0, state.getPendingReadCount());
+  }
+
+  /** Wait until a count of parked operations reaches the expected value */
+  private static void awaitCount(IntSupplier count, int expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (count.getAsInt() != expected) {
+      if (System.nanoTime() - deadline > 0) {
+        fail("Expected " + expected + " parked operations, got " + count.getAsInt());
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  void pendingTakesAreHandedTuplesInOrderTest() throws Exception {
+    ServerState state = new ServerState();
+    CompletableFuture<String> first = takeAsync(state, "<sd,vaga,[^,]+>", 1);
+    CompletableFuture<String> second = takeAsync(state, "<sd,[^,]+,[^,]+>", 2);
+    awaitCount(state::getPendingTakeCount, 2); // both parked before the puts
+    state.put("<sd,vaga,turno1>", 3);
+    state.put("<sd,vaga,turno2>", 4);
+    assertEquals("<sd,vaga,turno1>", first.get(5, TimeUnit.SECONDS));
+    assertEquals("<sd,vaga,turno2>", second.get(5, TimeUnit.SECONDS));
+    assertEquals(0, state.getPendingTakeCount());
+    assertEquals(List.of(), state.getTupleSpacesState());
+  }
+
+  /** Run a blocking take in its own thread, its failure is rethrown by the returned future */
+  private static CompletableFuture<String> takeAsync(
+      ServerState state, String pattern, int seqNumber) {
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try {
+            return state.take(pattern, seqNumber);
+          } catch (InvalidInputException e) {
+            throw new CompletionException(e);
+          }
+        },
+        task -> new Thread(task).start()); // the common pool may run one task at a time
+  }
+
+  @Test
+  void outOfOrderOperationsAreAppliedInSequenceTest() {
+    ServerState state = new ServerState();
+    try {
+      CompletableFuture<String> take = state.takeAsync("<sd,[^,]+>", 2);
+      CompletableFuture<Void> secondPut = state.putAsync("<sd,turno2>", 3);
+      assertFalse(take.isDone());
+      state.put("<sd,turno1>", 1);
+      secondPut.join();
+      assertEquals("<sd,turno1>", take.join());
+      assertEquals(List.of("<sd,turno2>"), state.getTupleSpacesState());
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+  }
+
+  @Test
+  void usedSequenceNumberIsRejectedTest() {
+    ServerState state = new ServerState();
+    try {
+      state.put("<sd,turno1>", 1);
+      CompletableFuture<Void> duplicate = state.putAsync("<sd,turno1>", 1);
+      CompletionException e = assertThrows(CompletionException.class, duplicate::join);
+      assertTrue(e.getCause() instanceof InvalidSequenceNumberException);
+      assertEquals(List.of("<sd,turno1>"), state.getTupleSpacesState());
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+  }
+
+  @Test
+  void invalidOperationConsumesSequenceNumberTest() {
+    ServerState state = new ServerState();
+    try {
+      state.put("invalidtuple", 1);
+      fail("Didn't throw expected InvalidInput");
+    } catch (InvalidInputException e) {
+      // all good if here
+    }
+    try {
+      state.put("<sd,turno1>", 2);
+      assertEquals(List.of("<sd,turno1>"), state.getTupleSpacesState());
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+  }
+
+  @Test
+  void pendingReadsDontHoldThreadsTest() {
+    ServerState state = new ServerState();
+    try {
+      List<CompletableFuture<String>> reads = new ArrayList<>();
+      for (int i = 0; i < 10000; i++) {
+        reads.add(state.readAsync("<sd,vaga,[^,]+>"));
+      }
+      assertEquals(10000, state.getPendingReadCount());
+      state.put("<sd,vaga,turno1>", 1);
+      for (CompletableFuture<String> read : reads) {
+        assertEquals("<sd,vaga,turno1>", read.join());
+      }
+      assertEquals(0, state.getPendingReadCount());
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+  }
+
+  @Test
+  void cancelledReadIsUnregisteredTest() {
+    ServerState state = new ServerState();
+    try {
+      CompletableFuture<String> read = state.readAsync("<sd,vaga,[^,]+>");
+      read.cancel(false);
+      assertEquals(0, state.getPendingReadCount());
+      state.put("<sd,vaga,turno1>", 1);
+      assertEquals(List.of("<sd,vaga,turno1>"), state.getTupleSpacesState());
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+  }
+
+  @Test
+  void stateIsRecoveredFromWriteAheadLogTest(@TempDir Path dir) throws IOException {
+    Path file = dir.resolve("wal");
+    ServerState state = new ServerState(new WriteAheadLog(file, SyncPolicy.BATCH, 100));
+    try {
+      state.put("<sd,vaga,turno1>", 1);
+      state.put("<sd,vaga,turno2>", 2);
+      state.take("<sd,vaga,turno1>", 3);
+      state.takeAsync("<es,vaga,[^,]+>", 4); // stays pending
+      state.put("invalidtuple", 5);
+      fail("Didn't throw expected InvalidInput");
+    } catch (InvalidInputException e) {
+      // all good if here
+    }
+    try {
+      state.put("<sd,vaga,turno3>", 6);
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+    state.shutdown();
+
+    ServerState recovered = new ServerState(new WriteAheadLog(file, SyncPolicy.BATCH, 100));
+    assertEquals(7, recovered.getNextSeqNumber());
+    assertEquals(List.of("<sd,vaga,turno2>", "<sd,vaga,turno3>"), recovered.getTupleSpacesState());
+    try {
+      // the recovered pending take gets the tuple, just like on the replicas that never restarted
+      recovered.put("<es,vaga,turno1>", 7);
+      assertEquals(List.of("<sd,vaga,turno2>", "<sd,vaga,turno3>"), recovered.getTupleSpacesState());
+    } catch (InvalidInputException e) {
+      fail("Failed with exception: " + e.getMessage());
+    }
+    recovered.shutdown();
+  }
+
+  @Test
+  void stateIsRecoveredFromSnapshotAndLogTailTest(@TempDir Path dir) throws Exception {
+    ServerState state =
+        new ServerState(
+            new WriteAheadLog(dir, SyncPolicy.BATCH, 100), new SnapshotStore(dir), 2);
+    state.put("<sd,vaga,turno1>", 1);
+    state.put("<sd,vaga,turno2>", 2); // a snapshot of SN 2 is taken after this one
+    state.takeAsync("<es,vaga,[^,]+>", 3);
+    state.take("<sd,vaga,turno1>", 4);
+    state.put("<sd,vaga,turno3>", 5);
+    state.shutdown();
+
+    ServerState recovered =
+        new ServerState(
+            new WriteAheadLog(dir, SyncPolicy.BATCH, 100), new SnapshotStore(dir), 2);
+    assertEquals(6, recovered.getNextSeqNumber());
+    assertEquals(List.of("<sd,vaga,turno2>", "<sd,vaga,turno3>"), recovered.getTupleSpacesState());
+    recovered.put("<es,vaga,turno1>", 6); // handed to the recovered pending take
+    assertEquals(List.of("<sd,vaga,turno2>", "<sd,vaga,turno3>"), recovered.getTupleSpacesState());
+    recovered.shutdown();
+  }
+
+  @Test
+  void filteredStateKeepsInsertionOrderTest() throws InvalidInputException {
+    ServerState state = new ServerState();
+    state.put("<sd,vaga,turno1>", 1);
+    state.put("<es,vaga,turno1>", 2);
+    state.put("<sd,vaga,turno2>", 3);
+    state.put("<sd,vaga,turno1>", 4);
+
+    assertEquals(
+        List.of("<sd,vaga,turno1>", "<sd,vaga,turno2>", "<sd,vaga,turno1>"),
+        state.getTupleSpacesState("<sd,vaga,[^,]+>"));
+    assertEquals(
+        List.of("<sd,vaga,turno1>", "<sd,vaga,turno1>"),
+        state.getTupleSpacesState("<sd,vaga,turno1>"));
+    assertEquals(List.of(), state.getTupleSpacesState("<sd,[^,]+>"));
+    assertThrows(
+        InvalidInputSearchPatternException.class, () -> state.getTupleSpacesState("sd,vaga"));
+    state.shutdown();
+  }
+
+  @Test
+  void typedAndStringTuplesShareTheSpaceTest() throws Exception {
+    ServerState state = new ServerState();
+    state.putAsync(List.of("sd", "vaga", "3"), 1).get(1, TimeUnit.SECONDS);
+    state.put("<sd,vaga,12>", 2);
+
+    // a string pattern reads a typed tuple and the other way around
+    assertEquals("<sd,vaga,3>", state.read("<sd,vaga,3>"));
+    List<FieldPattern> bigVaga =
+        List.of(
+            FieldPattern.literal("sd"), FieldPattern.any(), FieldPattern.numericRange("5", null));
+    assertEquals("<sd,vaga,12>", state.readAsync(bigVaga).get(1, TimeUnit.SECONDS));
+    assertEquals("<sd,vaga,12>", state.takeAsync(bigVaga, 3).get(1, TimeUnit.SECONDS));
+
+    // a regex field only matches its own field, it can't reach into the next one
+    List<FieldPattern> regex = List.of(FieldPattern.regex("sd.*"), FieldPattern.any());
+    CompletableFuture<String> pending = state.readAsync(regex);
+    assertFalse(pending.isDone());
+    state.put("<sd,1>", 4);
+    assertEquals("<sd,1>", pending.get(1, TimeUnit.SECONDS));
+
+    assertThrows(
+        InvalidInputTupleStringException.class, () -> state.putAsync(List.of("a,b"), 5));
+    assertThrows(InvalidInputSearchPatternException.class, () -> state.readAsync(List.of()));
+    state.put("<a,b>", 6); // the invalid put still consumed its number
+    state.shutdown();
+  }
+
+  @Test
+  void structuredPendingTakeIsRecoveredTest(@TempDir Path dir) throws Exception {
+    ServerState state = new ServerState(new WriteAheadLog(dir, SyncPolicy.BATCH, 100));
+    state.takeAsync(List.of(FieldPattern.literal("sd"), FieldPattern.numericRange("1", "2")), 1);
+    state.put("<sd,3>", 2);
+    state.shutdown();
+
+    ServerState recovered = new ServerState(new WriteAheadLog(dir, SyncPolicy.BATCH, 100));
+    recovered.put("<sd,1.5>", 3); // handed to the recovered pending take
+    assertEquals(List.of("<sd,3>"), recovered.getTupleSpacesState());
+    recovered.shutdown();
+  }
+
+  @Test
+  void batchesAreAppliedInSequenceTest() throws Exception {
+    ServerState state = new ServerState();
+    // the take batch waits for SN 1 to 3, then takes one tuple and waits for the other
+    CompletableFuture<List<String>> takes = state.takeBatchAsync(List.of("<sd,1>", "<sd,4>"), 4);
+    CompletableFuture<Void> puts = state.putBatchAsync(List.of("<sd,1>", "<sd,2>", "<sd,3>"), 1);
+    puts.get(1, TimeUnit.SECONDS);
+    assertFalse(takes.isDone());
+    assertEquals(List.of("<sd,2>", "<sd,3>"), state.getTupleSpacesState());
+
+    state.put("<sd,4>", 6);
+    assertEquals(List.of("<sd,1>", "<sd,4>"), takes.get(1, TimeUnit.SECONDS));
+
+    CompletionException e =
+        assertThrows(
+            CompletionException.class, () -> state.putBatchAsync(List.of("<sd,5>"), 2).join());
+    assertTrue(e.getCause() instanceof InvalidSequenceNumberException);
+    state.shutdown();
+  }
+
+  @Test
+  void invalidBatchEntryConsumesSequenceNumberTest() throws Exception {
+    ServerState state = new ServerState();
+    assertThrows(
+        InvalidInputTupleStringException.class,
+        () -> state.putBatchAsync(List.of("<sd,1>", "invalid", "<sd,3>"), 1));
+    assertThrows(
+        InvalidInputSearchPatternException.class,
+        () -> state.takeBatchAsync(List.of("<sd,(>", "<sd,1>"), 4));
+    state.put("<sd,6>", 6);
+    assertEquals(List.of("<sd,3>", "<sd,6>"), state.getTupleSpacesState());
+    state.shutdown();
+  }
+
+  @Test
+  void skippedNumbersDontHoldBackLaterOperationsTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    // SN 2 to 4 were leased by a client that never used them
+    CompletableFuture<Void> later = state.putAsync("<sd,5>", 5);
+    assertFalse(later.isDone());
+    state.skip(2, 3);
+    later.get(1, TimeUnit.SECONDS);
+
+    state.skip(5, 2); // an already used number stays used
+    state.put("<sd,7>", 7);
+    assertEquals(List.of("<sd,1>", "<sd,5>", "<sd,7>"), state.getTupleSpacesState());
+    state.shutdown();
+  }
+
+  @Test
+  void newEpochSkipsNumbersNeverGrantedTest(@TempDir Path dir) throws Exception {
+    ServerState state = new ServerState(new WriteAheadLog(dir, SyncPolicy.BATCH, 100));
+    state.put("<sd,1>", 1);
+    // SN 2 was granted before the sequencer crashed, 3 to 1000 never were
+    CompletableFuture<Void> later = state.putAsync("<sd,1001>", 1001);
+    assertTrue(state.newEpoch(2, 1001));
+    assertFalse(state.newEpoch(2, 1001)); // announced by every client
+    assertEquals(1001, state.getEpochFirstSeqNumber());
+
+    // nothing is skipped before the replicas agree, the put of SN 2 may still be in flight
+    state.putAsync("<sd,2>", 2).get(1, TimeUnit.SECONDS);
+    assertEquals(3, state.getMissingSeqNumber());
+    assertEquals(ServerState.GapStatus.RECEIVED, state.promiseGaps(2, 1001, "peer"));
+    assertEquals(ServerState.GapStatus.MISSING, state.promiseGaps(3, 1001, "peer"));
+    assertEquals(ServerState.GapStatus.FILLED, state.skipGaps(3, 1001, 2));
+    later.get(1, TimeUnit.SECONDS);
+    assertEquals(1002, state.getNextSeqNumber());
+    assertEquals(ServerState.GapStatus.FILLED, state.getGapStatus(500));
+    assertEquals(LogRecord.epoch(1000, 2), state.getAppliedOperation(500)); // for a lagging peer
+    CompletionException e =
+        assertThrows(CompletionException.class, state.putAsync("<sd,3>", 3)::join);
+    assertTrue(e.getCause() instanceof InvalidSequenceNumberException);
+    state.shutdown();
+
+    // the skipped numbers aren't waited for after a restart either
+    ServerState recovered = new ServerState(new WriteAheadLog(dir, SyncPolicy.BATCH, 100));
+    assertEquals(List.of("<sd,1>", "<sd,2>", "<sd,1001>"), recovered.getTupleSpacesState());
+    assertEquals(1002, recovered.getNextSeqNumber());
+    recovered.shutdown();
+  }
+
+  @Test
+  void filledGapRejectsTheLateOperationTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    assertEquals(0, state.getMissingSeqNumber());
+    // the client holding SN 2 crashed before sending its put
+    CompletableFuture<Void> later = state.putAsync("<sd,3>", 3);
+    assertEquals(2, state.getMissingSeqNumber());
+    assertEquals(ServerState.GapStatus.MISSING, state.getGapStatus(2));
+    assertEquals(ServerState.GapStatus.RECEIVED, state.getGapStatus(3));
+
+    assertEquals(ServerState.GapStatus.FILLED, state.fillGap(2));
+    later.get(1, TimeUnit.SECONDS);
+    assertEquals(0, state.getMissingSeqNumber());
+    assertEquals(ServerState.GapStatus.FILLED, state.fillGap(2)); // asked by another replica
+    assertEquals(ServerState.GapStatus.RECEIVED, state.fillGap(3));
+
+    CompletionException e =
+        assertThrows(CompletionException.class, state.putAsync("<sd,2>", 2)::join);
+    assertTrue(e.getCause() instanceof InvalidSequenceNumberException);
+    assertEquals(List.of("<sd,1>", "<sd,3>"), state.getTupleSpacesState());
+  }
+
+  @Test
+  void promisedGapRefusesTheLateOperationTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    CompletableFuture<Void> later = state.putAsync("<sd,3>", 3);
+    assertEquals(ServerState.GapStatus.RECEIVED, state.promiseGap(3, "peer"));
+    assertEquals(ServerState.GapStatus.MISSING, state.promiseGap(2, "peer"));
+
+    // the operation arrives between the two rounds, it can't be accepted anymore
+    CompletionException e =
+        assertThrows(CompletionException.class, state.putAsync("<sd,2>", 2)::join);
+    assertTrue(e.getCause() instanceof InvalidSequenceNumberException);
+    assertEquals(2, state.getMissingSeqNumber());
+
+    // another replica received it, so it is fetched from that one instead of being filled
+    assertTrue(state.offerRepaired(2, LogRecord.put(2, "<sd,2>")));
+    later.get(1, TimeUnit.SECONDS);
+    assertEquals(List.of("<sd,1>", "<sd,2>", "<sd,3>"), state.getTupleSpacesState());
+  }
+
+  @Test
+  void releasedGapAcceptsTheLateOperationTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    CompletableFuture<Void> later = state.putAsync("<sd,3>", 3);
+    assertEquals(ServerState.GapStatus.MISSING, state.promiseGap(2, "peer"));
+    assertEquals(ServerState.GapStatus.MISSING, state.promiseGap(2, "other"));
+
+    // a round abandoned by one replica doesn't withdraw the promise made to another
+    state.releaseGaps(2, 3, "peer");
+    CompletionException e =
+        assertThrows(CompletionException.class, state.putAsync("<sd,2>", 2)::join);
+    assertTrue(e.getCause() instanceof InvalidSequenceNumberException);
+
+    state.releaseGaps(2, 3, "other");
+    state.putAsync("<sd,2>", 2).get(1, TimeUnit.SECONDS);
+    later.get(1, TimeUnit.SECONDS);
+    assertEquals(List.of("<sd,1>", "<sd,2>", "<sd,3>"), state.getTupleSpacesState());
+  }
+
+  @Test
+  void runningStateCatchesUpWithATransferredOneTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    CompletableFuture<String> waiting = state.takeAsync("<sd,9>", 2);
+    // SN 3 is missing, and the peers that applied it no longer keep it
+    CompletableFuture<Void> later = state.putAsync("<sd,5>", 5);
+    assertFalse(state.isForgotten(1));
+    assertFalse(state.isForgotten(3));
+
+    state.pauseForTransfer();
+    state.installTransfer(new Snapshot(4, List.of("<sd,1>", "<sd,4>"), List.of()));
+    later.get(1, TimeUnit.SECONDS);
+    // the take answered by the other replicas isn't left waiting here
+    assertThrows(CompletionException.class, waiting::join);
+    assertTrue(state.isForgotten(3));
+    assertFalse(state.isForgotten(5));
+    assertEquals(List.of("<sd,1>", "<sd,4>", "<sd,5>"), state.getTupleSpacesState());
+  }
+
+  @Test
+  void repairedOperationIsFollowedByTheLateRequestTest() throws Exception {
+    ServerState peer = new ServerState();
+    peer.put("<sd,1>", 1);
+    peer.put("<sd,2>", 2);
+    assertEquals(LogRecord.put(2, "<sd,2>"), peer.getAppliedOperation(2));
+    assertNull(peer.getAppliedOperation(3));
+
+    // the request for SN 2 to this replica was lost, or is late
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    CompletableFuture<Void> later = state.putAsync("<sd,3>", 3);
+    assertEquals(2, state.getMissingSeqNumber());
+    assertTrue(state.offerRepaired(2, peer.getAppliedOperation(2)));
+    later.get(1, TimeUnit.SECONDS);
+    assertFalse(state.offerRepaired(2, peer.getAppliedOperation(2)));
+
+    state.putAsync("<sd,2>", 2).get(1, TimeUnit.SECONDS);
+    assertEquals(List.of("<sd,1>", "<sd,2>", "<sd,3>"), state.getTupleSpacesState());
+  }
+
+  @Test
+  void readWaitsForItsMinimumSeqNumberTest() throws Exception {
+    ServerState state = new ServerState();
+    state.put("<sd,1>", 1);
+    assertEquals(1, state.getLastApplied());
+
+    // the client saw SN 2 applied on another replica, this one has to catch up first
+    CompletableFuture<String> read = state.readAsync("<sd,1>", 2);
+    CompletableFuture<String> cancelled = state.readAsync("<sd,1>", 3);
+    assertFalse(read.isDone());
+    assertEquals("<sd,1>", state.readAsync("<sd,1>", 1).get(1, TimeUnit.SECONDS));
+
+    cancelled.cancel(false);
+    state.put("<sd,2>", 2);
+    assertEquals("<sd,1>", read.get(1, TimeUnit.SECONDS));
+    assertEquals(2, state.getLastApplied());
+    state.put("<sd,3>", 3);
+    assertTrue(cancelled.isCancelled());
+  }
+
+  @Test
+  void uncommittedBatchIsFailedTest(@TempDir Path dir) throws Exception {
+    WriteAheadLog log = new WriteAheadLog(dir, SyncPolicy.BATCH, 100);
+    ServerState state = new ServerState(log);
+    state.put("<sd,1>", 1);
+    log.close(); // the commit of the next batch fails
+
+    CompletionException e =
+        assertThrows(CompletionException.class, state.putAsync("<sd,2>", 2)::join);
+    assertTrue(e.getCause() instanceof IOException);
+    assertNotNull(state.whenFailed().get(1, TimeUnit.SECONDS));
+    WriteAheadLog reopened = new WriteAheadLog(dir, SyncPolicy.BATCH, 100);
+    assertEquals(List.of(LogRecord.put(1, "<sd,1>")), reopened.replay(0));
+    reopened.close();
+  }
+
+  @Test
+  void newEpochIsLoggedWhenTheGapEndsTheLogTest(@TempDir Path dir) throws Exception {
+    ServerState state = new ServerState(new WriteAheadLog(dir, SyncPolicy.BATCH, 100));
+    state.put("<sd,1>", 1);
+    state.newEpoch(2, 1001);
+    state.skipGaps(2, 1001, 2);
+    state.put("<sd,1001>", 1001);
+    state.shutdown();
+
+    WriteAheadLog log = new WriteAheadLog(dir, SyncPolicy.BATCH, 100);
+    assertEquals(
+        List.of(
+            LogRecord.put(1, "<sd,1>"), LogRecord.epoch(1000, 2), LogRecord.put(1001, "<sd,1001>")),
+        log.replay(0));
+    log.close();
+  }
+
+  @Test
+  void transferredStateCatchesUpWithDonorTest() throws Exception {
+    ServerState donor = new ServerState();
+    donor.put("<sd,vaga,turno1>", 1);
+    donor.put("<sd,vaga,turno2>", 2);
+    donor.takeAsync("<es,vaga,[^,]+>", 3); // pending take, part of the transferred state
+    donor.put("<sd,vaga,turno3>", 4);
+
+    StateTransfer transfer = donor.beginTransfer();
+    assertEquals(4, transfer.getSnapshot().getSeqNumber());
+    donor.take("<sd,vaga,turno1>", 5);
+    donor.put("<es,vaga,turno1>", 6); // handed to the pending take
+
+    ServerState joiner = new ServerState();
+    joiner.pauseForTransfer();
+    // requests received before the state is installed are kept until it is
+    CompletableFuture<Void> direct = joiner.putAsync("<sd,vaga,turno4>", 7);
+    CompletableFuture<String> read = joiner.readAsync("<sd,vaga,turno2>");
+    CompletableFuture<String> duplicate = joiner.takeAsync("<sd,vaga,turno1>", 5);
+    assertFalse(direct.isDone());
+
+    joiner.installTransfer(transfer.getSnapshot());
+    assertEquals("<sd,vaga,turno2>", read.get(1, TimeUnit.SECONDS));
+    List<LogRecord> operations = new ArrayList<>();
+    assertTrue(transfer.poll(10, 1, TimeUnit.SECONDS, operations));
+    donor.endTransfer(transfer);
+    assertEquals(
+        List.of(LogRecord.take(5, "<sd,vaga,turno1>"), LogRecord.put(6, "<es,vaga,turno1>")),
+        operations);
+    for (LogRecord operation : operations) {
+      joiner.offerTransferred(operation);
+    }
+
+    direct.get(1, TimeUnit.SECONDS);
+    // buffered before the transferred one, so it is the one applied
+    assertEquals("<sd,vaga,turno1>", duplicate.get(1, TimeUnit.SECONDS));
+    donor.put("<sd,vaga,turno4>", 7);
+    assertEquals(donor.getTupleSpacesState(), joiner.getTupleSpacesState());
+    assertEquals(8, joiner.getNextSeqNumber());
+
+    // a request arriving after the transferred operation is answered like it
+    ServerState late = new ServerState();
+    late.pauseForTransfer();
+    late.installTransfer(transfer.getSnapshot());
+    late.offerTransferred(operations.get(0));
+    assertEquals("<sd,vaga,turno1>", late.take("<sd,vaga,turno1>", 5));
+    late.finishTransfer();
+
+    donor.shutdown();
+    joiner.shutdown();
+    late.shutdown();
+  }
+
+  @Test
+  void transferFallingTooFarBehindOverflowsTest() throws Exception {
+    ServerState donor = new ServerState();
+    StateTransfer transfer = donor.beginTransfer();
+    List<LogRecord> operations = new ArrayList<>();
+    int seqNumber = 1;
+    while (!transfer.isOverflowed()) {
+      assertTrue(seqNumber <= 4096, "transfer never overflowed");
+      donor.put("<sd,vaga,turno" + seqNumber + ">", seqNumber);
+      seqNumber++;
+    }
+    donor.endTransfer(transfer);
+
+    // the queued operations stay in order, the ones after the overflow are left to the peers
+    assertTrue(transfer.poll(seqNumber, 0, TimeUnit.SECONDS, operations));
+    assertEquals(seqNumber - 2, operations.size());
+    assertEquals(LogRecord.put(1, "<sd,vaga,turno1>"), operations.get(0));
+    // still kept for the peers to be fetched
+    assertEquals(
+        LogRecord.put(seqNumber - 1, "<sd,vaga,turno" + (seqNumber - 1) + ">"),
+        donor.getAppliedOperation(seqNumber - 1));
+
+    donor.shutdown();
+  }
+
+  @Test
+  void staleRequestsAreAnsweredOnInstallTest() throws Exception {
+    ServerState joiner = new ServerState();
+    joiner.pauseForTransfer();
+    CompletableFuture<Void> stalePut = joiner.putAsync("<sd,vaga,turno1>", 1);
+    CompletableFuture<String> staleTake = joiner.takeAsync("<sd,vaga,turno1>", 2);
+
+    ServerState donor = new ServerState();
+    donor.put("<sd,vaga,turno1>", 1);
+    donor.put("<sd,vaga,turno2>", 2);
+    StateTransfer transfer = donor.beginTransfer();
+    donor.endTransfer(transfer);
+
+    joiner.installTransfer(transfer.getSnapshot());
+    stalePut.get(1, TimeUnit.SECONDS); // already reflected by the transferred state
+    Exception e = assertThrows(Exception.class, () -> staleTake.get(1, TimeUnit.SECONDS));
+    assertInstanceOf(InvalidSequenceNumberException.class, e.getCause());
+    assertEquals(List.of("<sd,vaga,turno1>", "<sd,vaga,turno2>"), joiner.getTupleSpacesState());
+    assertEquals(3, joiner.getNextSeqNumber());
+
+    donor.shutdown();
+    joiner.shutdown();
+  }
 }
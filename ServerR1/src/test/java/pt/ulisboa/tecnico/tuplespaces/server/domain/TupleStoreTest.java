@@ -0,0 +1,80 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class TupleStoreTest {
+  private static SearchPattern compile(String pattern) {
+    return new SearchPattern(pattern, Pattern.compile(pattern));
+  }
+
+  @Test
+  void findOldestMatchTest() {
+    TupleStore store = new TupleStore();
+    store.add("<sd,vaga,turno2>");
+    store.add("<sd,vaga,turno1>");
+    assertEquals("<sd,vaga,turno2>", store.find(compile("<sd,vaga,[^,]+>")));
+    assertEquals("<sd,vaga,turno1>", store.find(compile("<sd,vaga,turno1>")));
+  }
+
+  @Test
+  void arityMismatchTest() {
+    TupleStore store = new TupleStore();
+    store.add("<sd,vaga>");
+    assertNull(store.find(compile("<sd,[^,]+,[^,]+>")));
+    assertEquals("<sd,vaga>", store.find(compile("<sd,.*>")));
+  }
+
+  @Test
+  void removeKeepsOrderTest() {
+    TupleStore store = new TupleStore();
+    store.add("<a,1>");
+    store.add("<b,2>");
+    store.add("<a,1>");
+    store.add("<c,3>");
+    assertEquals("<a,1>", store.remove(compile("<a,1>")));
+    assertEquals(List.of("<b,2>", "<a,1>", "<c,3>"), store.toList());
+    assertEquals("<a,1>", store.remove(compile("<a,[0-9]>")));
+    assertNull(store.remove(compile("<a,[0-9]>")));
+    assertEquals(2, store.size());
+  }
+
+  @Test
+  void unconstrainedPatternScansEverythingTest() {
+    TupleStore store = new TupleStore();
+    store.add("<x>");
+    store.add("<vaga1,sd,turno5>");
+    assertEquals("<vaga1,sd,turno5>", store.remove(compile("<vaga([0-9]*),sd,turno(.*)>")));
+    assertEquals(List.of("<x>"), store.toList());
+  }
+
+  @Test
+  void quantifiedCommaFindsFewerFieldsTest() {
+    TupleStore store = new TupleStore();
+    store.add("<a,c>");
+    store.add("<ab>");
+    assertEquals("<ab>", store.remove(compile("<a,?b>")));
+    store.add("<ab>");
+    assertEquals("<ab>", store.remove(compile("<a,*b>")));
+    store.add("<ab>");
+    assertEquals("<ab>", store.remove(compile("<a,{0}b>")));
+    assertEquals(List.of("<a,c>"), store.toList());
+  }
+
+  @Test
+  void exactMatchMultisetTest() {
+    TupleStore store = new TupleStore();
+    store.add("<a.b,1>");
+    store.add("<axb,1>");
+    store.add("<a.b,1>");
+    SearchPattern exact = compile("<a\\.b,1>");
+    assertTrue(exact.isExact());
+    assertEquals("<a.b,1>", store.remove(exact));
+    assertEquals("<a.b,1>", store.remove(exact));
+    assertNull(store.remove(exact));
+    assertEquals(List.of("<axb,1>"), store.toList());
+  }
+}
@@ -0,0 +1,53 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class WaiterRegistryTest {
+  private static SearchPattern compile(String pattern) {
+    return new SearchPattern(pattern, Pattern.compile(pattern));
+  }
+
+  @Test
+  void onlyMatchingWaitersAreReturnedTest() {
+    WaiterRegistry<String> registry = new WaiterRegistry<>();
+    registry.register(compile("<sd,vaga,turno1>"), "exact");
+    registry.register(compile("<sd,[^,]+,[^,]+>"), "field");
+    registry.register(compile("<[^,]+,[^,]+,[^,]+>"), "arity");
+    registry.register(compile("<.*>"), "any");
+    registry.register(compile("<es,[^,]+,[^,]+>"), "other");
+
+    List<String> matched = registry.removeAllMatching("<sd,vaga,turno1>");
+    assertEquals(4, matched.size());
+    assertFalse(matched.contains("other"));
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  void removedWaiterIsNotMatchedTest() {
+    WaiterRegistry<String> registry = new WaiterRegistry<>();
+    WaiterRegistry.Waiter<String> waiter = registry.register(compile("<sd,[^,]+>"), "read");
+    assertTrue(registry.remove(waiter));
+    assertFalse(registry.remove(waiter));
+    assertTrue(registry.removeAllMatching("<sd,vaga>").isEmpty());
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  void oldestMatchingWaiterAcrossBucketsTest() {
+    WaiterRegistry<String> registry = new WaiterRegistry<>();
+    registry.register(compile("<es,[^,]+>"), "other");
+    registry.register(compile("<[^,]+,[^,]+>"), "first");
+    registry.register(compile("<sd,[^,]+>"), "second");
+    registry.register(compile("<sd,vaga>"), "third");
+
+    assertEquals("first", registry.removeOldestMatching("<sd,vaga>"));
+    assertEquals("second", registry.removeOldestMatching("<sd,vaga>"));
+    assertEquals("third", registry.removeOldestMatching("<sd,vaga>"));
+    assertNull(registry.removeOldestMatching("<sd,vaga>"));
+    assertEquals(1, registry.size());
+  }
+}
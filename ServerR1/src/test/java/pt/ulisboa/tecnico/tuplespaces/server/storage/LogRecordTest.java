@@ -0,0 +1,20 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogRecordTest {
+  @Test
+  void typeValuesMatchTheContractTest() {
+    assertEquals(LogRecord.Type.PUT, LogRecord.Type.fromValue(0));
+    assertEquals(LogRecord.Type.TAKE, LogRecord.Type.fromValue(1));
+    assertEquals(LogRecord.Type.NOOP, LogRecord.Type.fromValue(2));
+    assertEquals(LogRecord.Type.EPOCH, LogRecord.Type.fromValue(3));
+  }
+
+  @Test
+  void unknownTypeValueIsRejectedTest() {
+    assertThrows(IllegalArgumentException.class, () -> LogRecord.Type.fromValue(4));
+    assertThrows(IllegalArgumentException.class, () -> LogRecord.Type.fromValue(-1));
+  }
+}
@@ -0,0 +1,44 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class SnapshotStoreTest {
+  @TempDir Path dir;
+
+  @Test
+  void emptyStoreHasNoSnapshotTest() throws IOException {
+    assertNull(new SnapshotStore(dir).loadLatest());
+  }
+
+  @Test
+  void latestSnapshotIsLoadedTest() throws IOException {
+    SnapshotStore store = new SnapshotStore(dir);
+    store.write(new Snapshot(10, List.of("<a>"), List.of()));
+    store.write(new Snapshot(20, List.of("<a>", "<sd,vaga,turno1>"), List.of("<b,[^,]+>")));
+
+    Snapshot snapshot = store.loadLatest();
+    assertEquals(20, snapshot.getSeqNumber());
+    assertEquals(List.of("<a>", "<sd,vaga,turno1>"), snapshot.getTuples());
+    assertEquals(List.of("<b,[^,]+>"), snapshot.getPendingTakes());
+    assertFalse(Files.exists(dir.resolve("snapshot-0000000000000000010.bin"))); // superseded
+  }
+
+  @Test
+  void corruptedSnapshotIsIgnoredTest() throws IOException {
+    SnapshotStore store = new SnapshotStore(dir);
+    Path file = store.write(new Snapshot(10, List.of("<a>"), List.of()));
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(9);
+      raf.write('x');
+    }
+    assertNull(store.loadLatest());
+  }
+}
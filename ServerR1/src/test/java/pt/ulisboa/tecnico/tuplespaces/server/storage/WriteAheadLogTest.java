@@ -0,0 +1,175 @@
+package pt.ulisboa.tecnico.tuplespaces.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class WriteAheadLogTest {
+  @TempDir Path dir;
+
+  @Test
+  void committedRecordsAreReplayedTest() throws IOException {
+    Path file = dir.resolve("wal");
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(List.of(), log.replay(0));
+      log.append(LogRecord.put(1, "<sd,vaga,turno1>"));
+      log.append(LogRecord.take(2, "<sd,vaga,[^,]+>"));
+      log.append(LogRecord.noop(3));
+      log.commit();
+      assertEquals(1, log.getSyncs()); // the whole batch shares one fsync
+    }
+
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(
+          List.of(
+              LogRecord.put(1, "<sd,vaga,turno1>"),
+              LogRecord.take(2, "<sd,vaga,[^,]+>"),
+              LogRecord.noop(3)),
+          log.replay(0));
+    }
+  }
+
+  @Test
+  void sequenceNumbersPastIntRangeAreReplayedTest() throws IOException {
+    Path file = dir.resolve("wal");
+    long first = Integer.MAX_VALUE + 1L;
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      log.replay(first - 1);
+      log.append(LogRecord.put(first, "<a>"));
+      log.roll(first + 1);
+      log.append(LogRecord.noop(first + 1));
+      log.commit();
+    }
+
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(
+          List.of(LogRecord.put(first, "<a>"), LogRecord.noop(first + 1)), log.replay(0));
+      assertEquals(1, log.truncate(first));
+    }
+  }
+
+  @Test
+  void operationPolicySyncsEveryRecordTest() throws IOException {
+    try (WriteAheadLog log = new WriteAheadLog(dir.resolve("wal"), SyncPolicy.OPERATION, 100)) {
+      log.replay(0);
+      log.append(LogRecord.put(1, "<a>"));
+      log.append(LogRecord.put(2, "<b>"));
+      log.commit();
+      assertEquals(2, log.getSyncs());
+    }
+  }
+
+  @Test
+  void tornTailIsDiscardedTest() throws IOException {
+    Path file = dir.resolve("wal");
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      log.replay(0);
+      log.append(LogRecord.put(1, "<sd,vaga,turno1>"));
+      log.append(LogRecord.put(2, "<sd,vaga,turno2>"));
+      log.commit();
+    }
+    // cut the last record in half
+    Path segment = file.resolve("wal-0000000000000000001.log");
+    try (RandomAccessFile raf = new RandomAccessFile(segment.toFile(), "rw")) {
+      raf.setLength(raf.length() - 5);
+    }
+    long intact;
+
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(List.of(LogRecord.put(1, "<sd,vaga,turno1>")), log.replay(0));
+      intact = Files.size(segment);
+      log.append(LogRecord.put(2, "<sd,vaga,turno3>"));
+      log.commit();
+    }
+
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(
+          List.of(LogRecord.put(1, "<sd,vaga,turno1>"), LogRecord.put(2, "<sd,vaga,turno3>")),
+          log.replay(0));
+      assertTrue(Files.size(segment) > intact);
+    }
+  }
+
+  /** Log of three segments, SN 1 and 2, SN 3 and 4, SN 5 and 6, the middle one torn */
+  private Path logWithTornMiddleSegment() throws IOException {
+    Path file = dir.resolve("wal");
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      log.replay(0);
+      for (long seqNumber = 1; seqNumber <= 6; seqNumber++) {
+        if (seqNumber == 3 || seqNumber == 5) {
+          log.roll(seqNumber);
+        }
+        log.append(LogRecord.put(seqNumber, "<" + seqNumber + ">"));
+      }
+      log.commit();
+    }
+    // cut SN 4 in half
+    Path middle = file.resolve("wal-0000000000000000003.log");
+    try (RandomAccessFile raf = new RandomAccessFile(middle.toFile(), "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    return file;
+  }
+
+  @Test
+  void tornMiddleSegmentDiscardsTheFollowingOnesTest() throws IOException {
+    Path file = logWithTornMiddleSegment();
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(
+          List.of(LogRecord.put(1, "<1>"), LogRecord.put(2, "<2>"), LogRecord.put(3, "<3>")),
+          log.replay(0));
+      assertFalse(Files.exists(file.resolve("wal-0000000000000000005.log")));
+      // SN 4 onwards are applied again after the recovery, once the peers hand them over
+      log.append(LogRecord.put(4, "<4b>"));
+      log.append(LogRecord.put(5, "<5b>"));
+      log.commit();
+    }
+
+    // the records appended after the recovery are replayed on the next restart too
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(
+          List.of(
+              LogRecord.put(1, "<1>"),
+              LogRecord.put(2, "<2>"),
+              LogRecord.put(3, "<3>"),
+              LogRecord.put(4, "<4b>"),
+              LogRecord.put(5, "<5b>")),
+          log.replay(0));
+    }
+  }
+
+  @Test
+  void tornSegmentCoveredBySnapshotKeepsTheFollowingOnesTest() throws IOException {
+    Path file = logWithTornMiddleSegment();
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      // SN 4 is covered by a snapshot the segment wasn't deleted after yet
+      assertEquals(List.of(LogRecord.put(5, "<5>"), LogRecord.put(6, "<6>")), log.replay(4));
+    }
+  }
+
+  @Test
+  void segmentsCoveredBySnapshotAreTruncatedTest() throws IOException {
+    Path file = dir.resolve("wal");
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      log.replay(0);
+      log.append(LogRecord.put(1, "<a>"));
+      log.append(LogRecord.put(2, "<b>"));
+      log.roll(3);
+      log.append(LogRecord.put(3, "<c>"));
+      log.commit();
+      assertEquals(0, log.truncate(1)); // the first segment still holds record 2
+      assertEquals(1, log.truncate(2));
+      assertFalse(Files.exists(file.resolve("wal-0000000000000000001.log")));
+    }
+
+    try (WriteAheadLog log = new WriteAheadLog(file, SyncPolicy.BATCH, 100)) {
+      assertEquals(List.of(LogRecord.put(3, "<c>")), log.replay(2));
+    }
+  }
+}